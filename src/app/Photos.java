@@ -4,16 +4,20 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
 import model.Admin;
+import model.ModelEvents;
 import model.Album;
 import model.Photo;
 import model.User;
+import util.BlobStore;
 import util.PersistenceManager;
+import util.TagTypeManager;
 
 public class Photos extends Application {
     // Global admin instance (which owns the user list)
@@ -46,6 +50,10 @@ public class Photos extends Application {
         if (loadedUsers == null) {
             loadedUsers = new ArrayList<>();
         }
+        // Load the tag types once; every dialog shares this instance.
+        TagTypeManager.getInstance();
+        // Count references to uploaded files; registered first so it sees deleted users before their files go.
+        ModelEvents.addListener(BlobStore.getInstance());
         
         // Check if an admin and stock user already exist in loadedUsers.
         boolean adminExists = loadedUsers.stream().anyMatch(u -> "admin".equals(u.getUsername()));
@@ -62,7 +70,7 @@ public class Photos extends Application {
             stock = new User("stock");
             admin.addUser(stock);
             Album album = new Album("stock");
-            stock.getAlbums().add(album);
+            stock.addAlbum(album);
             // Use our helper to get the file URLs for stock photos.
             album.addPhoto(new Photo(getDataFileURL("icon.png")));
             album.addPhoto(new Photo(getDataFileURL("admin_icon.png")));
@@ -82,14 +90,17 @@ public class Photos extends Application {
         primaryStage.setScene(scene);
         primaryStage.show();
         
-        // Save the users list on application exit.
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                PersistenceManager.saveUsers(admin.listUsers());
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }));
+        // Background saves copy the library on this thread, where it is edited.
+        PersistenceManager.setModelThread(Platform::runLater, Platform::isFxApplicationThread);
+        // Keep the user catalog and the per-user journals up to date from here on.
+        try {
+            PersistenceManager.start(admin.listUsers());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        
+        // Let a running autosave finish and make sure the journals are on disk on application exit.
+        Runtime.getRuntime().addShutdownHook(new Thread(PersistenceManager::shutdown));
     }
     
     public static void main(String[] args) {
@@ -43,19 +43,23 @@ public class Admin extends User implements Serializable {
         User newUser = new User(username);
         if (!users.contains(newUser)) {
             users.add(newUser);
+            ModelEvents.fireUserAdded(newUser);
         }
     }
     
     public void addUser(User newUser) {
         if (!users.contains(newUser)) {
             users.add(newUser);
+            ModelEvents.fireUserAdded(newUser);
         }
     }
     
     // Deletes a user (except admin)
     public void deleteUser(User user) {
         if (!"admin".equals(user.getUsername())) {
-            users.remove(user);
+            if (users.remove(user)) {
+                ModelEvents.fireUserDeleted(user);
+            }
         }
     }
     
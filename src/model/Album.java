@@ -2,6 +2,9 @@ package model;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -15,6 +18,10 @@ public class Album implements Serializable {
     
     private String name;
     private ArrayList<Photo> photos;
+    // The user this album belongs to; rebuilt after loading, never serialized.
+    private transient User owner;
+    // Built on first use and kept current by addPhoto and removePhoto.
+    private transient DateIndex dateIndex;
     
     /**
      * Constructs a new Album with the given name.
@@ -51,6 +58,87 @@ public class Album implements Serializable {
      */
     public void addPhoto(Photo photo) {
         this.photos.add(photo);
+        if (dateIndex != null) {
+            dateIndex.add(photo);
+        }
+        if (owner != null) {
+            photo.setOwner(owner);
+        }
+        ModelEvents.firePhotoAdded(this, photo);
+    }
+    
+    /**
+     * Adds several photos to this album at once, e.g. after a batch upload.
+     * Photos whose file is already in the album are skipped. A photo whose file the owner
+     * already has in another album is added as that photo, as if it had been copied, so the
+     * user keeps one photo per file, with one caption and one set of tags.
+     * 
+     * @param newPhotos the photos to add
+     * @return the photos that were added
+     */
+    public List<Photo> addPhotos(List<Photo> newPhotos) {
+        List<Photo> added = new ArrayList<>();
+        Map<String, Photo> library = (owner != null) ? owner.photosByPath() : new HashMap<>();
+        this.photos.ensureCapacity(this.photos.size() + newPhotos.size());
+        for (Photo photo : newPhotos) {
+            photo = library.getOrDefault(photo.getPath(), photo);
+            if (findPhoto(photo.getPath()) == null) {
+                addPhoto(photo);
+                added.add(photo);
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * Removes a photo from this album.
+     * 
+     * @param photo the Photo to remove
+     * @return true if the photo was in this album, false otherwise
+     */
+    public boolean removePhoto(Photo photo) {
+        int index = this.photos.indexOf(photo);
+        if (index < 0) {
+            return false;
+        }
+        Photo removed = this.photos.remove(index);
+        if (dateIndex != null) {
+            dateIndex.remove(removed);
+        }
+        ModelEvents.firePhotoRemoved(this, removed);
+        return true;
+    }
+    
+    /**
+     * Returns the index of this album's photos by date, building it on first use.
+     * 
+     * @return the date index
+     */
+    public DateIndex getDateIndex() {
+        if (dateIndex == null) {
+            ModelEvents.addListener(DateIndex.MAINTAINER);
+            dateIndex = new DateIndex(photos);
+        }
+        return dateIndex;
+    }
+    
+    DateIndex peekDateIndex() {
+        return dateIndex;
+    }
+    
+    /**
+     * Returns the photo with the given path, if it is in this album.
+     * 
+     * @param path the file path of the photo
+     * @return the Photo, or null if this album does not contain it
+     */
+    public Photo findPhoto(String path) {
+        for (Photo p : photos) {
+            if (p.getPath().equals(path)) {
+                return p;
+            }
+        }
+        return null;
     }
     
     /**
@@ -59,7 +147,26 @@ public class Album implements Serializable {
      * @param name the new album name
      */
     public void changeName(String name) {
+        String oldName = this.name;
         this.name = name;
+        ModelEvents.fireAlbumRenamed(this, oldName);
+    }
+    
+    /**
+     * Returns the user this album belongs to.
+     * 
+     * @return the owning user, or null if the album has not been added to a user yet
+     */
+    public User getOwner() {
+        return owner;
+    }
+    
+    // Attaches this album, and every photo in it, to the given user.
+    void setOwner(User owner) {
+        this.owner = owner;
+        for (Photo p : photos) {
+            p.setOwner(owner);
+        }
     }
     
     @Override
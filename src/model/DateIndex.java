@@ -0,0 +1,352 @@
+package model;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The photos of an album or of a user, sorted by the date they were taken.
+ * <p>
+ * The dates are kept as a sorted array of epoch seconds, next to an array of the photos, so a
+ * date range is found with two binary searches and returned as a slice, without looking at the
+ * photos outside it or converting any date. Photos added are collected and merged into the
+ * arrays in one pass before the next query; photos removed leave a gap that the same pass
+ * closes. A batch of changes therefore costs one pass, and queries between changes only the
+ * two searches. When the date of a photo changes, the arrays are sorted again before the next query.
+ * </p>
+ * <p>
+ * An album keeps its own index, see {@link Album#getDateIndex()}; a user's index, see
+ * {@link User#getDateIndex()}, holds each photo once however many albums it is in. Both are
+ * kept current from the {@link ModelEvents} and must be used on the thread that changes the model.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class DateIndex {
+
+    // Keeps the user indexes current and marks every index stale when a date changes; registered when the first index is built.
+    static final ModelListener MAINTAINER = new ModelListener() {
+        @Override
+        public void albumAdded(User user, Album album) {
+            DateIndex index = user.peekDateIndex();
+            if (index != null) {
+                for (Photo photo : album.getPhotos()) {
+                    index.add(photo);
+                }
+            }
+        }
+
+        @Override
+        public void albumRemoved(User user, Album album) {
+            DateIndex index = user.peekDateIndex();
+            if (index != null) {
+                for (Photo photo : album.getPhotos()) {
+                    index.remove(photo);
+                }
+            }
+        }
+
+        @Override
+        public void photoAdded(Album album, Photo photo) {
+            DateIndex index = album.getOwner().peekDateIndex();
+            if (index != null) {
+                index.add(photo);
+            }
+        }
+
+        @Override
+        public void photoRemoved(Album album, Photo photo) {
+            DateIndex index = album.getOwner().peekDateIndex();
+            if (index != null) {
+                index.remove(photo);
+            }
+        }
+
+        @Override
+        public void metadataChanged(Photo photo) {
+            User owner = photo.getOwner();
+            if (owner == null) {
+                return;
+            }
+            if (owner.peekDateIndex() != null) {
+                owner.peekDateIndex().stale = true;
+            }
+            for (Album album : owner.getAlbums()) {
+                if (album.peekDateIndex() != null) {
+                    album.peekDateIndex().stale = true;
+                }
+            }
+        }
+    };
+
+    private static final Comparator<Photo> BY_DATE = Comparator.comparingLong(Photo::getDateMillis);
+
+    // Sorted by date; slots of removed photos are null until the next merge.
+    private long[] keys;
+    private Photo[] photos;
+    private int size;
+    private int removed;
+    // Photos added since the last merge, in no particular order.
+    private final List<Photo> pending = new ArrayList<>();
+    // Set when the date of a photo in the index has changed.
+    private boolean stale;
+    // For a user's index: the number of the user's albums each photo is in. Null for an album.
+    private final Map<Photo, Integer> albumCounts;
+
+    /**
+     * Indexes the photos of an album.
+     *
+     * @param photos the photos
+     */
+    DateIndex(Collection<Photo> photos) {
+        this.albumCounts = null;
+        this.keys = new long[Math.max(16, photos.size())];
+        this.photos = new Photo[keys.length];
+        pending.addAll(photos);
+    }
+
+    /**
+     * Indexes the photos in a user's albums, each once.
+     *
+     * @param user a loaded user
+     */
+    DateIndex(User user) {
+        this.albumCounts = new IdentityHashMap<>();
+        this.keys = new long[16];
+        this.photos = new Photo[16];
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                add(photo);
+            }
+        }
+    }
+
+    /**
+     * Returns the photos taken in a time span, oldest first.
+     *
+     * @param fromMillis the start of the span, in epoch milliseconds, inclusive
+     * @param toMillis the end of the span, in epoch milliseconds, inclusive
+     * @return the photos; a copy, so it stays valid when the index changes
+     */
+    public List<Photo> between(long fromMillis, long toMillis) {
+        settle();
+        int from = lowerBound(Math.floorDiv(fromMillis + 999, 1000L));
+        int to = lowerBound(Math.floorDiv(toMillis, 1000L) + 1);
+        if (from >= to) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(Arrays.copyOfRange(photos, from, to)));
+    }
+
+    /**
+     * Returns the photos taken on the days of a date range, oldest first.
+     *
+     * @param start the first day, inclusive
+     * @param end the last day, inclusive
+     * @param zone the time zone the days are in
+     * @return the photos
+     */
+    public List<Photo> between(LocalDate start, LocalDate end, ZoneId zone) {
+        long from = start.atStartOfDay(zone).toInstant().toEpochMilli();
+        long to = end.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+        return between(from, to);
+    }
+
+    /**
+     * Returns the number of photos taken in a time span, without collecting them.
+     *
+     * @param fromMillis the start of the span, in epoch milliseconds, inclusive
+     * @param toMillis the end of the span, in epoch milliseconds, inclusive
+     * @return the number of photos
+     */
+    public int count(long fromMillis, long toMillis) {
+        settle();
+        int from = lowerBound(Math.floorDiv(fromMillis + 999, 1000L));
+        int to = lowerBound(Math.floorDiv(toMillis, 1000L) + 1);
+        return Math.max(0, to - from);
+    }
+
+    /**
+     * Returns the number of photos in the index.
+     *
+     * @return the number of photos
+     */
+    public int size() {
+        return size - removed + pending.size();
+    }
+
+    /**
+     * Returns the photo taken first.
+     *
+     * @return the oldest photo, or null if there are none
+     */
+    public Photo earliest() {
+        settle();
+        return (size == 0) ? null : photos[0];
+    }
+
+    /**
+     * Returns the photo taken last.
+     *
+     * @return the newest photo, or null if there are none
+     */
+    public Photo latest() {
+        settle();
+        return (size == 0) ? null : photos[size - 1];
+    }
+
+    void add(Photo photo) {
+        if (albumCounts != null && albumCounts.merge(photo, 1, Integer::sum) > 1) {
+            return;
+        }
+        pending.add(photo);
+    }
+
+    /**
+     * Adds several photos at once, e.g. the photos of a batch upload.
+     */
+    void addAll(Collection<Photo> added) {
+        for (Photo photo : added) {
+            add(photo);
+        }
+    }
+
+    void remove(Photo photo) {
+        if (albumCounts != null) {
+            Integer count = albumCounts.get(photo);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                albumCounts.put(photo, count - 1);
+                return;
+            }
+            albumCounts.remove(photo);
+        }
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (pending.get(i) == photo) {
+                pending.remove(i);
+                return;
+            }
+        }
+        if (stale) {
+            settle();
+        }
+        long key = key(photo);
+        for (int i = lowerBound(key); i < size && keys[i] == key; i++) {
+            if (photos[i] == photo) {
+                photos[i] = null;
+                removed++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Brings the arrays up to date: sorts them again if a date changed, otherwise closes the
+     * gaps of removed photos and merges the added ones in.
+     */
+    private void settle() {
+        if (stale) {
+            List<Photo> all = new ArrayList<>(size() + 16);
+            for (int i = 0; i < size; i++) {
+                if (photos[i] != null) {
+                    all.add(photos[i]);
+                }
+            }
+            all.addAll(pending);
+            all.sort(BY_DATE);
+            pending.clear();
+            ensureCapacity(all.size());
+            size = all.size();
+            removed = 0;
+            for (int i = 0; i < size; i++) {
+                photos[i] = all.get(i);
+                keys[i] = key(photos[i]);
+            }
+            Arrays.fill(photos, size, photos.length, null);
+            stale = false;
+            return;
+        }
+        if (pending.isEmpty() && removed == 0) {
+            return;
+        }
+        if (removed > 0) {
+            int write = 0;
+            for (int read = 0; read < size; read++) {
+                if (photos[read] != null) {
+                    keys[write] = keys[read];
+                    photos[write++] = photos[read];
+                }
+            }
+            Arrays.fill(photos, write, size, null);
+            size = write;
+            removed = 0;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        pending.sort(BY_DATE);
+        int total = size + pending.size();
+        long[] newKeys = (total <= keys.length) ? keys : new long[Math.max(total, keys.length + keys.length / 2)];
+        Photo[] newPhotos = (total <= photos.length) ? photos : new Photo[newKeys.length];
+        // Merge from the back, so the arrays can be reused in place.
+        int read = size - 1;
+        int next = pending.size() - 1;
+        int write = total - 1;
+        while (next >= 0) {
+            Photo added = pending.get(next);
+            long addedKey = key(added);
+            if (read >= 0 && keys[read] > addedKey) {
+                newKeys[write] = keys[read];
+                newPhotos[write--] = photos[read--];
+            } else {
+                newKeys[write] = addedKey;
+                newPhotos[write--] = added;
+                next--;
+            }
+        }
+        if (newPhotos != photos) {
+            System.arraycopy(keys, 0, newKeys, 0, read + 1);
+            System.arraycopy(photos, 0, newPhotos, 0, read + 1);
+        }
+        keys = newKeys;
+        photos = newPhotos;
+        size = total;
+        pending.clear();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > keys.length) {
+            int length = Math.max(capacity, keys.length + keys.length / 2);
+            keys = new long[length];
+            photos = new Photo[length];
+        }
+    }
+
+    // The first position whose key is at least the given one.
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long key(Photo photo) {
+        return Math.floorDiv(photo.getDateMillis(), 1000L);
+    }
+}
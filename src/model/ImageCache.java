@@ -0,0 +1,235 @@
+package model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javafx.scene.image.Image;
+
+/**
+ * An in-memory cache of decoded photos, shared by every screen of the application.
+ * <p>
+ * Images are kept by photo path and the size they were decoded at, so a thumbnail and the
+ * full-size picture of the same photo are separate entries. The cache is bounded by the
+ * memory the decoded pixels take (four bytes per pixel), not by the number of images; when
+ * it is full, the images used least recently are dropped first. The budget is 1/4 of the
+ * maximum heap, at most 512 MB, and can be set in megabytes with the system property
+ * {@code photos.imageCache.mb}.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class ImageCache {
+
+    private static ImageCache instance;
+
+    private final long budgetBytes;
+    // In access order: the first entry is the one used least recently. Guarded by this.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long sizeBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static class Entry {
+        final Image image;
+        long bytes;
+
+        Entry(Image image, long bytes) {
+            this.image = image;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Returns the image cache of the application.
+     *
+     * @return the shared image cache
+     */
+    public static synchronized ImageCache getInstance() {
+        if (instance == null) {
+            long defaultMb = Math.min(512, Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024));
+            long mb = Long.getLong("photos.imageCache.mb", defaultMb);
+            instance = new ImageCache(Math.max(0, mb) * 1024 * 1024);
+        }
+        return instance;
+    }
+
+    /**
+     * Creates an image cache.
+     *
+     * @param budgetBytes the most memory the cached pixels may take, in bytes
+     */
+    public ImageCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns a cached image.
+     *
+     * @param path the photo's path
+     * @param size the size the image was decoded at, or 0 for full size
+     * @return the image, or null if it is not cached
+     */
+    public synchronized Image get(String path, double size) {
+        Entry entry = entries.get(key(path, size));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.image;
+    }
+
+    /**
+     * Returns a cached image without counting the lookup in the statistics, for callers that
+     * look the image up again through {@link PhotoService} if it is not cached.
+     *
+     * @param path the photo's path
+     * @param size the size the image was decoded at, or 0 for full size
+     * @return the image, or null if it is not cached
+     */
+    public synchronized Image peek(String path, double size) {
+        Entry entry = entries.get(key(path, size));
+        return (entry == null) ? null : entry.image;
+    }
+
+    /**
+     * Adds an image to the cache, dropping the least recently used images if the cache is full.
+     * Images that failed to load are not cached. An image that is still loading in the background
+     * is counted once it has loaded, and dropped if loading fails.
+     *
+     * @param path the photo's path
+     * @param size the size the image was decoded at, or 0 for full size
+     * @param image the decoded image
+     */
+    public void put(String path, double size, Image image) {
+        if (image == null || image.isError()) {
+            return;
+        }
+        String key = key(path, size);
+        Entry entry = new Entry(image, bytes(image));
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                sizeBytes -= old.bytes;
+            }
+            sizeBytes += entry.bytes;
+            trim();
+        }
+        if (image.getProgress() < 1) {
+            image.progressProperty().addListener((obs, oldValue, progress) -> {
+                if (progress.doubleValue() >= 1) {
+                    loaded(key, entry);
+                }
+            });
+            image.errorProperty().addListener((obs, oldValue, error) -> {
+                if (error) {
+                    loaded(key, entry);
+                }
+            });
+        }
+    }
+
+    // Called when a background image has finished loading: count its pixels, or drop it if it failed.
+    private synchronized void loaded(String key, Entry entry) {
+        if (entries.get(key) != entry) {
+            return;
+        }
+        if (entry.image.isError()) {
+            entries.remove(key);
+            sizeBytes -= entry.bytes;
+            return;
+        }
+        long bytes = bytes(entry.image);
+        sizeBytes += bytes - entry.bytes;
+        entry.bytes = bytes;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (sizeBytes > budgetBytes && eldest.hasNext()) {
+            sizeBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every cached image.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    /**
+     * Returns the memory the cached pixels take.
+     *
+     * @return the size of the cached images, in bytes
+     */
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Returns the number of cached images.
+     *
+     * @return the number of images
+     */
+    public synchronized int getImageCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns how many lookups found their image in the cache.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns how many lookups did not find their image in the cache.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the share of lookups that found their image in the cache.
+     *
+     * @return the hit ratio, between 0 and 1
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Returns how many images were dropped to stay within the budget.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Image cache: %d images, %.1f of %.1f MB, hit ratio %.1f%% (%d hits, %d misses), %d evictions",
+                entries.size(), sizeBytes / 1048576.0, budgetBytes / 1048576.0, getHitRatio() * 100,
+                hits, misses, evictions);
+    }
+
+    private static String key(String path, double size) {
+        return path + "@" + size;
+    }
+
+    private static long bytes(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+}
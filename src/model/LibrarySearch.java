@@ -0,0 +1,265 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import util.CompressedBitmap;
+
+/**
+ * A search through every album of a user, reporting each matching photo once together with
+ * the albums it is in.
+ * <p>
+ * If the user's {@link TagIndex} has been built, the query is answered from the user's indexes
+ * on the calling thread, and the hits are reported oldest first; the albums of each hit come
+ * from intersecting the matches with the bitmap of each album. Otherwise building the indexes
+ * would cost more than the search itself, so the albums are searched in parallel instead, each
+ * on a pool thread, and the hits of each album are reported as soon as it is done. Either way
+ * the hits arrive in batches, so a caller can show the first ones while the rest are found.
+ * </p>
+ * <p>
+ * Photos are the same if they are of the same file, like {@link Photo#equals}: a photo copied
+ * to several albums, or uploaded to several albums, is one hit. A hit lists only the albums whose
+ * copy of the photo matches. The callbacks are called on the searching threads. The model may
+ * change while the parallel search runs, so it never reads the live photos: it copies each
+ * album's photo list, and the caption and tags of every photo, up front on the calling thread.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public final class LibrarySearch {
+
+    // Hits per callback when answering from the indexes.
+    private static final int BATCH = 256;
+
+    /**
+     * A photo found by a search, and the albums it was found in.
+     */
+    public static final class Hit {
+        private final Photo photo;
+        private final List<Album> albums = new ArrayList<>(2);
+
+        private Hit(Photo photo) {
+            this.photo = photo;
+        }
+
+        /**
+         * Returns the photo found.
+         *
+         * @return the photo; the first matching copy if it is in several albums
+         */
+        public Photo getPhoto() {
+            return photo;
+        }
+
+        /**
+         * Returns the albums the photo was found in so far.
+         *
+         * @return a copy of the albums, in the order they were searched
+         */
+        public synchronized List<Album> getAlbums() {
+            return new ArrayList<>(albums);
+        }
+
+        private synchronized void addAlbum(Album album) {
+            if (!albums.contains(album)) {
+                albums.add(album);
+            }
+        }
+    }
+
+    private final User user;
+    private final PhotoQuery query;
+    private final Map<Photo, Hit> hits = new HashMap<>();
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    private volatile ExecutorService pool;
+
+    /**
+     * Prepares a search; nothing is searched until {@link #start} is called.
+     *
+     * @param user a loaded user
+     * @param query the query
+     */
+    public LibrarySearch(User user, PhotoQuery query) {
+        this.user = user;
+        this.query = query;
+    }
+
+    /**
+     * Starts the search. Must be called on the thread that changes the model.
+     *
+     * @param found called with each batch of new hits
+     * @param finished called once when every album has been searched, unless the search was cancelled
+     */
+    public void start(Consumer<List<Hit>> found, Runnable finished) {
+        if (user.peekTagIndex() != null) {
+            searchIndexes(found);
+            done = true;
+            if (!cancelled) {
+                finished.run();
+            }
+        } else {
+            searchAlbums(found, finished);
+        }
+    }
+
+    /**
+     * Stops the search; no more callbacks are made once the running ones return.
+     */
+    public void cancel() {
+        cancelled = true;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns whether every album has been searched.
+     *
+     * @return true once the search has finished
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the albums a photo found by this search was found in.
+     *
+     * @param photo a photo reported by this search
+     * @return the albums, or an empty list if the photo was not found
+     */
+    public List<Album> albumsOf(Photo photo) {
+        Hit hit;
+        synchronized (hits) {
+            hit = hits.get(photo);
+        }
+        return (hit == null) ? new ArrayList<>() : hit.getAlbums();
+    }
+
+    /**
+     * Returns the number of distinct photos found so far.
+     *
+     * @return the number of hits
+     */
+    public int hitCount() {
+        synchronized (hits) {
+            return hits.size();
+        }
+    }
+
+    private void searchIndexes(Consumer<List<Hit>> found) {
+        TagIndex index = user.getTagIndex();
+        CompressedBitmap ids = query.matchIds(user);
+        List<Photo> matches = new ArrayList<>(index.photosOf(ids));
+        matches.sort(Comparator.comparingLong(Photo::getDateMillis));
+        List<Hit> ordered = new ArrayList<>(matches.size());
+        synchronized (hits) {
+            for (Photo photo : matches) {
+                if (!hits.containsKey(photo)) {
+                    Hit hit = new Hit(photo);
+                    hits.put(photo, hit);
+                    ordered.add(hit);
+                }
+            }
+            // Only the albums whose own copy of the photo matched.
+            for (Album album : user.getAlbums()) {
+                CompressedBitmap.and(ids, index.inAlbum(album)).forEach(id -> hits.get(index.photo(id)).addAlbum(album));
+            }
+        }
+        for (int from = 0; from < ordered.size() && !cancelled; from += BATCH) {
+            found.accept(new ArrayList<>(ordered.subList(from, Math.min(ordered.size(), from + BATCH))));
+        }
+    }
+
+    private void searchAlbums(Consumer<List<Hit>> found, Runnable finished) {
+        List<Album> albums = new ArrayList<>(user.getAlbums());
+        List<List<Photo>> snapshots = new ArrayList<>(albums.size());
+        List<List<Photo>> copies = new ArrayList<>(albums.size());
+        // A photo in several albums is copied once.
+        Map<Photo, Photo> copied = new IdentityHashMap<>();
+        for (Album album : albums) {
+            List<Photo> photos = new ArrayList<>(album.getPhotos());
+            List<Photo> copy = new ArrayList<>(photos.size());
+            for (Photo photo : photos) {
+                copy.add(copied.computeIfAbsent(photo, LibrarySearch::copyOf));
+            }
+            snapshots.add(photos);
+            copies.add(copy);
+        }
+        if (albums.isEmpty()) {
+            done = true;
+            finished.run();
+            return;
+        }
+        int threads = Math.max(1, Math.min(albums.size(), Runtime.getRuntime().availableProcessors()));
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "search-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger remaining = new AtomicInteger(albums.size());
+        for (int i = 0; i < albums.size(); i++) {
+            Album album = albums.get(i);
+            List<Photo> photos = snapshots.get(i);
+            List<Photo> copy = copies.get(i);
+            pool.execute(() -> {
+                try {
+                    List<Hit> added = searchAlbum(album, photos, copy);
+                    if (!added.isEmpty() && !cancelled) {
+                        found.accept(added);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Error searching album " + album.getName() + ": " + e);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    done = true;
+                    pool.shutdown();
+                    if (!cancelled) {
+                        finished.run();
+                    }
+                }
+            });
+        }
+    }
+
+    // A copy of the fields a query reads. It has no owner, so setting them reports nothing.
+    private static Photo copyOf(Photo photo) {
+        Photo copy = new Photo(photo.getPath(), photo.getDateMillis(), null);
+        copy.setCaption(photo.getCaption());
+        copy.setTags(new ArrayList<>(photo.getTags()));
+        return copy;
+    }
+
+    // The new hits of one album, matched against the copies of its photos but reporting the
+    // photos themselves; photos already found in another album only gain this album.
+    private List<Hit> searchAlbum(Album album, List<Photo> photos, List<Photo> copies) {
+        List<Hit> added = new ArrayList<>();
+        for (int i = 0; i < photos.size(); i++) {
+            if (cancelled) {
+                break;
+            }
+            if (query.matches(copies.get(i))) {
+                Photo photo = photos.get(i);
+                Hit hit;
+                synchronized (hits) {
+                    hit = hits.get(photo);
+                    if (hit == null) {
+                        hit = new Hit(photo);
+                        hits.put(photo, hit);
+                        added.add(hit);
+                    }
+                }
+                hit.addAlbum(album);
+            }
+        }
+        return added;
+    }
+}
@@ -0,0 +1,126 @@
+package model;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Dispatches model mutation events to the registered {@link ModelListener}s.
+ * <p>
+ * The model classes fire an event right after they change, so listeners such as
+ * the persistence journal always observe the new state. Events are only fired for
+ * objects that are attached to a user; a Photo or Album that has not been added
+ * to a user yet is not part of the library and changes to it are not reported.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public final class ModelEvents {
+
+    private static final List<ModelListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Set while the persistence layer rebuilds the model, so replayed changes are not reported again.
+    private static final ThreadLocal<Boolean> silent = ThreadLocal.withInitial(() -> false);
+
+    private ModelEvents() {
+    }
+
+    /**
+     * Registers a listener.
+     *
+     * @param listener the listener to add
+     */
+    public static void addListener(ModelListener listener) {
+        if (listener != null && !listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @param listener the listener to remove
+     */
+    public static void removeListener(ModelListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Runs the given action without notifying any listener of the changes it makes
+     * on the current thread.
+     *
+     * @param action the action to run
+     */
+    public static void runSilently(Runnable action) {
+        boolean previous = silent.get();
+        silent.set(true);
+        try {
+            action.run();
+        } finally {
+            silent.set(previous);
+        }
+    }
+
+    private static boolean muted() {
+        return listeners.isEmpty() || silent.get();
+    }
+
+    static void fireUserAdded(User user) {
+        if (muted()) return;
+        for (ModelListener l : listeners) l.userAdded(user);
+    }
+
+    static void fireUserDeleted(User user) {
+        if (muted()) return;
+        for (ModelListener l : listeners) l.userDeleted(user);
+    }
+
+    static void fireAlbumAdded(User user, Album album) {
+        if (muted()) return;
+        for (ModelListener l : listeners) l.albumAdded(user, album);
+    }
+
+    static void fireAlbumRemoved(User user, Album album) {
+        if (muted()) return;
+        for (ModelListener l : listeners) l.albumRemoved(user, album);
+    }
+
+    static void fireAlbumRenamed(Album album, String oldName) {
+        if (muted() || album.getOwner() == null) return;
+        for (ModelListener l : listeners) l.albumRenamed(album, oldName);
+    }
+
+    static void firePhotoAdded(Album album, Photo photo) {
+        if (muted() || album.getOwner() == null) return;
+        for (ModelListener l : listeners) l.photoAdded(album, photo);
+    }
+
+    static void firePhotoRemoved(Album album, Photo photo) {
+        if (muted() || album.getOwner() == null) return;
+        for (ModelListener l : listeners) l.photoRemoved(album, photo);
+    }
+
+    static void fireCaptionChanged(Photo photo) {
+        if (muted() || photo.getOwner() == null) return;
+        for (ModelListener l : listeners) l.captionChanged(photo);
+    }
+
+    static void fireMetadataChanged(Photo photo) {
+        if (muted() || photo.getOwner() == null) return;
+        for (ModelListener l : listeners) l.metadataChanged(photo);
+    }
+
+    static void fireTagAdded(Photo photo, Tag tag) {
+        if (muted() || photo.getOwner() == null) return;
+        for (ModelListener l : listeners) l.tagAdded(photo, tag);
+    }
+
+    static void fireTagRemoved(Photo photo, Tag tag) {
+        if (muted() || photo.getOwner() == null) return;
+        for (ModelListener l : listeners) l.tagRemoved(photo, tag);
+    }
+
+    static void fireTagsReplaced(Photo photo, List<Tag> oldTags) {
+        if (muted() || photo.getOwner() == null) return;
+        for (ModelListener l : listeners) l.tagsReplaced(photo, oldTags);
+    }
+}
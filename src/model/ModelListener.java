@@ -0,0 +1,108 @@
+package model;
+
+import java.util.List;
+
+/**
+ * Receives notifications after the user/album/photo model has been changed.
+ * Every method has an empty default implementation so that a listener only
+ * needs to override the events it cares about.
+ * <p>
+ * Listeners are registered with {@link ModelEvents}.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public interface ModelListener {
+
+    /**
+     * Called after a user has been added to the admin's user list.
+     *
+     * @param user the new user
+     */
+    default void userAdded(User user) {}
+
+    /**
+     * Called after a user has been deleted by the admin.
+     *
+     * @param user the deleted user
+     */
+    default void userDeleted(User user) {}
+
+    /**
+     * Called after an album has been added to a user.
+     *
+     * @param user the owner of the album
+     * @param album the new album
+     */
+    default void albumAdded(User user, Album album) {}
+
+    /**
+     * Called after an album has been removed from a user.
+     *
+     * @param user the former owner of the album
+     * @param album the removed album
+     */
+    default void albumRemoved(User user, Album album) {}
+
+    /**
+     * Called after an album has been renamed.
+     *
+     * @param album the album, already carrying its new name
+     * @param oldName the name the album had before
+     */
+    default void albumRenamed(Album album, String oldName) {}
+
+    /**
+     * Called after a photo has been added to an album.
+     *
+     * @param album the album
+     * @param photo the added photo
+     */
+    default void photoAdded(Album album, Photo photo) {}
+
+    /**
+     * Called after a photo has been removed from an album.
+     *
+     * @param album the album
+     * @param photo the removed photo
+     */
+    default void photoRemoved(Album album, Photo photo) {}
+
+    /**
+     * Called after the caption of a photo has changed.
+     *
+     * @param photo the photo
+     */
+    default void captionChanged(Photo photo) {}
+
+    /**
+     * Called after the date, size or orientation of a photo has been read from its file.
+     *
+     * @param photo the photo, already carrying its new values
+     */
+    default void metadataChanged(Photo photo) {}
+
+    /**
+     * Called after a single tag has been added to a photo.
+     *
+     * @param photo the photo
+     * @param tag the added tag
+     */
+    default void tagAdded(Photo photo, Tag tag) {}
+
+    /**
+     * Called after a single tag has been removed from a photo.
+     *
+     * @param photo the photo
+     * @param tag the removed tag
+     */
+    default void tagRemoved(Photo photo, Tag tag) {}
+
+    /**
+     * Called after the whole tag list of a photo has been replaced.
+     *
+     * @param photo the photo, already carrying its new tags
+     * @param oldTags the tags the photo had before
+     */
+    default void tagsReplaced(Photo photo, List<Tag> oldTags) {}
+}
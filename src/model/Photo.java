@@ -1,6 +1,10 @@
 package model;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -8,18 +12,35 @@ import java.util.Objects;
 
 /**
  * Represents a photo in the application.
- * A photo is associated with a file path, a date taken (using the file's last modified date),
- * an optional caption, and a list of tags.
+ * A photo is associated with a file path, a date taken (the capture date recorded in the file,
+ * or else the file's last modified date), its size and orientation, an optional caption, and a list of tags.
  * 
  * @author Elvis Vasquez & Tyler Gehringer
  */
 public class Photo implements Serializable {
     private static final long serialVersionUID = 1L;
     
+    // Java serialization keeps the original layout with a Calendar field, so libraries
+    // saved by older versions can still be read; in memory the date is a plain long.
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("path", String.class),
+        new ObjectStreamField("date_taken", Calendar.class),
+        new ObjectStreamField("caption", String.class),
+        new ObjectStreamField("tags", ArrayList.class),
+        new ObjectStreamField("name", String.class)
+    };
+    
     private String path;
-    private Calendar date_taken;
+    private String name; // original file name; null if it is the last part of the path
+    private long dateTaken; // epoch milliseconds, truncated to whole seconds
+    // Read from the file's headers; 0 until they have been read.
+    private int width;
+    private int height;
+    private int orientation;
     private String caption = ""; // Default caption is empty.
     private ArrayList<Tag> tags;  // Stores tags in "type:value" format.
+    // The user whose albums hold this photo; rebuilt after loading, never serialized.
+    private transient User owner;
     
     /**
      * Constructs a Photo object given its file path.
@@ -28,15 +49,53 @@ public class Photo implements Serializable {
      * @param path the file path of the photo.
      */
     public Photo(String path) {
+        this(path, new File(path).lastModified());
+    }
+    
+    /**
+     * Constructs a Photo object with a known date, without touching the file.
+     * Used when the photo is rebuilt from persisted data.
+     * 
+     * @param path the file path of the photo.
+     * @param dateTakenMillis the date the photo was taken, in epoch milliseconds.
+     */
+    public Photo(String path, long dateTakenMillis) {
+        this(path, dateTakenMillis, null);
+    }
+    
+    /**
+     * Constructs a Photo object whose file is stored under a different name than the one
+     * the user knows it by, such as a photo in the blob store.
+     * 
+     * @param path the file path of the photo.
+     * @param dateTakenMillis the date the photo was taken, in epoch milliseconds.
+     * @param name the original file name, or null to use the last part of the path.
+     */
+    public Photo(String path, long dateTakenMillis, String name) {
         this.path = path;
-        File file = new File(path);
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(file.lastModified());
-        cal.set(Calendar.MILLISECOND, 0);
-        this.date_taken = cal;
+        this.name = (name == null || name.isEmpty() || name.equals(new File(path).getName())) ? null : name;
+        this.dateTaken = dateTakenMillis - Math.floorMod(dateTakenMillis, 1000L);
         this.tags = new ArrayList<>();  // Initialize the tags list.
     }
     
+    /**
+     * Constructs a Photo object together with what was read from its file's headers, such as
+     * a photo being uploaded. Unlike {@link #setMetadata}, this reports no change.
+     * 
+     * @param path the file path of the photo.
+     * @param dateTakenMillis the date the photo was taken, in epoch milliseconds.
+     * @param name the original file name, or null to use the last part of the path.
+     * @param width the width of the stored image, in pixels.
+     * @param height the height of the stored image, in pixels.
+     * @param orientation the EXIF orientation, 1 to 8.
+     */
+    public Photo(String path, long dateTakenMillis, String name, int width, int height, int orientation) {
+        this(path, dateTakenMillis, name);
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+    
     /**
      * Returns the file path of the photo.
      * 
@@ -46,14 +105,90 @@ public class Photo implements Serializable {
         return this.path;
     }
     
+    /**
+     * Returns the photo's file name as the user knows it.
+     * 
+     * @return the original file name.
+     */
+    public String getName() {
+        return (name != null) ? name : new File(path).getName();
+    }
+    
     /**
      * Returns the date the photo was taken.
-     * This is based on the last modified date of the file.
+     * This is the capture date recorded in the file, or the file's last modified date if it has none.
      * 
-     * @return a Calendar object representing the date.
+     * @return a new Calendar object representing the date.
      */
     public Calendar getDate() {
-        return this.date_taken;
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(dateTaken);
+        return cal;
+    }
+    
+    /**
+     * Returns the date the photo was taken without allocating a Calendar.
+     * 
+     * @return the date in epoch milliseconds.
+     */
+    public long getDateMillis() {
+        return dateTaken;
+    }
+    
+    /**
+     * Returns the width of the stored image, before it is turned by its orientation.
+     * 
+     * @return the width in pixels, or 0 if the file's headers have not been read.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Returns the height of the stored image, before it is turned by its orientation.
+     * 
+     * @return the height in pixels, or 0 if the file's headers have not been read.
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Returns how the image must be turned to be shown upright, as an EXIF orientation value.
+     * 
+     * @return the orientation from 1 (upright) to 8, or 0 if the file's headers have not been read.
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+    
+    /**
+     * Returns whether the photo's date, size and orientation have been read from its file.
+     * 
+     * @return true if they have.
+     */
+    public boolean hasMetadata() {
+        return orientation != 0;
+    }
+    
+    /**
+     * Sets what was read from the photo file's headers.
+     * 
+     * @param dateTakenMillis the date the photo was taken, in epoch milliseconds.
+     * @param width the width of the stored image, in pixels.
+     * @param height the height of the stored image, in pixels.
+     * @param orientation the EXIF orientation, 1 to 8.
+     */
+    public void setMetadata(long dateTakenMillis, int width, int height, int orientation) {
+        long date = dateTakenMillis - Math.floorMod(dateTakenMillis, 1000L);
+        if (date == dateTaken && width == this.width && height == this.height && orientation == this.orientation) {
+            return;
+        }
+        this.dateTaken = date;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        ModelEvents.fireMetadataChanged(this);
     }
     
     /**
@@ -71,7 +206,11 @@ public class Photo implements Serializable {
      * @param caption the new caption.
      */
     public void setCaption(String caption) {
+        if (Objects.equals(this.caption, caption)) {
+            return;
+        }
         this.caption = caption;
+        ModelEvents.fireCaptionChanged(this);
     }
     
     /**
@@ -91,6 +230,15 @@ public class Photo implements Serializable {
         return tagStrings;
     }
     
+    /**
+     * Adds a tag to the photo, enforcing the constraints of the shared TagTypeManager.
+     * @param tag the Tag object to add.
+     * @return true if added, false otherwise.
+     */
+    public boolean addTag(Tag tag) {
+        return addTag(tag, util.TagTypeManager.getInstance());
+    }
+    
     /**
      * Adds a tag to the photo using the provided TagTypeManager to enforce constraints.
      * @param tag the Tag object to add.
@@ -113,6 +261,7 @@ public class Photo implements Serializable {
         }
         tags.add(tag);
         System.out.println("Tag " + tag + " added.");
+        ModelEvents.fireTagAdded(this, tag);
         return true;
     }
     
@@ -125,6 +274,7 @@ public class Photo implements Serializable {
         if (tags.contains(tag)) {
             tags.remove(tag);
             System.out.println("Tag " + tag + " removed.");
+            ModelEvents.fireTagRemoved(this, tag);
             return true;
         } else {
             System.out.println("Tag " + tag + " not found.");
@@ -139,12 +289,51 @@ public class Photo implements Serializable {
      * @param tags an ArrayList of tags to be assigned.
      */
     public void setTags(ArrayList<Tag> tags) {
+        ArrayList<Tag> oldTags = this.tags;
         this.tags = tags;
+        ModelEvents.fireTagsReplaced(this, oldTags);
+    }
+    
+    /**
+     * Returns the user whose albums contain this photo.
+     * 
+     * @return the owning user, or null if the photo has not been added to a user's album yet.
+     */
+    public User getOwner() {
+        return owner;
+    }
+    
+    void setOwner(User owner) {
+        this.owner = owner;
     }
     
     @Override
     public String toString() {
-        return this.path + " was taken on " + this.date_taken.getTime();
+        return this.path + " was taken on " + new java.util.Date(dateTaken);
+    }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("path", path);
+        fields.put("date_taken", getDate());
+        fields.put("caption", caption);
+        fields.put("tags", tags);
+        fields.put("name", name);
+        out.writeFields();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        path = (String) fields.get("path", null);
+        Calendar date = (Calendar) fields.get("date_taken", null);
+        dateTaken = (date != null) ? date.getTimeInMillis() : 0L;
+        caption = (String) fields.get("caption", "");
+        tags = (ArrayList<Tag>) fields.get("tags", null);
+        name = (String) fields.get("name", null);
+        if (tags == null) {
+            tags = new ArrayList<>();
+        }
     }
     
     @Override
@@ -0,0 +1,910 @@
+package model;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import util.CompressedBitmap;
+
+/**
+ * A photo search: tag, date and caption conditions combined with AND, OR and NOT.
+ * <p>
+ * A query is parsed from text, see {@link #parse(String)}, or put together with the factory
+ * methods. The text form is:
+ * </p>
+ * <pre>
+ *   person=alice AND (location="New York" OR location=Boston)
+ *   date:2024-06-01..2024-08-31 NOT person=bob
+ *   caption:"birthday cake" OR beach
+ * </pre>
+ * <ul>
+ * <li>{@code type=value} matches a tag, ignoring case;</li>
+ * <li>{@code date:from..to} matches the days from and to, inclusive, in the system time zone.
+ * Either end may be left out; {@code date:2024} and {@code date:2024-06} match a year or a month;</li>
+ * <li>{@code caption:text}, or just a word or a quoted phrase, matches photos whose caption
+ * contains the text, ignoring case;</li>
+ * <li>{@code NOT} binds tightest, then {@code AND}, then {@code OR}; terms written next to each
+ * other are joined by AND. The keywords and the field names are not case sensitive.</li>
+ * </ul>
+ * <p>
+ * A search is answered from the owner's {@link TagIndex} instead of testing every photo against
+ * every condition. Tag and date conditions are bitmaps of photo ids there, so AND, OR and NOT are
+ * intersections, unions and differences of bitmaps, see {@link CompressedBitmap}, and
+ * {@link #count(User)} is the size of the result without looking at any photo. The conditions of
+ * an AND are evaluated from the fewest matches up and stop as soon as nothing is left; an OR stops
+ * as soon as everything matches. Caption conditions have no index, so they are tried last and
+ * only test the photos the other conditions left.
+ * </p>
+ * <p>
+ * Queries are immutable. A search reads the model and its indexes, so it must run on the thread
+ * that changes the model; queries themselves do not depend on JavaFX and can be used without a UI.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public final class PhotoQuery {
+
+    private final Node root;
+
+    private PhotoQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Parses a query.
+     *
+     * @param text the query, in the form described above
+     * @return the query
+     * @throws IllegalArgumentException if the text is empty or not a valid query; the message
+     *         says what is wrong and where
+     */
+    public static PhotoQuery parse(String text) {
+        return new PhotoQuery(new Parser(text).parse());
+    }
+
+    /**
+     * Returns a query that matches photos carrying a tag, ignoring case.
+     *
+     * @param tagType the tag type
+     * @param tagValue the tag value
+     * @return the query
+     */
+    public static PhotoQuery tag(String tagType, String tagValue) {
+        return new PhotoQuery(new TagNode(tagType, tagValue));
+    }
+
+    /**
+     * Returns a query that matches photos taken on the days of a date range, in the system time zone.
+     *
+     * @param start the first day, inclusive, or null for no lower bound
+     * @param end the last day, inclusive, or null for no upper bound
+     * @return the query
+     */
+    public static PhotoQuery taken(LocalDate start, LocalDate end) {
+        return new PhotoQuery(new DateNode(start, end));
+    }
+
+    /**
+     * Returns a query that matches photos whose caption contains a text, ignoring case.
+     *
+     * @param text the text
+     * @return the query
+     */
+    public static PhotoQuery caption(String text) {
+        return new PhotoQuery(new CaptionNode(text));
+    }
+
+    /**
+     * Returns a query that matches the photos every one of the given queries matches.
+     *
+     * @param queries the queries, at least one
+     * @return the query
+     */
+    public static PhotoQuery and(PhotoQuery... queries) {
+        return (queries.length == 1) ? queries[0] : new PhotoQuery(new AndNode(nodesOf(queries)));
+    }
+
+    /**
+     * Returns a query that matches the photos any of the given queries matches.
+     *
+     * @param queries the queries, at least one
+     * @return the query
+     */
+    public static PhotoQuery or(PhotoQuery... queries) {
+        return (queries.length == 1) ? queries[0] : new PhotoQuery(new OrNode(nodesOf(queries)));
+    }
+
+    /**
+     * Returns a query that matches the photos the given query does not.
+     *
+     * @param query the query
+     * @return the query
+     */
+    public static PhotoQuery not(PhotoQuery query) {
+        return new PhotoQuery(new NotNode(query.root));
+    }
+
+    /**
+     * Searches an album, using the owner's indexes if the owner is loaded.
+     *
+     * @param album the album
+     * @return the matching photos, in the order of the album
+     */
+    public List<Photo> search(Album album) {
+        Scope scope = Scope.of(album);
+        return inOrder(album.getPhotos(), scope, evaluate(scope));
+    }
+
+    /**
+     * Searches all of a user's albums, using the user's indexes.
+     *
+     * @param user a loaded user
+     * @return the matching photos, each once, oldest first
+     */
+    public List<Photo> search(User user) {
+        TagIndex index = user.getTagIndex();
+        List<Photo> found = new ArrayList<>(index.photosOf(evaluate(Scope.of(index))));
+        found.sort(Comparator.comparingLong(Photo::getDateMillis));
+        return found;
+    }
+
+    /**
+     * Searches a list of photos, e.g. earlier search results. The owner's indexes are used if
+     * the photos all belong to a loaded user.
+     *
+     * @param photos the photos
+     * @return the matching photos, in the order of the list
+     */
+    public List<Photo> search(List<Photo> photos) {
+        Scope scope = Scope.of(photos);
+        return inOrder(photos, scope, evaluate(scope));
+    }
+
+    /**
+     * Returns the number of photos in an album this query matches, without collecting them.
+     *
+     * @param album the album
+     * @return the number of matching photos
+     */
+    public int count(Album album) {
+        return evaluate(Scope.of(album)).cardinality();
+    }
+
+    /**
+     * Returns the number of photos in a user's albums this query matches, each counted once,
+     * without collecting them.
+     *
+     * @param user a loaded user
+     * @return the number of matching photos
+     */
+    public int count(User user) {
+        return evaluate(Scope.of(user.getTagIndex())).cardinality();
+    }
+
+    /**
+     * Returns whether a single photo matches this query, without using any index.
+     *
+     * @param photo the photo
+     * @return true if the photo matches
+     */
+    public boolean matches(Photo photo) {
+        return root.matches(photo);
+    }
+
+    /**
+     * Returns the query in the text form, fully parenthesized; parsing it gives the same query.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        root.write(text);
+        return text.toString();
+    }
+
+    /**
+     * Returns the ids, in the user's {@link TagIndex}, of the photos in the user's albums this
+     * query matches. The bitmap may belong to the index and must not be changed.
+     */
+    CompressedBitmap matchIds(User user) {
+        return evaluate(Scope.of(user.getTagIndex()));
+    }
+
+    private CompressedBitmap evaluate(Scope scope) {
+        if (scope.universe.isEmpty()) {
+            return scope.universe;
+        }
+        return root.select(scope);
+    }
+
+    private static List<Photo> inOrder(Collection<Photo> photos, Scope scope, CompressedBitmap matches) {
+        List<Photo> result = new ArrayList<>(Math.min(photos.size(), matches.cardinality()));
+        if (matches.isEmpty()) {
+            return result;
+        }
+        // Looking the photos up in a set of the matches is cheaper than looking up their ids.
+        Set<Photo> found = scope.index.photosOf(matches);
+        for (Photo photo : photos) {
+            if (found.contains(photo)) {
+                result.add(photo);
+            }
+        }
+        return result;
+    }
+
+    private static Node[] nodesOf(PhotoQuery[] queries) {
+        if (queries.length == 0) {
+            throw new IllegalArgumentException("At least one query is needed");
+        }
+        Node[] nodes = new Node[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            nodes[i] = queries[i].root;
+        }
+        return nodes;
+    }
+
+    /**
+     * The photos a search is restricted to, as ids in a tag index. The index of the owner is used
+     * when the photos are all in a loaded user's albums; otherwise a temporary index is built
+     * for the search.
+     */
+    private static final class Scope {
+        final TagIndex index;
+        // Must not be changed; may belong to the index.
+        final CompressedBitmap universe;
+        // Whether the universe is every photo of the index, so that its bitmaps need no trimming.
+        private final boolean whole;
+
+        private Scope(TagIndex index, CompressedBitmap universe) {
+            this.index = index;
+            this.universe = universe;
+            this.whole = (universe == index.all());
+        }
+
+        static Scope of(TagIndex index) {
+            return new Scope(index, index.all());
+        }
+
+        static Scope of(Album album) {
+            User owner = album.getOwner();
+            if (owner != null && owner.isLoaded()) {
+                TagIndex index = owner.getTagIndex();
+                CompressedBitmap members = index.inAlbum(album);
+                // Not so for an album that has not been added to the owner yet.
+                if (members.cardinality() == album.getPhotos().size()) {
+                    return new Scope(index, members);
+                }
+            }
+            return of(new TagIndex(album.getPhotos()));
+        }
+
+        static Scope of(List<Photo> photos) {
+            User owner = photos.isEmpty() ? null : photos.get(0).getOwner();
+            if (owner != null && owner.isLoaded()) {
+                TagIndex index = owner.getTagIndex();
+                CompressedBitmap ids = new CompressedBitmap();
+                for (Photo photo : photos) {
+                    int id = index.idOf(photo);
+                    if (id < 0) {
+                        ids = null;
+                        break;
+                    }
+                    ids.add(id);
+                }
+                if (ids != null) {
+                    return new Scope(index, ids);
+                }
+            }
+            return of(new TagIndex(photos));
+        }
+
+        int size() {
+            return universe.cardinality();
+        }
+
+        // Restricts a bitmap of the index to the scope.
+        CompressedBitmap trim(CompressedBitmap ids) {
+            return whole ? ids : CompressedBitmap.and(ids, universe);
+        }
+
+        int trimmedCardinality(CompressedBitmap ids) {
+            return whole ? ids.cardinality() : CompressedBitmap.andCardinality(ids, universe);
+        }
+
+        // The photos of the given ids that pass a condition, checked one by one.
+        CompressedBitmap filter(CompressedBitmap ids, Node node) {
+            CompressedBitmap result = new CompressedBitmap();
+            ids.forEach(id -> {
+                if (node.matches(index.photo(id))) {
+                    result.add(id);
+                }
+            });
+            return result;
+        }
+    }
+
+    /**
+     * A node of the query tree.
+     */
+    private abstract static class Node {
+        /** Returns about how many photos of the scope match, as cheaply as possible. */
+        abstract int estimate(Scope scope);
+
+        /** Returns the ids of the photos of the scope that match; the bitmap must not be changed. */
+        abstract CompressedBitmap select(Scope scope);
+
+        /** Returns whether the node is answered from the index rather than photo by photo. */
+        abstract boolean indexed();
+
+        /** Returns whether one photo matches. */
+        abstract boolean matches(Photo photo);
+
+        abstract void write(StringBuilder text);
+    }
+
+    private static final class TagNode extends Node {
+        private final String type;
+        private final String value;
+        private final Tag tag;
+
+        TagNode(String type, String value) {
+            this.type = type;
+            this.value = value;
+            this.tag = new Tag(type, value);
+        }
+
+        @Override
+        int estimate(Scope scope) {
+            return scope.trimmedCardinality(scope.index.tagged(type, value));
+        }
+
+        @Override
+        CompressedBitmap select(Scope scope) {
+            return scope.trim(scope.index.tagged(type, value));
+        }
+
+        @Override
+        boolean indexed() {
+            return true;
+        }
+
+        @Override
+        boolean matches(Photo photo) {
+            return photo.getTags().contains(tag);
+        }
+
+        @Override
+        void write(StringBuilder text) {
+            writeValue(text, type);
+            text.append('=');
+            writeValue(text, value);
+        }
+    }
+
+    private static final class DateNode extends Node {
+        private final LocalDate start;
+        private final LocalDate end;
+        private final long fromMillis;
+        private final long toMillis;
+
+        DateNode(LocalDate start, LocalDate end) {
+            if (start != null && end != null && start.isAfter(end)) {
+                throw new IllegalArgumentException("The date range ends before it starts: " + start + ".." + end);
+            }
+            ZoneId zone = ZoneId.systemDefault();
+            this.start = start;
+            this.end = end;
+            this.fromMillis = (start == null) ? Long.MIN_VALUE : start.atStartOfDay(zone).toInstant().toEpochMilli();
+            this.toMillis = (end == null) ? Long.MAX_VALUE
+                    : end.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+        }
+
+        @Override
+        int estimate(Scope scope) {
+            // The photos of the date buckets the range touches.
+            return Math.min(scope.size(), scope.index.estimateTaken(fromMillis, toMillis));
+        }
+
+        @Override
+        CompressedBitmap select(Scope scope) {
+            return scope.trim(scope.index.taken(fromMillis, toMillis));
+        }
+
+        @Override
+        boolean indexed() {
+            return true;
+        }
+
+        @Override
+        boolean matches(Photo photo) {
+            long date = photo.getDateMillis();
+            return date >= fromMillis && date <= toMillis;
+        }
+
+        @Override
+        void write(StringBuilder text) {
+            text.append("date:");
+            if (start != null) {
+                text.append(start);
+            }
+            text.append("..");
+            if (end != null) {
+                text.append(end);
+            }
+        }
+    }
+
+    private static final class CaptionNode extends Node {
+        private final String text;
+        private final String lowerCase;
+
+        CaptionNode(String text) {
+            this.text = text;
+            this.lowerCase = text.toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        int estimate(Scope scope) {
+            // No index: every photo has to be looked at.
+            return scope.size();
+        }
+
+        @Override
+        CompressedBitmap select(Scope scope) {
+            return scope.filter(scope.universe, this);
+        }
+
+        @Override
+        boolean indexed() {
+            return false;
+        }
+
+        @Override
+        boolean matches(Photo photo) {
+            String caption = photo.getCaption();
+            return caption != null && caption.toLowerCase(Locale.ROOT).contains(lowerCase);
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            out.append("caption:");
+            writeValue(out, text);
+        }
+    }
+
+    private static final class NotNode extends Node {
+        private final Node child;
+
+        NotNode(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        int estimate(Scope scope) {
+            return scope.size() - child.estimate(scope);
+        }
+
+        @Override
+        CompressedBitmap select(Scope scope) {
+            return CompressedBitmap.andNot(scope.universe, child.select(scope));
+        }
+
+        @Override
+        boolean indexed() {
+            return child.indexed();
+        }
+
+        @Override
+        boolean matches(Photo photo) {
+            return !child.matches(photo);
+        }
+
+        @Override
+        void write(StringBuilder text) {
+            text.append("NOT ");
+            child.write(text);
+        }
+    }
+
+    private static final class AndNode extends Node {
+        private final Node[] children;
+
+        AndNode(Node[] children) {
+            this.children = children;
+        }
+
+        @Override
+        int estimate(Scope scope) {
+            int estimate = scope.size();
+            for (Node child : children) {
+                estimate = Math.min(estimate, child.estimate(scope));
+            }
+            return estimate;
+        }
+
+        @Override
+        CompressedBitmap select(Scope scope) {
+            // The most selective indexed condition first; the others only test what is left.
+            int[] estimates = new int[children.length];
+            Integer[] order = new Integer[children.length];
+            for (int i = 0; i < children.length; i++) {
+                estimates[i] = children[i].estimate(scope);
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing((Integer i) -> !children[i].indexed())
+                    .thenComparingInt(i -> estimates[i]));
+            CompressedBitmap result = children[order[0]].select(scope);
+            for (int i = 1; i < order.length && !result.isEmpty(); i++) {
+                Node child = children[order[i]];
+                if (child.indexed()) {
+                    result = CompressedBitmap.and(result, child.select(scope));
+                } else {
+                    // Only the photos left are tested, not the whole scope.
+                    result = scope.filter(result, child);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        boolean indexed() {
+            for (Node child : children) {
+                if (!child.indexed()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean matches(Photo photo) {
+            for (Node child : children) {
+                if (!child.matches(photo)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void write(StringBuilder text) {
+            writeList(text, children, " AND ");
+        }
+    }
+
+    private static final class OrNode extends Node {
+        private final Node[] children;
+
+        OrNode(Node[] children) {
+            this.children = children;
+        }
+
+        @Override
+        int estimate(Scope scope) {
+            long estimate = 0;
+            for (Node child : children) {
+                estimate += child.estimate(scope);
+            }
+            return (int) Math.min(scope.size(), estimate);
+        }
+
+        @Override
+        CompressedBitmap select(Scope scope) {
+            // The broadest condition first, since it is the most likely to match everything.
+            Node[] ordered = children.clone();
+            Arrays.sort(ordered, Comparator.comparingInt((Node child) -> child.estimate(scope)).reversed());
+            int size = scope.size();
+            CompressedBitmap result = new CompressedBitmap();
+            for (Node child : ordered) {
+                if (result.cardinality() == size) {
+                    break;
+                }
+                result.addAll(child.select(scope));
+            }
+            return result;
+        }
+
+        @Override
+        boolean indexed() {
+            for (Node child : children) {
+                if (!child.indexed()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean matches(Photo photo) {
+            for (Node child : children) {
+                if (child.matches(photo)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void write(StringBuilder text) {
+            writeList(text, children, " OR ");
+        }
+    }
+
+    private static void writeList(StringBuilder text, Node[] children, String operator) {
+        text.append('(');
+        for (int i = 0; i < children.length; i++) {
+            if (i > 0) {
+                text.append(operator);
+            }
+            children[i].write(text);
+        }
+        text.append(')');
+    }
+
+    // Writes a word as is, and anything that would not parse back as one word in quotes.
+    private static void writeValue(StringBuilder text, String value) {
+        boolean plain = !value.isEmpty() && !Parser.isReserved(value);
+        for (int i = 0; i < value.length() && plain; i++) {
+            plain = Parser.isWordChar(value.charAt(i));
+        }
+        if (plain) {
+            text.append(value);
+            return;
+        }
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\');
+            }
+            text.append(c);
+        }
+        text.append('"');
+    }
+
+    /**
+     * A recursive descent parser for the text form. Tokens are read as they are needed.
+     */
+    private static final class Parser {
+        private static final int END = 0;
+        private static final int WORD = 1;
+        private static final int QUOTED = 2;
+        private static final int OPEN = 3;
+        private static final int CLOSE = 4;
+        private static final int EQUALS = 5;
+        private static final int COLON = 6;
+
+        private final String text;
+        private int pos;
+        // The current token.
+        private int kind;
+        private String token;
+        private int tokenStart;
+
+        Parser(String text) {
+            this.text = text;
+            advance();
+        }
+
+        static boolean isWordChar(char c) {
+            return !Character.isWhitespace(c) && c != '(' && c != ')' && c != '=' && c != ':' && c != '"';
+        }
+
+        static boolean isReserved(String word) {
+            return word.equalsIgnoreCase("AND") || word.equalsIgnoreCase("OR") || word.equalsIgnoreCase("NOT");
+        }
+
+        Node parse() {
+            if (kind == END) {
+                throw new IllegalArgumentException("The query is empty");
+            }
+            Node node = parseOr();
+            if (kind != END) {
+                throw error("Unexpected " + describe());
+            }
+            return node;
+        }
+
+        private Node parseOr() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(parseAnd());
+            while (isKeyword("OR")) {
+                advance();
+                nodes.add(parseAnd());
+            }
+            return (nodes.size() == 1) ? nodes.get(0) : new OrNode(nodes.toArray(new Node[0]));
+        }
+
+        private Node parseAnd() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(parseUnary());
+            while (true) {
+                if (isKeyword("AND")) {
+                    advance();
+                } else if (kind == END || kind == CLOSE || isKeyword("OR")) {
+                    break;
+                }
+                nodes.add(parseUnary());
+            }
+            return (nodes.size() == 1) ? nodes.get(0) : new AndNode(nodes.toArray(new Node[0]));
+        }
+
+        private Node parseUnary() {
+            if (isKeyword("NOT")) {
+                advance();
+                return new NotNode(parseUnary());
+            }
+            return parsePrimary();
+        }
+
+        private Node parsePrimary() {
+            if (kind == OPEN) {
+                advance();
+                Node node = parseOr();
+                if (kind != CLOSE) {
+                    throw error("Expected ')' but found " + describe());
+                }
+                advance();
+                return node;
+            }
+            if ((kind != WORD && kind != QUOTED) || (kind == WORD && isReserved(token))) {
+                throw error("Expected a search term but found " + describe());
+            }
+            boolean quoted = (kind == QUOTED);
+            String word = token;
+            int wordStart = tokenStart;
+            advance();
+            if (kind == EQUALS) {
+                advance();
+                return new TagNode(word, value());
+            }
+            if (kind == COLON && !quoted) {
+                advance();
+                if (word.equalsIgnoreCase("caption")) {
+                    return new CaptionNode(value());
+                }
+                if (word.equalsIgnoreCase("date")) {
+                    int valueStart = tokenStart;
+                    return dateRange(value(), valueStart);
+                }
+                tokenStart = wordStart;
+                throw error("Unknown field '" + word + "'; use date:, caption: or type=value");
+            }
+            return new CaptionNode(word);
+        }
+
+        private String value() {
+            if (kind != WORD && kind != QUOTED) {
+                throw error("Expected a value but found " + describe());
+            }
+            String value = token;
+            advance();
+            return value;
+        }
+
+        private Node dateRange(String range, int at) {
+            int dots = range.indexOf("..");
+            try {
+                if (dots < 0) {
+                    return new DateNode(firstDay(range), lastDay(range));
+                }
+                String from = range.substring(0, dots);
+                String to = range.substring(dots + 2);
+                return new DateNode(from.isEmpty() ? null : firstDay(from), to.isEmpty() ? null : lastDay(to));
+            } catch (DateTimeParseException e) {
+                tokenStart = at;
+                throw error("Invalid date '" + e.getParsedString() + "'; use yyyy-MM-dd, yyyy-MM or yyyy");
+            }
+        }
+
+        // The first day of a date, a month or a year.
+        private static LocalDate firstDay(String date) {
+            switch (date.length()) {
+                case 4:
+                    return YearMonth.parse(date + "-01").atDay(1);
+                case 7:
+                    return YearMonth.parse(date).atDay(1);
+                default:
+                    return LocalDate.parse(date);
+            }
+        }
+
+        // The last day of a date, a month or a year.
+        private static LocalDate lastDay(String date) {
+            switch (date.length()) {
+                case 4:
+                    return YearMonth.parse(date + "-12").atEndOfMonth();
+                case 7:
+                    return YearMonth.parse(date).atEndOfMonth();
+                default:
+                    return LocalDate.parse(date);
+            }
+        }
+
+        private boolean isKeyword(String keyword) {
+            return kind == WORD && token.equalsIgnoreCase(keyword);
+        }
+
+        private String describe() {
+            switch (kind) {
+                case END:
+                    return "the end of the query";
+                case QUOTED:
+                    return "\"" + token + "\"";
+                default:
+                    return "'" + token + "'";
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " (at position " + (tokenStart + 1) + ")");
+        }
+
+        private void advance() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            tokenStart = pos;
+            if (pos == text.length()) {
+                kind = END;
+                token = "";
+                return;
+            }
+            char c = text.charAt(pos);
+            switch (c) {
+                case '(':
+                    single(OPEN, c);
+                    return;
+                case ')':
+                    single(CLOSE, c);
+                    return;
+                case '=':
+                    single(EQUALS, c);
+                    return;
+                case ':':
+                    single(COLON, c);
+                    return;
+                case '"':
+                    quoted();
+                    return;
+                default:
+                    int start = pos;
+                    while (pos < text.length() && isWordChar(text.charAt(pos))) {
+                        pos++;
+                    }
+                    kind = WORD;
+                    token = text.substring(start, pos);
+            }
+        }
+
+        private void single(int tokenKind, char c) {
+            kind = tokenKind;
+            token = String.valueOf(c);
+            pos++;
+        }
+
+        private void quoted() {
+            StringBuilder phrase = new StringBuilder();
+            pos++;
+            while (pos < text.length() && text.charAt(pos) != '"') {
+                char c = text.charAt(pos++);
+                if (c == '\\' && pos < text.length()) {
+                    c = text.charAt(pos++);
+                }
+                phrase.append(c);
+            }
+            if (pos == text.length()) {
+                throw error("Missing closing quote");
+            }
+            pos++;
+            kind = QUOTED;
+            token = phrase.toString();
+        }
+    }
+}
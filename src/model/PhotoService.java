@@ -1,23 +1,67 @@
 package model;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import util.RegionDecoder;
+import util.ThumbnailCache;
 
 public class PhotoService {
 
     /**
-     * Returns a new Image using the proper URL.
+     * Returns the full-size image of a photo, from the {@link ImageCache} if it was decoded before.
      * If the path is already a file URL (i.e. starts with "file:"), it is parsed using URL.
      */
 	public static Image loadImage(String path) throws FileNotFoundException {
+	    ImageCache cache = ImageCache.getInstance();
+	    Image image = cache.get(path, 0);
+	    if (image == null) {
+	        image = decodeImage(path);
+	        cache.put(path, 0, image);
+	    }
+	    return image;
+	}
+	
+    /**
+     * Returns an image of a photo decoded to fit the given box, e.g. the size it is displayed at.
+     * The image is not cached. Loads synchronously, so it may be called from a background thread.
+     *
+     * @param path the photo's path or file URL.
+     * @param width the largest width, in pixels.
+     * @param height the largest height, in pixels.
+     * @return the scaled image.
+     * @throws FileNotFoundException if the file does not exist.
+     */
+    public static Image loadImage(String path, double width, double height) throws FileNotFoundException {
+        String url;
+        if (path.startsWith("file:")) {
+            url = path.replace(" ", "%20");
+        } else {
+            File file = new File(path);
+            if (!file.exists()) {
+                throw new FileNotFoundException("File not found: " + file.getAbsolutePath());
+            }
+            url = file.toURI().toString();
+        }
+        return new Image(url, width, height, true, true);
+    }
+    
+	private static Image decodeImage(String path) throws FileNotFoundException {
 	    try {
 	        if (path.startsWith("file:")) {
 	            // Create a properly encoded URL
@@ -37,36 +81,226 @@ public class PhotoService {
 	    }
 	}
     
+    /**
+     * Opens a photo for decoding parts of it, see {@link #loadRegion}. The caller must close it.
+     *
+     * @param path the photo's path or file URL.
+     * @return the decoder, or null if the photo is not a local file or its format cannot be read in parts.
+     * @throws IOException if the file cannot be read.
+     */
+    public static RegionDecoder openRegions(String path) throws IOException {
+        File file = localFile(path);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        return RegionDecoder.open(file);
+    }
+    
+    /**
+     * Returns a rectangular part of a photo, e.g. a tile of a zoomed-in view. Tiles are kept in
+     * the {@link ImageCache}, so panning back over a part of the photo does not decode it again.
+     * Loads synchronously, so it may be called from a background thread.
+     *
+     * @param path the photo's path or file URL, for the cache.
+     * @param decoder the photo, opened with {@link #openRegions}.
+     * @param x the left edge of the part in the original, in pixels.
+     * @param y the top edge of the part in the original, in pixels.
+     * @param width the width of the part in the original, in pixels.
+     * @param height the height of the part in the original, in pixels.
+     * @param subsampling keep every n-th pixel in each direction; 1 for full resolution.
+     * @return the part of the photo.
+     * @throws IOException if the photo cannot be decoded.
+     */
+    public static Image loadRegion(String path, RegionDecoder decoder, int x, int y, int width, int height,
+            int subsampling) throws IOException {
+        ImageCache cache = ImageCache.getInstance();
+        String key = path + "#" + x + "," + y + "," + width + "x" + height + "/" + subsampling;
+        Image image = cache.get(key, 0);
+        if (image == null) {
+            BufferedImage region = decoder.decode(x, y, width, height, subsampling);
+            int w = region.getWidth();
+            int h = region.getHeight();
+            int[] argb = region.getRGB(0, 0, w, h, null, 0, w);
+            WritableImage tile = new WritableImage(w, h);
+            tile.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), argb, 0, w);
+            image = tile;
+            cache.put(key, 0, image);
+        }
+        return image;
+    }
+    
+    // The file a photo path or file URL points to, or null if it is not a local file.
+    private static File localFile(String path) {
+        if (!path.startsWith("file:")) {
+            return new File(path);
+        }
+        try {
+            return new File(new URI(path.replace(" ", "%20")));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns a small version of an image. The thumbnail is made once and kept in the
+     * {@link ThumbnailCache}, and once read it stays in the {@link ImageCache}; photos that cannot be
+     * cached are decoded at most at the given size instead of at full resolution.
+     * Loads synchronously, so it may be called from a background thread.
+     *
+     * @param path the photo's path or file URL.
+     * @param size the largest width and height, in pixels.
+     * @return the scaled image.
+     * @throws FileNotFoundException if the file does not exist.
+     */
+    public static Image loadThumbnail(String path, double size) throws FileNotFoundException {
+        ImageCache cache = ImageCache.getInstance();
+        Image image = cache.get(path, size);
+        if (image == null) {
+            image = decodeThumbnail(path, size);
+            cache.put(path, size, image);
+        }
+        return image;
+    }
+    
+    private static Image decodeThumbnail(String path, double size) throws FileNotFoundException {
+        String url;
+        File file;
+        if (path.startsWith("file:")) {
+            url = path.replace(" ", "%20");
+            try {
+                file = new File(new URI(url));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                file = null;
+            }
+        } else {
+            file = new File(path);
+            if (!file.exists()) {
+                throw new FileNotFoundException("File not found: " + file.getAbsolutePath());
+            }
+            url = file.toURI().toString();
+        }
+        if (file != null && file.isFile()) {
+            try {
+                Path thumbnail = ThumbnailCache.getInstance().getThumbnail(file, (int) Math.ceil(size));
+                if (thumbnail != null) {
+                    return new Image(thumbnail.toUri().toString());
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading thumbnail of " + path + ": " + e.getMessage());
+            }
+        }
+        return new Image(url, size, size, true, true);
+    }
+    
     /**
      * Filters the given list of photos by a date range.
+     * The days are turned into a time span once, so each photo costs one comparison of its
+     * date instead of a time zone conversion.
      */
     public static List<Photo> filterByDateRange(List<Photo> photos, java.time.LocalDate start, java.time.LocalDate end) {
+        java.time.ZoneId zone = java.time.ZoneId.systemDefault();
+        long from = start.atStartOfDay(zone).toInstant().toEpochMilli();
+        long to = end.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
         return photos.stream().filter(photo -> {
-            java.time.LocalDate photoDate = photo.getDate().toInstant()
-                    .atZone(java.time.ZoneId.systemDefault())
-                    .toLocalDate();
-            return !photoDate.isBefore(start) && !photoDate.isAfter(end);
+            long date = photo.getDateMillis();
+            return date >= from && date < to;
         }).collect(Collectors.toList());
     }
     
+    /**
+     * Returns every photo of a user taken on the days of a date range, from the user's
+     * {@link DateIndex}. Takes two binary searches plus the photos found, however large the library.
+     *
+     * @param user a loaded user.
+     * @param start the first day, inclusive.
+     * @param end the last day, inclusive.
+     * @return the photos, oldest first.
+     */
+    public static List<Photo> findByDate(User user, java.time.LocalDate start, java.time.LocalDate end) {
+        return user.getDateIndex().between(start, end, java.time.ZoneId.systemDefault());
+    }
+    
     /**
      * Filters the given list of photos by a tag.
-     * Checks each photo's Tag objects for a match.
+     * The photos of a loaded user are looked up in the user's {@link TagIndex}, so each photo
+     * costs one set lookup instead of a scan of its tags.
      *
      * @param photos the list of photos.
      * @param tagType the tag type.
      * @param tagValue the tag value.
-     * @return a filtered list of photos.
+     * @return a filtered list of photos, in the order of the given list.
      */
     public static List<Photo> filterByTag(List<Photo> photos, String tagType, String tagValue) {
+        User owner = photos.isEmpty() ? null : photos.get(0).getOwner();
+        if (owner != null && owner.isLoaded()) {
+            return inOrder(photos, owner.getTagIndex().find(tagType, tagValue));
+        }
         return photos.stream()
-                .filter(photo -> photo.getTags().stream()
-                        .anyMatch(tag -> tag.getTagType().equalsIgnoreCase(tagType) &&
-                        		tag.getTagValue().equalsIgnoreCase(tagValue)
-                        		))
+                .filter(photo -> photo.getTags().contains(new Tag(tagType, tagValue)))
                 .collect(Collectors.toList());
     }
     
+    /**
+     * Returns every photo of a user that carries a tag, from the user's {@link TagIndex}.
+     * Takes time in proportion to the photos found, however large the library.
+     *
+     * @param user a loaded user.
+     * @param tagType the tag type.
+     * @param tagValue the tag value.
+     * @return the photos, oldest first.
+     */
+    public static List<Photo> findByTag(User user, String tagType, String tagValue) {
+        List<Photo> found = new ArrayList<>(user.getTagIndex().find(tagType, tagValue));
+        found.sort(Comparator.comparingLong(Photo::getDateMillis));
+        return found;
+    }
+    
+    /**
+     * Searches an album with a query such as {@code person=alice AND date:2024-06}, see
+     * {@link PhotoQuery} for the syntax. The query is answered from the bitmaps of the
+     * owner's tag index, most selective condition first.
+     *
+     * @param album the album.
+     * @param query the query text.
+     * @return the matching photos, in the order of the album.
+     * @throws IllegalArgumentException if the query is not valid.
+     */
+    public static List<Photo> search(Album album, String query) {
+        return PhotoQuery.parse(query).search(album);
+    }
+    
+    /**
+     * Searches all of a user's albums with a query, see {@link PhotoQuery} for the syntax.
+     *
+     * @param user a loaded user.
+     * @param query the query text.
+     * @return the matching photos, each once, oldest first.
+     * @throws IllegalArgumentException if the query is not valid.
+     */
+    public static List<Photo> search(User user, String query) {
+        return PhotoQuery.parse(query).search(user);
+    }
+    
+    /**
+     * Returns the photos of a list that are in a set, keeping the order of the list.
+     *
+     * @param photos the photos, e.g. an album.
+     * @param matches the photos to keep, e.g. the result of a {@link TagIndex} query.
+     * @return the photos of the list that are in the set.
+     */
+    public static List<Photo> inOrder(List<Photo> photos, Set<Photo> matches) {
+        List<Photo> result = new ArrayList<>(Math.min(photos.size(), matches.size()));
+        if (matches.isEmpty()) {
+            return result;
+        }
+        for (Photo photo : photos) {
+            if (matches.contains(photo)) {
+                result.add(photo);
+            }
+        }
+        return result;
+    }
+    
     /**
      * Returns a URL string suitable for an Image given a path.
      * For paths starting with "/data/", it assumes the file is located in the external "data" folder.
@@ -0,0 +1,408 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import util.CompressedBitmap;
+
+/**
+ * An inverted index of one user's photos: for every tag type and value, every album and every
+ * stretch of 32 days, the photos that belong to it.
+ * <p>
+ * Each photo in the user's albums is given a small integer id, and the photos of a tag, an
+ * album or a date bucket are kept as a {@link CompressedBitmap} of ids rather than as a set of
+ * objects. The ids are dense, since the id of a photo that leaves the library is handed to the
+ * next one added, so the bitmaps stay small: a tag on every other photo takes about one bit per
+ * photo. Combining conditions with AND, OR and NOT is then done a 64-bit word at a time, see
+ * {@link PhotoQuery}, and counting the photos of a tag or of a combination costs no more than
+ * combining them. Like {@link Tag#equals}, the index ignores case. A photo that is in several
+ * albums has one id, and gives it up when it is removed from the last of them.
+ * </p>
+ * <p>
+ * The index is built from the user's albums the first time it is asked for, see
+ * {@link User#getTagIndex()}, and then kept current from the {@link ModelEvents}: tags added,
+ * removed or replaced, capture dates changed, and photos and albums added or removed. It must
+ * be used on the thread that changes the model. The sets it returns are copies.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class TagIndex {
+
+    // The width of a date bucket.
+    private static final long BUCKET_MILLIS = 32L * 24 * 60 * 60 * 1000;
+
+    // Keeps the index of every loaded user current; registered when the first index is built.
+    static final ModelListener MAINTAINER = new ModelListener() {
+        @Override
+        public void albumAdded(User user, Album album) {
+            TagIndex index = user.peekTagIndex();
+            if (index != null) {
+                for (Photo photo : album.getPhotos()) {
+                    index.addPhoto(album, photo);
+                }
+            }
+        }
+
+        @Override
+        public void albumRemoved(User user, Album album) {
+            TagIndex index = user.peekTagIndex();
+            if (index != null) {
+                for (Photo photo : album.getPhotos()) {
+                    index.removePhoto(album, photo);
+                }
+                index.albums.remove(album);
+            }
+        }
+
+        @Override
+        public void photoAdded(Album album, Photo photo) {
+            TagIndex index = album.getOwner().peekTagIndex();
+            if (index != null) {
+                index.addPhoto(album, photo);
+            }
+        }
+
+        @Override
+        public void photoRemoved(Album album, Photo photo) {
+            TagIndex index = album.getOwner().peekTagIndex();
+            if (index != null) {
+                index.removePhoto(album, photo);
+            }
+        }
+
+        @Override
+        public void metadataChanged(Photo photo) {
+            TagIndex index = (photo.getOwner() == null) ? null : photo.getOwner().peekTagIndex();
+            Integer id = (index == null) ? null : index.ids.get(photo);
+            if (id != null) {
+                index.unbucket(id);
+                index.bucket(id, photo);
+            }
+        }
+
+        @Override
+        public void tagAdded(Photo photo, Tag tag) {
+            TagIndex index = photo.getOwner().peekTagIndex();
+            Integer id = (index == null) ? null : index.ids.get(photo);
+            if (id != null) {
+                index.post(tag, id);
+            }
+        }
+
+        @Override
+        public void tagRemoved(Photo photo, Tag tag) {
+            TagIndex index = photo.getOwner().peekTagIndex();
+            Integer id = (index == null) ? null : index.ids.get(photo);
+            if (id != null) {
+                index.unpost(tag, id);
+            }
+        }
+
+        @Override
+        public void tagsReplaced(Photo photo, List<Tag> oldTags) {
+            TagIndex index = photo.getOwner().peekTagIndex();
+            Integer id = (index == null) ? null : index.ids.get(photo);
+            if (id != null) {
+                for (Tag tag : oldTags) {
+                    index.unpost(tag, id);
+                }
+                for (Tag tag : photo.getTags()) {
+                    index.post(tag, id);
+                }
+            }
+        }
+    };
+
+    private static final CompressedBitmap EMPTY = new CompressedBitmap();
+
+    // Ids: the photo of each id, null for a free one, and the ids given up, to hand out again.
+    private final Map<Photo, Integer> ids = new IdentityHashMap<>();
+    private Photo[] photos = new Photo[64];
+    // By id: the number of the user's albums the photo is in, and the date it was taken, as
+    // indexed; kept here so that the dates of a bucket are read without visiting the photos.
+    private int[] albumCounts = new int[64];
+    private long[] takenAt = new long[64];
+    private int nextId;
+    private int[] freeIds = new int[16];
+    private int freeCount;
+
+    private final CompressedBitmap all = new CompressedBitmap();
+    private final Map<String, CompressedBitmap> postings = new HashMap<>();
+    private final Map<Album, CompressedBitmap> albums = new IdentityHashMap<>();
+    private final NavigableMap<Long, CompressedBitmap> dates = new TreeMap<>();
+
+    /**
+     * Indexes the photos in a user's albums.
+     *
+     * @param user a loaded user
+     */
+    TagIndex(User user) {
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                addPhoto(album, photo);
+            }
+        }
+    }
+
+    /**
+     * Indexes a list of photos that are not in a loaded user's albums, for one search.
+     * The index is not kept current.
+     *
+     * @param photos the photos
+     */
+    TagIndex(Collection<Photo> photos) {
+        for (Photo photo : photos) {
+            addPhoto(null, photo);
+        }
+    }
+
+    /**
+     * Returns the photos that carry a tag.
+     *
+     * @param tagType the tag type, in any case
+     * @param tagValue the tag value, in any case
+     * @return the photos, in no particular order; empty if there are none
+     */
+    public Set<Photo> find(String tagType, String tagValue) {
+        return photosOf(tagged(tagType, tagValue));
+    }
+
+    /**
+     * Returns the number of photos that carry a tag.
+     *
+     * @param tagType the tag type, in any case
+     * @param tagValue the tag value, in any case
+     * @return the number of photos
+     */
+    public int count(String tagType, String tagValue) {
+        return tagged(tagType, tagValue).cardinality();
+    }
+
+    /**
+     * Returns the photos that carry all of the given tags. The bitmaps are intersected from the
+     * smallest up, and the intersection stops as soon as it is empty.
+     *
+     * @param tags the tags
+     * @return the photos, in no particular order
+     */
+    public Set<Photo> findAll(List<Tag> tags) {
+        if (tags.isEmpty()) {
+            return Collections.emptySet();
+        }
+        List<CompressedBitmap> lists = new ArrayList<>();
+        for (Tag tag : tags) {
+            lists.add(tagged(tag.getTagType(), tag.getTagValue()));
+        }
+        lists.sort(Comparator.comparingInt(CompressedBitmap::cardinality));
+        CompressedBitmap result = lists.get(0);
+        for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+            result = CompressedBitmap.and(result, lists.get(i));
+        }
+        return photosOf(result);
+    }
+
+    /**
+     * Returns the photos that carry at least one of the given tags.
+     *
+     * @param tags the tags
+     * @return the photos, in no particular order
+     */
+    public Set<Photo> findAny(List<Tag> tags) {
+        CompressedBitmap result = new CompressedBitmap();
+        for (Tag tag : tags) {
+            result.addAll(tagged(tag.getTagType(), tag.getTagValue()));
+        }
+        return photosOf(result);
+    }
+
+    /**
+     * Returns the number of distinct photos in the user's albums.
+     *
+     * @return the number of indexed photos
+     */
+    public int photoCount() {
+        return ids.size();
+    }
+
+    /**
+     * Returns an empty set of photos compared by identity, like the sets the index returns.
+     *
+     * @return a new set
+     */
+    public static Set<Photo> newPhotoSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    // The bitmaps below belong to the index and must not be changed.
+
+    /** Returns the ids of every indexed photo. */
+    CompressedBitmap all() {
+        return all;
+    }
+
+    /** Returns the ids of the photos that carry a tag. */
+    CompressedBitmap tagged(String tagType, String tagValue) {
+        CompressedBitmap bitmap = postings.get(key(tagType, tagValue));
+        return (bitmap == null) ? EMPTY : bitmap;
+    }
+
+    /** Returns the ids of the photos in an album of the user. */
+    CompressedBitmap inAlbum(Album album) {
+        CompressedBitmap bitmap = albums.get(album);
+        return (bitmap == null) ? EMPTY : bitmap;
+    }
+
+    /**
+     * Returns the ids of the photos taken in a time span, as a new bitmap. The buckets inside the
+     * span are taken whole; only the photos of the two at its ends are looked at.
+     */
+    CompressedBitmap taken(long fromMillis, long toMillis) {
+        CompressedBitmap result = new CompressedBitmap();
+        if (fromMillis > toMillis) {
+            return result;
+        }
+        for (Map.Entry<Long, CompressedBitmap> entry
+                : dates.subMap(bucketOf(fromMillis), true, bucketOf(toMillis), true).entrySet()) {
+            long start = entry.getKey() * BUCKET_MILLIS;
+            if (start >= fromMillis && start + BUCKET_MILLIS - 1 <= toMillis) {
+                result.addAll(entry.getValue());
+            } else {
+                entry.getValue().forEach(id -> {
+                    if (takenAt[id] >= fromMillis && takenAt[id] <= toMillis) {
+                        result.add(id);
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    /** Returns at least the number of photos taken in a time span, from the bucket sizes alone. */
+    int estimateTaken(long fromMillis, long toMillis) {
+        if (fromMillis > toMillis) {
+            return 0;
+        }
+        long count = 0;
+        for (CompressedBitmap bitmap : dates.subMap(bucketOf(fromMillis), true, bucketOf(toMillis), true).values()) {
+            count += bitmap.cardinality();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, count);
+    }
+
+    /** Returns the photo with an id. */
+    Photo photo(int id) {
+        return photos[id];
+    }
+
+    /** Returns the id of a photo, or -1 if it is not indexed. */
+    int idOf(Photo photo) {
+        Integer id = ids.get(photo);
+        return (id == null) ? -1 : id;
+    }
+
+    /** Returns the photos of the given ids. */
+    Set<Photo> photosOf(CompressedBitmap bitmap) {
+        Set<Photo> result = newPhotoSet();
+        bitmap.forEach(id -> result.add(photos[id]));
+        return result;
+    }
+
+    private void addPhoto(Album album, Photo photo) {
+        Integer id = ids.get(photo);
+        if (id == null) {
+            id = newId();
+            ids.put(photo, id);
+            photos[id] = photo;
+            all.add(id);
+            for (Tag tag : photo.getTags()) {
+                post(tag, id);
+            }
+            bucket(id, photo);
+        }
+        if (album != null && albums.computeIfAbsent(album, a -> new CompressedBitmap()).add(id)) {
+            albumCounts[id]++;
+        }
+    }
+
+    private void removePhoto(Album album, Photo photo) {
+        Integer id = ids.get(photo);
+        if (id == null) {
+            return;
+        }
+        CompressedBitmap members = albums.get(album);
+        if (members == null || !members.remove(id)) {
+            return;
+        }
+        if (--albumCounts[id] > 0) {
+            return;
+        }
+        ids.remove(photo);
+        all.remove(id);
+        for (Tag tag : photo.getTags()) {
+            unpost(tag, id);
+        }
+        unbucket(id);
+        photos[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    private int newId() {
+        if (freeCount > 0) {
+            return freeIds[--freeCount];
+        }
+        if (nextId == photos.length) {
+            int length = photos.length * 2;
+            photos = Arrays.copyOf(photos, length);
+            albumCounts = Arrays.copyOf(albumCounts, length);
+            takenAt = Arrays.copyOf(takenAt, length);
+        }
+        return nextId++;
+    }
+
+    private void post(Tag tag, int id) {
+        postings.computeIfAbsent(key(tag.getTagType(), tag.getTagValue()), k -> new CompressedBitmap()).add(id);
+    }
+
+    private void unpost(Tag tag, int id) {
+        String key = key(tag.getTagType(), tag.getTagValue());
+        CompressedBitmap bitmap = postings.get(key);
+        if (bitmap != null && bitmap.remove(id) && bitmap.isEmpty()) {
+            postings.remove(key);
+        }
+    }
+
+    private void bucket(int id, Photo photo) {
+        takenAt[id] = photo.getDateMillis();
+        dates.computeIfAbsent(bucketOf(takenAt[id]), b -> new CompressedBitmap()).add(id);
+    }
+
+    private void unbucket(int id) {
+        long bucket = bucketOf(takenAt[id]);
+        CompressedBitmap bitmap = dates.get(bucket);
+        if (bitmap != null && bitmap.remove(id) && bitmap.isEmpty()) {
+            dates.remove(bucket);
+        }
+    }
+
+    private static long bucketOf(long millis) {
+        return Math.floorDiv(millis, BUCKET_MILLIS);
+    }
+
+    private static String key(String tagType, String tagValue) {
+        return tagType.toLowerCase(Locale.ROOT) + '\u0000' + tagValue.toLowerCase(Locale.ROOT);
+    }
+}
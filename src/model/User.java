@@ -1,7 +1,12 @@
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -15,6 +20,11 @@ public class User implements Serializable {
     
     private String username;
     private ArrayList<Album> albums;
+    // True for a catalog entry whose albums have not been read from disk yet.
+    private transient boolean unloaded;
+    // Built on first use and kept current from the model events; dropped when the albums are.
+    private transient TagIndex tagIndex;
+    private transient DateIndex dateIndex;
     
     /**
      * Creates a new user with the given username.
@@ -30,6 +40,90 @@ public class User implements Serializable {
         // this.albums.add(defaultAlbum);
     }
     
+    /**
+     * Creates a placeholder for a user whose albums are still on disk.
+     * The albums are filled in later with {@link #attachAlbums(List)}.
+     *
+     * @param username of the user
+     * @return a user without albums that reports {@link #isLoaded()} as false
+     */
+    public static User createUnloaded(String username) {
+        User user = new User(username);
+        user.unloaded = true;
+        return user;
+    }
+    
+    /**
+     * Returns whether this user's albums are in memory.
+     *
+     * @return false if the albums still have to be loaded from disk
+     */
+    public boolean isLoaded() {
+        return !unloaded;
+    }
+    
+    /**
+     * Installs the albums read from disk and marks this user as loaded.
+     * No model events are fired, since nothing has changed.
+     *
+     * @param loadedAlbums the albums belonging to this user
+     */
+    public void attachAlbums(List<Album> loadedAlbums) {
+        this.albums.clear();
+        this.albums.addAll(loadedAlbums);
+        for (Album album : albums) {
+            album.setOwner(this);
+        }
+        this.unloaded = false;
+        this.tagIndex = null;
+        this.dateIndex = null;
+    }
+    
+    /**
+     * Drops the albums from memory and marks this user as unloaded again.
+     * The caller is responsible for having saved them first.
+     */
+    public void detachAlbums() {
+        this.albums = new ArrayList<>();
+        this.unloaded = true;
+        this.tagIndex = null;
+        this.dateIndex = null;
+    }
+    
+    /**
+     * Returns the index of this user's photos by tag, building it on first use.
+     *
+     * @return the tag index
+     */
+    public TagIndex getTagIndex() {
+        if (tagIndex == null) {
+            ModelEvents.addListener(TagIndex.MAINTAINER);
+            tagIndex = new TagIndex(this);
+        }
+        return tagIndex;
+    }
+    
+    TagIndex peekTagIndex() {
+        return tagIndex;
+    }
+    
+    /**
+     * Returns the index of this user's photos by date, building it on first use.
+     *
+     * @return the date index
+     */
+    public DateIndex getDateIndex() {
+        if (dateIndex == null) {
+            ModelEvents.addListener(DateIndex.MAINTAINER);
+            dateIndex = new DateIndex(this);
+        }
+        return dateIndex;
+    }
+    
+    DateIndex peekDateIndex() {
+        return dateIndex;
+    }
+    
     /**
      * Returns the username of this user.
      *
@@ -48,13 +142,67 @@ public class User implements Serializable {
         return this.albums;
     }
     
+    /**
+     * Returns the album with the given name.
+     *
+     * @param name the album name
+     * @return the album, or null if this user has no album with that name
+     */
+    public Album getAlbum(String name) {
+        for (Album album : albums) {
+            if (album.getName().equals(name)) {
+                return album;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the photos in this user's albums by path, each once.
+     *
+     * @return a new map from each photo's path to the photo
+     */
+    Map<String, Photo> photosByPath() {
+        Map<String, Photo> photos = new HashMap<>();
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) {
+                photos.putIfAbsent(photo.getPath(), photo);
+            }
+        }
+        return photos;
+    }
+    
+    /**
+     * Adds the specified album to the user's album list.
+     *
+     * @param album the album to add
+     */
+    public void addAlbum(Album album) {
+        album.setOwner(this);
+        this.albums.add(album);
+        ModelEvents.fireAlbumAdded(this, album);
+    }
+    
     /**
      * Removes the specified album from the user's album list.
      *
      * @param album the album to delete
      */
     public void deleteAlbum(Album album) {
-        this.albums.remove(album);
+        if (this.albums.remove(album)) {
+            ModelEvents.fireAlbumRemoved(this, album);
+        }
+    }
+    
+    /**
+     * Re-attaches the albums and photos to this user after deserialization,
+     * since the owner references are transient.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        for (Album album : albums) {
+            album.setOwner(this);
+        }
     }
     
     /**
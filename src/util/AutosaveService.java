@@ -0,0 +1,306 @@
+package util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import model.Album;
+import model.ModelListener;
+import model.Photo;
+import model.Tag;
+import model.User;
+
+/**
+ * Writes user snapshots in the background.
+ * <p>
+ * The service listens to model changes and marks the owning user dirty. Bursts of edits are
+ * coalesced: a save runs once no change has arrived for a quiet period, or at the latest a
+ * maximum delay after the first unsaved change, so a long editing session still gets saved.
+ * Saves run on a single background thread and never on the JavaFX application thread.
+ * </p>
+ * <p>
+ * The quiet period and maximum delay default to 3 and 30 seconds and can be changed with the
+ * system properties {@code photos.autosave.quietMillis} and {@code photos.autosave.maxDelayMillis}.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class AutosaveService implements ModelListener {
+
+    private final LibraryRepository repository;
+    private final long quietMillis;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService executor;
+
+    // Dirty users and the time of their first unsaved change, guarded by this.
+    private final Map<User, Long> dirtySince = new LinkedHashMap<>();
+    private long lastChange;
+    private ScheduledFuture<?> pending;
+
+    // Statistics, guarded by this.
+    private int saveCount;
+    private long totalBytesWritten;
+    private long totalSaveNanos;
+    private long lastSaveNanos;
+    private long maxSaveNanos;
+
+    /**
+     * Creates an autosave service using the configured quiet period and maximum delay.
+     *
+     * @param repository the repository that saves the users
+     */
+    public AutosaveService(LibraryRepository repository) {
+        this(repository, Long.getLong("photos.autosave.quietMillis", 3000),
+             Long.getLong("photos.autosave.maxDelayMillis", 30000));
+    }
+
+    /**
+     * Creates an autosave service.
+     *
+     * @param repository the repository that saves the users
+     * @param quietMillis how long no change must arrive before dirty users are saved
+     * @param maxDelayMillis the longest a change may stay unsaved during continuous editing
+     */
+    public AutosaveService(LibraryRepository repository, long quietMillis, long maxDelayMillis) {
+        this.repository = repository;
+        this.quietMillis = quietMillis;
+        this.maxDelayMillis = Math.max(quietMillis, maxDelayMillis);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "autosave");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Marks a user as having unsaved changes and (re)schedules the next save.
+     *
+     * @param user the user that changed
+     */
+    public synchronized void markDirty(User user) {
+        if (user == null || executor.isShutdown()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        dirtySince.putIfAbsent(user, now);
+        lastChange = now;
+        schedule();
+    }
+
+    // Must hold the monitor.
+    private void schedule() {
+        if (dirtySince.isEmpty()) {
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (long since : dirtySince.values()) {
+            oldest = Math.min(oldest, since);
+        }
+        long now = System.currentTimeMillis();
+        long due = Math.min(lastChange + quietMillis, oldest + maxDelayMillis);
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        pending = executor.schedule(this::saveDirtyUsers, Math.max(0, due - now), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves every dirty user. Runs on the autosave thread.
+     */
+    private void saveDirtyUsers() {
+        List<User> users;
+        synchronized (this) {
+            users = new ArrayList<>(dirtySince.keySet());
+            dirtySince.clear();
+            pending = null;
+        }
+        for (User user : users) {
+            save(user);
+        }
+    }
+
+    private void save(User user) {
+        long start = System.nanoTime();
+        long bytes;
+        try {
+            bytes = repository.saveUser(user);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Autosave of " + user.getUsername() + " failed: " + e.getMessage());
+            // Leave the user dirty so the next round tries again; the journal still holds the changes.
+            markDirty(user);
+            return;
+        }
+        if (bytes < 0) {
+            // The user was unloaded or deleted in the meantime.
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            saveCount++;
+            totalBytesWritten += bytes;
+            totalSaveNanos += elapsed;
+            lastSaveNanos = elapsed;
+            maxSaveNanos = Math.max(maxSaveNanos, elapsed);
+        }
+    }
+
+    /**
+     * Runs a task on the autosave thread, after any save that is already in progress.
+     * If the user is dirty, it is saved first.
+     *
+     * @param user the user whose pending changes are saved before the task, or null
+     * @param task the task to run
+     */
+    public void submit(User user, Runnable task) {
+        boolean dirty;
+        synchronized (this) {
+            dirty = user != null && dirtySince.remove(user) != null;
+            if (executor.isShutdown()) {
+                return;
+            }
+        }
+        executor.execute(() -> {
+            if (dirty) {
+                save(user);
+            }
+            task.run();
+        });
+    }
+
+    /**
+     * Forgets about a user without saving, e.g. because the user was deleted.
+     *
+     * @param user the user to forget
+     */
+    public synchronized void forget(User user) {
+        dirtySince.remove(user);
+    }
+
+    /**
+     * Stops the service. Saves that are due are not started; a save in progress is given
+     * up to the given time to finish. Unsaved changes remain in the journals.
+     *
+     * @param timeoutMillis how long to wait for a save in progress
+     */
+    public void shutdown(long timeoutMillis) {
+        synchronized (this) {
+            if (pending != null) {
+                pending.cancel(false);
+                pending = null;
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of snapshots written.
+     *
+     * @return the save count
+     */
+    public synchronized int getSaveCount() {
+        return saveCount;
+    }
+
+    /**
+     * Returns the total number of snapshot bytes written.
+     *
+     * @return the bytes written
+     */
+    public synchronized long getBytesWritten() {
+        return totalBytesWritten;
+    }
+
+    /**
+     * Returns how long the most recent save took.
+     *
+     * @return the latency in milliseconds
+     */
+    public synchronized double getLastSaveMillis() {
+        return lastSaveNanos / 1e6;
+    }
+
+    /**
+     * Returns the average time a save took.
+     *
+     * @return the average latency in milliseconds, or 0 if nothing was saved yet
+     */
+    public synchronized double getAverageSaveMillis() {
+        return saveCount == 0 ? 0 : totalSaveNanos / 1e6 / saveCount;
+    }
+
+    /**
+     * Returns the longest time a save took.
+     *
+     * @return the maximum latency in milliseconds
+     */
+    public synchronized double getMaxSaveMillis() {
+        return maxSaveNanos / 1e6;
+    }
+
+    // ---- ModelListener ----
+
+    @Override
+    public void userDeleted(User user) {
+        forget(user);
+    }
+
+    @Override
+    public void albumAdded(User user, Album album) {
+        markDirty(user);
+    }
+
+    @Override
+    public void albumRemoved(User user, Album album) {
+        markDirty(user);
+    }
+
+    @Override
+    public void albumRenamed(Album album, String oldName) {
+        markDirty(album.getOwner());
+    }
+
+    @Override
+    public void photoAdded(Album album, Photo photo) {
+        markDirty(album.getOwner());
+    }
+
+    @Override
+    public void photoRemoved(Album album, Photo photo) {
+        markDirty(album.getOwner());
+    }
+
+    @Override
+    public void captionChanged(Photo photo) {
+        markDirty(photo.getOwner());
+    }
+
+    @Override
+    public void metadataChanged(Photo photo) {
+        markDirty(photo.getOwner());
+    }
+
+    @Override
+    public void tagAdded(Photo photo, Tag tag) {
+        markDirty(photo.getOwner());
+    }
+
+    @Override
+    public void tagRemoved(Photo photo, Tag tag) {
+        markDirty(photo.getOwner());
+    }
+
+    @Override
+    public void tagsReplaced(Photo photo, List<Tag> oldTags) {
+        markDirty(photo.getOwner());
+    }
+}
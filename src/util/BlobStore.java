@@ -0,0 +1,400 @@
+package util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import model.Album;
+import model.ModelListener;
+import model.Photo;
+import model.User;
+
+/**
+ * A content-addressed store for uploaded photo files.
+ * <p>
+ * Every file is stored once under "users/blobs/", named after the SHA-256 hash of its contents,
+ * which is computed while the file is being copied. Uploading the same picture again, to any
+ * album of any user, finds the existing blob and copies nothing; two different pictures that
+ * happen to have the same file name no longer overwrite each other. A {@link Photo} refers to
+ * its blob by path and keeps the original file name separately.
+ * </p>
+ * <p>
+ * The store counts how many album entries refer to each blob by following the model changes,
+ * and keeps the counts in an append-only log, "users/blobs/refs.log". Blobs whose count has
+ * dropped to zero are deleted the next time the store is opened, unless a stored user still
+ * refers to them: the log is written as soon as a photo is removed, before the removal is
+ * saved, so a crash in between leaves the photo in storage with a count of zero. To see every
+ * change, the store must be registered with {@link model.ModelEvents} before the persistence
+ * layer is started.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class BlobStore implements ModelListener {
+
+    private static final String BLOBS_DIR = System.getProperty("user.dir")
+            + File.separator + "users" + File.separator + "blobs";
+    private static final String REF_LOG = "refs.log";
+    private static final int REF_LOG_MAGIC = 0x50485246; // "PHRF"
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static BlobStore instance;
+
+    private final File root;
+    // Reference count per blob file name, guarded by this.
+    private final Map<String, Integer> refCounts = new HashMap<>();
+    private DataOutputStream refLog;
+    // Blobs of files already imported in this session, by source path, size and modification time.
+    private final Map<String, Path> imported = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the blob store under "users/blobs", opening it on first use.
+     *
+     * @return the shared blob store
+     */
+    public static synchronized BlobStore getInstance() {
+        if (instance == null) {
+            instance = new BlobStore(new File(BLOBS_DIR));
+            try {
+                instance.open();
+            } catch (IOException e) {
+                System.err.println("Error opening the blob store: " + e.getMessage());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a blob store in the given directory. Call {@link #open()} before use.
+     *
+     * @param root the directory that holds the blobs
+     */
+    public BlobStore(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Reads the reference counts, deletes the blobs nobody refers to any more and compacts
+     * the reference log. If some blobs were released, the stored users are read to make sure
+     * none of them still refers to one; this must happen before any user is changed.
+     *
+     * @throws IOException if the store cannot be read or written
+     */
+    public synchronized void open() throws IOException {
+        root.mkdirs();
+        File log = new File(root, REF_LOG);
+        if (log.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+                if (in.readInt() != REF_LOG_MAGIC) {
+                    throw new IOException("Not a reference log: " + log);
+                }
+                while (true) {
+                    String key;
+                    int delta;
+                    try {
+                        key = in.readUTF();
+                        delta = in.readInt();
+                    } catch (EOFException e) {
+                        // End of the log, or an entry cut short by a crash.
+                        break;
+                    }
+                    refCounts.merge(key, delta, Integer::sum);
+                }
+            }
+        }
+
+        // Only blobs known to have been referenced and then released are removed; a file
+        // that never made it into an album is left alone.
+        List<String> released = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : refCounts.entrySet()) {
+            if (entry.getValue() <= 0) {
+                released.add(entry.getKey());
+            }
+        }
+        Map<String, Integer> stored = released.isEmpty() ? null : storedRefCounts();
+        if (stored != null) {
+            for (String key : released) {
+                Integer count = stored.get(key);
+                if (count == null) {
+                    blobFile(key).delete();
+                    refCounts.remove(key);
+                } else {
+                    // The release was logged but never saved; the stored count is the right one.
+                    refCounts.put(key, count);
+                }
+            }
+        }
+
+        // Rewrite the log with one entry per blob, then keep appending to it.
+        File temp = new File(root, REF_LOG + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(REF_LOG_MAGIC);
+            for (Map.Entry<String, Integer> entry : refCounts.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }
+        move(temp.toPath(), log.toPath());
+        refLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true)));
+    }
+
+    /**
+     * Stores a file, unless a file with the same contents is already stored, and returns
+     * the blob. Memory use does not depend on the size of the file. May be called from
+     * several threads at once.
+     * <p>
+     * With the system property {@code photos.import.hardLink=true} a new blob on the same file
+     * system as the source is hard-linked to it instead of copied.
+     * </p>
+     *
+     * @param source the file to store
+     * @return the path of the blob holding the file's contents
+     * @throws IOException if the file cannot be read or the blob cannot be written
+     */
+    public Path importFile(Path source) throws IOException {
+        String sessionKey = source.toAbsolutePath() + "|" + Files.size(source) + "|"
+                + Files.getLastModifiedTime(source).toMillis();
+        Path known = imported.get(sessionKey);
+        if (known != null && Files.exists(known)) {
+            return known;
+        }
+
+        String extension = extension(source.getFileName().toString());
+        File tempDir = new File(root, "tmp");
+        tempDir.mkdirs();
+        Path temp = Files.createTempFile(tempDir.toPath(), "import", ".part");
+        Path blob;
+        try {
+            String hash;
+            boolean link = Boolean.getBoolean("photos.import.hardLink");
+            if (link) {
+                // Hash first; the file is only linked if it is new.
+                hash = hash(source, null);
+            } else {
+                hash = hash(source, temp);
+            }
+            blob = blobFile(hash + extension).toPath();
+            if (!Files.exists(blob)) {
+                Files.createDirectories(blob.getParent());
+                if (link && link(source, blob)) {
+                    Files.deleteIfExists(temp);
+                } else {
+                    if (link) {
+                        PhotoImporter.copy(source, temp);
+                    }
+                    Files.setLastModifiedTime(temp, Files.getLastModifiedTime(source));
+                    move(temp, blob);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        imported.put(sessionKey, blob);
+        return blob;
+    }
+
+    /**
+     * Returns whether a path points into this blob store.
+     *
+     * @param path a photo path
+     * @return true if the path is a blob of this store
+     */
+    public boolean isBlob(String path) {
+        return key(path) != null;
+    }
+
+    /**
+     * Returns how many album entries refer to a blob.
+     *
+     * @param path the blob's path
+     * @return the reference count, or 0 if the path is not a blob
+     */
+    public synchronized int getRefCount(String path) {
+        String key = key(path);
+        return (key == null) ? 0 : refCounts.getOrDefault(key, 0);
+    }
+
+    /**
+     * Writes the pending reference log entries to the file.
+     */
+    public synchronized void flush() {
+        if (refLog != null) {
+            try {
+                refLog.flush();
+            } catch (IOException e) {
+                System.err.println("Error writing the blob reference log: " + e.getMessage());
+            }
+        }
+    }
+
+    // ---- Files ----
+
+    private File blobFile(String key) {
+        // Two-character fan-out keeps directories small.
+        return new File(new File(root, key.substring(0, 2)), key);
+    }
+
+    // Returns the blob's file name if the path is a blob of this store, or null.
+    private String key(String path) {
+        File file = new File(path);
+        File fanOut = file.getParentFile();
+        if (fanOut == null || !root.getAbsoluteFile().equals(fanOut.getAbsoluteFile().getParentFile())) {
+            return null;
+        }
+        return file.getName();
+    }
+
+    private static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot < 0) ? "" : fileName.substring(dot).toLowerCase();
+    }
+
+    /**
+     * Computes the SHA-256 of a file, copying it to the given target on the way if it is not null.
+     */
+    private static String hash(Path source, Path copyTo) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = (copyTo == null) ? null : FileChannel.open(copyTo, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer.array(), 0, buffer.limit());
+                if (out != null) {
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static boolean link(Path source, Path blob) {
+        try {
+            if (!Files.getFileStore(source).equals(Files.getFileStore(blob.getParent()))) {
+                return false;
+            }
+            Files.createLink(blob, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // ---- Reference counting ----
+
+    private synchronized void adjust(String path, int delta) {
+        String key = key(path);
+        if (key == null || delta == 0) {
+            return;
+        }
+        refCounts.merge(key, delta, Integer::sum);
+        if (refLog == null) {
+            return;
+        }
+        try {
+            refLog.writeUTF(key);
+            refLog.writeInt(delta);
+            refLog.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing the blob reference log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Counts the album entries of every stored user per blob, including the changes in the
+     * journals. Returns null if a user cannot be read, since then nothing is known to be unused.
+     */
+    private Map<String, Integer> storedRefCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        try {
+            for (User user : PersistenceManager.loadUsers()) {
+                for (Album album : PersistenceManager.readStoredUser(user.getUsername()).getAlbums()) {
+                    for (Photo photo : album.getPhotos()) {
+                        String key = key(photo.getPath());
+                        if (key != null) {
+                            counts.merge(key, 1, Integer::sum);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            System.err.println("Could not check the stored users for unused photo files: " + e.getMessage());
+            return null;
+        }
+        return counts;
+    }
+
+    private void adjust(List<Photo> photos, int delta) {
+        for (Photo photo : photos) {
+            adjust(photo.getPath(), delta);
+        }
+    }
+
+    @Override
+    public void userDeleted(User user) {
+        User stored = user;
+        if (!user.isLoaded()) {
+            try {
+                stored = PersistenceManager.readStoredUser(user.getUsername());
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Could not release the photos of " + user.getUsername() + ": " + e.getMessage());
+                return;
+            }
+        }
+        for (Album album : stored.getAlbums()) {
+            adjust(album.getPhotos(), -1);
+        }
+    }
+
+    @Override
+    public void albumAdded(User user, Album album) {
+        adjust(album.getPhotos(), 1);
+    }
+
+    @Override
+    public void albumRemoved(User user, Album album) {
+        adjust(album.getPhotos(), -1);
+    }
+
+    @Override
+    public void photoAdded(Album album, Photo photo) {
+        adjust(photo.getPath(), 1);
+    }
+
+    @Override
+    public void photoRemoved(Album album, Photo photo) {
+        adjust(photo.getPath(), -1);
+    }
+}
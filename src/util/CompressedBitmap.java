@@ -0,0 +1,743 @@
+package util;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of non-negative ints stored as a compressed bitmap, in the manner of Roaring bitmaps.
+ * <p>
+ * The ints are split by their upper 16 bits into chunks of 65536. Each chunk that holds any of
+ * them has a container of its own: a sorted array of the lower 16 bits while it holds at most
+ * 4096 of them, and a plain bitmap of 65536 bits (8 KB) once it holds more. A sparse set thus
+ * takes two bytes per int, a dense one one bit per int, and never more than a plain bitmap.
+ * Intersections, unions and differences work a chunk at a time: two bitmap containers are
+ * combined 64 bits per step, an array with a bitmap by lookups into the bitmap, and two arrays
+ * by a merge. The number of ints is kept per container, so {@link #cardinality()} only adds
+ * up the containers.
+ * </p>
+ * <p>
+ * The binary operations return new bitmaps and leave their arguments alone. A bitmap is not
+ * safe for use by several threads while it is being changed.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public final class CompressedBitmap {
+
+    // The largest number of values an array container holds before it becomes a bitmap.
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+
+    // The upper 16 bits of each chunk, in ascending order, and the chunk's container.
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    /**
+     * Creates an empty bitmap.
+     */
+    public CompressedBitmap() {
+        this(4);
+    }
+
+    private CompressedBitmap(int capacity) {
+        keys = new char[Math.max(1, capacity)];
+        containers = new Container[keys.length];
+    }
+
+    /**
+     * Creates a bitmap holding the given values.
+     *
+     * @param values the values, each at least 0, in any order
+     * @return the bitmap
+     */
+    public static CompressedBitmap of(int... values) {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (int value : values) {
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param value the value, at least 0
+     * @return true if the value was not in the bitmap yet
+     */
+    public boolean add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        char high = (char) (value >>> 16);
+        int index = indexOf(high);
+        if (index < 0) {
+            index = -index - 1;
+            insert(index, high, new ArrayContainer());
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        containers[index] = container.add((char) value);
+        return containers[index].cardinality() != before;
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @param value the value
+     * @return true if the value was in the bitmap
+     */
+    public boolean remove(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = indexOf((char) (value >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        container = container.remove((char) value);
+        if (container.cardinality() == 0) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+            containers[--size] = null;
+        } else {
+            containers[index] = container;
+        }
+        return container.cardinality() != before;
+    }
+
+    /**
+     * Returns whether a value is in the bitmap.
+     *
+     * @param value the value
+     * @return true if it is
+     */
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = indexOf((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    /**
+     * Returns the number of values in the bitmap.
+     *
+     * @return the number of values
+     */
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    /**
+     * Returns whether the bitmap holds no values.
+     *
+     * @return true if it is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Passes every value to an action, in ascending order.
+     *
+     * @param action the action
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /**
+     * Returns the values in ascending order.
+     *
+     * @return a new array of the values
+     */
+    public int[] toArray() {
+        int[] values = new int[cardinality()];
+        int[] next = new int[1];
+        forEach(value -> values[next[0]++] = value);
+        return values;
+    }
+
+    /**
+     * Returns a copy of this bitmap that can be changed independently.
+     *
+     * @return the copy
+     */
+    public CompressedBitmap copy() {
+        CompressedBitmap copy = new CompressedBitmap(size);
+        for (int i = 0; i < size; i++) {
+            copy.append(keys[i], containers[i].copy());
+        }
+        return copy;
+    }
+
+    /**
+     * Adds every value of another bitmap to this one. Cheaper than {@link #or} when many bitmaps
+     * are combined into one, since the chunks this bitmap already has are updated in place.
+     *
+     * @param other the bitmap whose values to add; it is not changed
+     */
+    public void addAll(CompressedBitmap other) {
+        char[] newKeys = new char[size + other.size];
+        Container[] newContainers = new Container[newKeys.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                newKeys[count] = keys[i];
+                newContainers[count++] = containers[i++];
+            } else if (i == size || keys[i] > other.keys[j]) {
+                newKeys[count] = other.keys[j];
+                newContainers[count++] = other.containers[j++].copy();
+            } else {
+                newKeys[count] = keys[i];
+                newContainers[count++] = containers[i++].orInPlace(other.containers[j++]);
+            }
+        }
+        keys = newKeys;
+        containers = newContainers;
+        size = count;
+    }
+
+    /**
+     * Returns the values that are in both bitmaps.
+     *
+     * @param a a bitmap
+     * @param b another bitmap
+     * @return a new bitmap
+     */
+    public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap(Math.min(a.size, b.size));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                Container both = a.containers[i].and(b.containers[j]);
+                if (both.cardinality() > 0) {
+                    result.append(a.keys[i], both);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of values that are in both bitmaps, without building their intersection.
+     *
+     * @param a a bitmap
+     * @param b another bitmap
+     * @return the number of common values
+     */
+    public static int andCardinality(CompressedBitmap a, CompressedBitmap b) {
+        int cardinality = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                cardinality += a.containers[i].andCardinality(b.containers[j]);
+                i++;
+                j++;
+            }
+        }
+        return cardinality;
+    }
+
+    /**
+     * Returns the values that are in either bitmap.
+     *
+     * @param a a bitmap
+     * @param b another bitmap
+     * @return a new bitmap
+     */
+    public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap(a.size + b.size);
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.append(a.keys[i], a.containers[i++].copy());
+            } else if (i == a.size || a.keys[i] > b.keys[j]) {
+                result.append(b.keys[j], b.containers[j++].copy());
+            } else {
+                result.append(a.keys[i], a.containers[i++].or(b.containers[j++]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values of one bitmap that are not in another.
+     *
+     * @param a the bitmap to take values from
+     * @param b the bitmap of values to leave out
+     * @return a new bitmap
+     */
+    public static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap(a.size);
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < b.size && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            if (j < b.size && b.keys[j] == a.keys[i]) {
+                Container rest = a.containers[i].andNot(b.containers[j]);
+                if (rest.cardinality() > 0) {
+                    result.append(a.keys[i], rest);
+                }
+            } else {
+                result.append(a.keys[i], a.containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("{");
+        forEach(value -> {
+            if (text.length() > 1) {
+                text.append(", ");
+            }
+            text.append(value);
+        });
+        return text.append('}').toString();
+    }
+
+    private int indexOf(char high) {
+        // Most bitmaps of photo ids have a handful of chunks; the last one is the usual target.
+        if (size > 0 && keys[size - 1] == high) {
+            return size - 1;
+        }
+        return Arrays.binarySearch(keys, 0, size, high);
+    }
+
+    private void insert(int index, char high, Container container) {
+        ensureCapacity(size + 1);
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = high;
+        containers[index] = container;
+        size++;
+    }
+
+    private void append(char high, Container container) {
+        ensureCapacity(size + 1);
+        keys[size] = high;
+        containers[size++] = container;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > keys.length) {
+            int length = Math.max(capacity, keys.length * 2);
+            keys = Arrays.copyOf(keys, length);
+            containers = Arrays.copyOf(containers, length);
+        }
+    }
+
+    /**
+     * The values of one chunk. Changing a container may turn it into the other kind, so the
+     * changing methods return the container to keep.
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char low);
+
+        abstract Container add(char low);
+
+        abstract Container remove(char low);
+
+        abstract Container and(Container other);
+
+        abstract int andCardinality(Container other);
+
+        abstract Container or(Container other);
+
+        // Like or, but may change this container instead of making a new one.
+        abstract Container orInPlace(Container other);
+
+        abstract Container andNot(Container other);
+
+        abstract void forEach(int base, IntConsumer action);
+
+        abstract Container copy();
+    }
+
+    /**
+     * A chunk of at most 4096 values, as their sorted lower 16 bits.
+     */
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+            // Ids are mostly handed out in ascending order.
+            int index = (cardinality == 0 || values[cardinality - 1] < low) ? -cardinality - 1
+                    : Arrays.binarySearch(values, 0, cardinality, low);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_MAX) {
+                return toBitmap().add(low);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, values.length * 2)));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = low;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            int index = Arrays.binarySearch(values, 0, cardinality, low);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] both = new char[Math.min(cardinality, other.cardinality())];
+            int count = 0;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while (i < cardinality && j < array.cardinality) {
+                    if (values[i] < array.values[j]) {
+                        i++;
+                    } else if (values[i] > array.values[j]) {
+                        j++;
+                    } else {
+                        both[count++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) {
+                        both[count++] = values[i];
+                    }
+                }
+            }
+            return new ArrayContainer(both, count);
+        }
+
+        @Override
+        int andCardinality(Container other) {
+            int count = 0;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while (i < cardinality && j < array.cardinality) {
+                    if (values[i] < array.values[j]) {
+                        i++;
+                    } else if (values[i] > array.values[j]) {
+                        j++;
+                    } else {
+                        count++;
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer array = (ArrayContainer) other;
+            if (cardinality + array.cardinality > ARRAY_MAX) {
+                BitmapContainer bitmap = toBitmap();
+                for (int j = 0; j < array.cardinality; j++) {
+                    bitmap.add(array.values[j]);
+                }
+                return bitmap.normalize();
+            }
+            char[] union = new char[cardinality + array.cardinality];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < cardinality || j < array.cardinality) {
+                if (j == array.cardinality || (i < cardinality && values[i] < array.values[j])) {
+                    union[count++] = values[i++];
+                } else if (i == cardinality || values[i] > array.values[j]) {
+                    union[count++] = array.values[j++];
+                } else {
+                    union[count++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+            return new ArrayContainer(union, count);
+        }
+
+        @Override
+        Container orInPlace(Container other) {
+            return or(other);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            char[] rest = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    rest[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(rest, count);
+        }
+
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < cardinality; i++) {
+                action.accept(base | values[i]);
+            }
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(1, cardinality)), cardinality);
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * A chunk of more than 4096 values, as a bitmap of 65536 bits.
+     */
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer() {
+            this(new long[WORDS], 0);
+        }
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+            long word = words[low >>> 6];
+            long bit = 1L << low;
+            if ((word & bit) == 0) {
+                words[low >>> 6] = word | bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            long word = words[low >>> 6];
+            long bit = 1L << low;
+            if ((word & bit) != 0) {
+                words[low >>> 6] = word & ~bit;
+                cardinality--;
+            }
+            return normalize();
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] otherWords = ((BitmapContainer) other).words;
+            long[] both = new long[WORDS];
+            int count = 0;
+            for (int i = 0; i < WORDS; i++) {
+                both[i] = words[i] & otherWords[i];
+                count += Long.bitCount(both[i]);
+            }
+            return new BitmapContainer(both, count).normalize();
+        }
+
+        @Override
+        int andCardinality(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.andCardinality(this);
+            }
+            long[] otherWords = ((BitmapContainer) other).words;
+            int count = 0;
+            for (int i = 0; i < WORDS; i++) {
+                count += Long.bitCount(words[i] & otherWords[i]);
+            }
+            return count;
+        }
+
+        @Override
+        Container or(Container other) {
+            long[] union = words.clone();
+            int count;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                count = cardinality;
+                for (int i = 0; i < array.cardinality; i++) {
+                    char low = array.values[i];
+                    long bit = 1L << low;
+                    if ((union[low >>> 6] & bit) == 0) {
+                        union[low >>> 6] |= bit;
+                        count++;
+                    }
+                }
+            } else {
+                long[] otherWords = ((BitmapContainer) other).words;
+                count = 0;
+                for (int i = 0; i < WORDS; i++) {
+                    union[i] |= otherWords[i];
+                    count += Long.bitCount(union[i]);
+                }
+            }
+            return new BitmapContainer(union, count);
+        }
+
+        @Override
+        Container orInPlace(Container other) {
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    add(array.values[i]);
+                }
+                return this;
+            }
+            long[] otherWords = ((BitmapContainer) other).words;
+            int count = 0;
+            for (int i = 0; i < WORDS; i++) {
+                words[i] |= otherWords[i];
+                count += Long.bitCount(words[i]);
+            }
+            cardinality = count;
+            return this;
+        }
+
+        @Override
+        Container andNot(Container other) {
+            long[] rest = words.clone();
+            int count;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                count = cardinality;
+                for (int i = 0; i < array.cardinality; i++) {
+                    char low = array.values[i];
+                    long bit = 1L << low;
+                    if ((rest[low >>> 6] & bit) != 0) {
+                        rest[low >>> 6] &= ~bit;
+                        count--;
+                    }
+                }
+            } else {
+                long[] otherWords = ((BitmapContainer) other).words;
+                count = 0;
+                for (int i = 0; i < WORDS; i++) {
+                    rest[i] &= ~otherWords[i];
+                    count += Long.bitCount(rest[i]);
+                }
+            }
+            return new BitmapContainer(rest, count).normalize();
+        }
+
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(base | (i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        // An array container instead, if the values fit in one.
+        Container normalize() {
+            if (cardinality > ARRAY_MAX) {
+                return this;
+            }
+            char[] values = new char[Math.max(1, cardinality)];
+            int[] count = new int[1];
+            forEach(0, value -> values[count[0]++] = (char) value);
+            return new ArrayContainer(values, cardinality);
+        }
+    }
+}
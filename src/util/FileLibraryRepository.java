@@ -0,0 +1,802 @@
+package util;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import model.Admin;
+import model.Album;
+import model.ModelEvents;
+import model.ModelListener;
+import model.Photo;
+import model.Tag;
+import model.User;
+
+/**
+ * The default {@link LibraryRepository}, which keeps the library in plain files.
+ * <p>
+ * Storage is split into a small user catalog, "users/catalog.dat", which only lists the
+ * usernames, and one shard per user under "users/&lt;name&gt;/". Only the catalog is read at
+ * startup; a user's albums are read from their shard when they log in (see {@link #loadUser(User)}).
+ * </p>
+ * <p>
+ * Each shard holds a snapshot, "user.dat", in the binary format of {@link LibraryCodec}, and a
+ * journal, "journal.log", of the changes made after the snapshot was written (see {@link MutationJournal}). The journal is replayed when the
+ * user is loaded. Snapshots are written in the background by an {@link AutosaveService}.
+ * </p>
+ * <p>
+ * Snapshots can be compressed with {@link Deflater}, which mostly pays off for large libraries
+ * on slow or network file systems. Compression is switched on with the system property
+ * {@code photos.snapshot.compress=true}, and {@code photos.snapshot.compressionLevel} (0-9,
+ * default 1) trades speed for size. Compressed and plain snapshots are told apart when read,
+ * so the setting can be changed at any time.
+ * </p>
+ * <p>
+ * Every file is replaced atomically: the new contents go to a temporary file which is synced
+ * and then renamed over the old one, so a crash never leaves a half-written snapshot behind.
+ * The previous snapshot is kept as "user.dat.prev" and used if the current one cannot be read.
+ * </p>
+ * <p>
+ * A library saved by an older version as a single "users/users.dat" is split into shards
+ * the first time it is loaded, and snapshots still in Java serialization format are rewritten
+ * in the binary format after they have been read.
+ * </p>
+ * <p>
+ * Tag types are kept in "users/tagTypes.dat", to which every registration is appended.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class FileLibraryRepository implements LibraryRepository {
+    private static final String USERS_DIR = System.getProperty("user.dir")
+            + File.separator + "users";
+    private static final String CATALOG_FILE = USERS_DIR + File.separator + "catalog.dat";
+    private static final String LEGACY_USERS_FILE = USERS_DIR + File.separator + "users.dat";
+    private static final String LEGACY_JOURNAL_FILE = USERS_DIR + File.separator + "journal.log";
+    private static final String SHARD_SNAPSHOT = "user.dat";
+    private static final String SHARD_JOURNAL = "journal.log";
+    private static final String PREVIOUS_SUFFIX = ".prev";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String TAG_TYPES_FILE = USERS_DIR + File.separator + "tagTypes.dat";
+
+    private static final int CATALOG_MAGIC = 0x50484354; // "PHCT"
+    private static final int TAG_TYPES_MAGIC = 0x50485454; // "PHTT"
+    // Precedes the deflated stream of a compressed snapshot.
+    private static final int COMPRESSED_MAGIC = 0x50484C5A; // "PHLZ"
+    // First two bytes of a Java serialization stream, i.e. a snapshot written by an older version.
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    // How long a background save waits for the model thread to copy a user.
+    private static final long COPY_TIMEOUT_SECONDS = 30;
+
+    // Open journals of the users currently loaded, by username.
+    private final Map<String, MutationJournal> journals = new ConcurrentHashMap<>();
+    // Users that logged out and whose albums are about to be dropped, guarded by this.
+    private final Set<User> pendingUnload = new HashSet<>();
+    // Serializes snapshot writes; never acquired while holding the monitor of this.
+    private final Object saveLock = new Object();
+    private ArrayList<User> catalogUsers;
+    private AutosaveService autosave;
+    // Deflater level for new snapshots, or -1 to write them uncompressed.
+    private final int compressionLevel;
+    // Runs tasks on the thread that changes the model, and tells whether that is the current
+    // thread; null if the model is only used on the calling thread.
+    private volatile Executor modelThread;
+    private volatile BooleanSupplier onModelThread;
+
+    /**
+     * Creates a repository for the files under "users/", using the configured snapshot compression.
+     */
+    public FileLibraryRepository() {
+        int level = -1;
+        if (Boolean.getBoolean("photos.snapshot.compress")) {
+            level = Integer.getInteger("photos.snapshot.compressionLevel", Deflater.BEST_SPEED);
+            level = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+        }
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Loads the user catalog from disk. Every user is returned unloaded, without albums;
+     * call {@link #loadUser(User)} before using a user's albums. The admin is not part of
+     * the catalog and is created by {@link Admin#getInstance}.
+     * If the catalog does not exist, a new, empty list is returned.
+     *
+     * @return the list of users in the catalog, or an empty list if there is none
+     * @throws IOException if an I/O error occurs while reading the catalog
+     * @throws ClassNotFoundException if a legacy users.dat file cannot be deserialized
+     */
+    @Override
+    public ArrayList<User> loadUsers() throws IOException, ClassNotFoundException {
+        File catalog = new File(CATALOG_FILE);
+        if (!catalog.exists() && new File(LEGACY_USERS_FILE).exists()) {
+            migrateLegacyFile();
+        }
+        ArrayList<User> users = new ArrayList<>();
+        if (!catalog.exists()) {
+            return users;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(catalog)))) {
+            if (in.readInt() != CATALOG_MAGIC) {
+                throw new IOException("Not a user catalog: " + CATALOG_FILE);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                users.add(User.createUnloaded(in.readUTF()));
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Starts tracking the given user list: the catalog is rewritten when users are added
+     * or deleted, users that exist only in memory (such as a freshly created stock user)
+     * get a shard, and the autosave service is started. Should be called once at startup,
+     * after {@link #loadUsers()} and after any default users have been created.
+     *
+     * @param users the live user list
+     * @throws IOException if the catalog or a shard cannot be written
+     */
+    @Override
+    public synchronized void start(ArrayList<User> users) throws IOException {
+        if (catalogUsers != null) {
+            return;
+        }
+        catalogUsers = users;
+        saveCatalog();
+        for (User user : users) {
+            if (user.isLoaded() && !(user instanceof Admin)) {
+                writeSnapshot(user, encodeSnapshot(user));
+                openJournal(user, 0);
+            }
+        }
+        autosave = new AutosaveService(this);
+        ModelEvents.addListener(new CatalogListener());
+        ModelEvents.addListener(autosave);
+    }
+
+    /**
+     * Sets how to reach the thread that changes the model, such as the JavaFX application thread.
+     * Background saves copy the user there, so a snapshot never mixes values from before and
+     * after an edit, and encode and write the copy in the background. Without it, users are
+     * copied on the thread that saves them.
+     *
+     * @param executor runs a task on the model thread, e.g. {@code Platform::runLater}
+     * @param isModelThread tells whether the current thread is the model thread
+     */
+    public void setModelThread(Executor executor, BooleanSupplier isModelThread) {
+        this.onModelThread = isModelThread;
+        this.modelThread = executor;
+    }
+
+    /**
+     * Returns the autosave service, e.g. to read its statistics.
+     *
+     * @return the autosave service, or null before {@link #start} has been called
+     */
+    public AutosaveService getAutosave() {
+        return autosave;
+    }
+
+    /**
+     * Reads a user's albums from their shard: the snapshot, with the journal replayed on top.
+     * Does nothing if the user is already loaded.
+     *
+     * @param user the user to load
+     * @throws IOException if an I/O error occurs while reading the shard
+     * @throws ClassNotFoundException if the class of a serialized object cannot be found
+     */
+    @Override
+    public synchronized void loadUser(User user) throws IOException, ClassNotFoundException {
+        // Logging back in before the previous logout finished: keep the albums in memory.
+        pendingUnload.remove(user);
+        if (user.isLoaded()) {
+            return;
+        }
+        long[] valid = new long[1];
+        User stored = readShard(user.getUsername(), valid);
+        user.attachAlbums(stored.getAlbums());
+        openJournal(user, valid[0]);
+        if (autosave != null && isJavaSerialized(new File(shardDir(user.getUsername()), SHARD_SNAPSHOT))) {
+            // One-time migration: the next autosave rewrites the snapshot in the binary format.
+            autosave.markDirty(user);
+        }
+    }
+
+    /**
+     * Unloads a user, e.g. when they log out. Returns immediately: any unsaved changes are
+     * saved, and the albums dropped from memory, on the autosave thread.
+     *
+     * @param user the user to unload
+     */
+    @Override
+    public synchronized void unloadUser(User user) {
+        if (user == null || !user.isLoaded() || user instanceof Admin) {
+            return;
+        }
+        pendingUnload.add(user);
+        Runnable detach = () -> {
+            synchronized (FileLibraryRepository.this) {
+                if (!pendingUnload.remove(user)) {
+                    // The user logged in again meanwhile.
+                    return;
+                }
+                closeJournal(user);
+                user.detachAlbums();
+            }
+        };
+        if (autosave != null) {
+            autosave.submit(user, detach);
+        } else {
+            detach.run();
+        }
+    }
+
+    /**
+     * Writes a new snapshot of one user's shard and drops the journal records it contains.
+     * May be called from any thread while the model is being edited: the user is copied on the
+     * model thread, see {@link #setModelThread}, and records appended after the copy was taken
+     * are kept and replayed on top of it.
+     *
+     * @param user the loaded user to save
+     * @return the number of bytes written, or -1 if the user is not loaded
+     * @throws IOException if an I/O error occurs while writing the file
+     */
+    @Override
+    public long saveUser(User user) throws IOException {
+        synchronized (saveLock) {
+            MutationJournal journal;
+            synchronized (FileLibraryRepository.this) {
+                if (!user.isLoaded() || user instanceof Admin) {
+                    return -1;
+                }
+                journal = journals.get(user.getUsername());
+            }
+            long[] mark = new long[1];
+            User copy = onModelThread(() -> {
+                if (!user.isLoaded()) {
+                    return null;
+                }
+                mark[0] = (journal != null) ? journal.mark() : 0;
+                return copyOf(user);
+            });
+            if (copy == null) {
+                return -1;
+            }
+            byte[] data = encodeSnapshot(copy);
+            writeSnapshot(copy, data);
+            if (journal != null) {
+                journal.discardBefore(mark[0]);
+            }
+            return data.length;
+        }
+    }
+
+    /**
+     * Makes sure every journaled change is on the storage device.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void flush() throws IOException {
+        for (MutationJournal journal : journals.values()) {
+            journal.sync();
+        }
+    }
+
+    /**
+     * Stops the autosave service and syncs the journals. Called on application exit;
+     * changes that were not saved in a snapshot yet are replayed from the journals next time.
+     */
+    @Override
+    public void shutdown() {
+        if (autosave != null) {
+            autosave.shutdown(5000);
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Error syncing journals: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<Photo> findPhotosByTag(String username, String tagType, String tagValue) throws IOException {
+        List<Photo> found = new ArrayList<>();
+        User loaded = loadedUser(username);
+        if (loaded != null) {
+            // The tag index ignores the case of the value; this lookup does not.
+            for (Photo photo : loaded.getTagIndex().find(tagType, tagValue)) {
+                for (Tag tag : photo.getTags()) {
+                    if (tag.getTagType().equalsIgnoreCase(tagType) && tag.getTagValue().equals(tagValue)) {
+                        found.add(photo);
+                        break;
+                    }
+                }
+            }
+            return found;
+        }
+        for (Photo photo : photosOf(username)) {
+            for (Tag tag : photo.getTags()) {
+                if (tag.getTagType().equalsIgnoreCase(tagType) && tag.getTagValue().equals(tagValue)) {
+                    found.add(photo);
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<Photo> findPhotosByDate(String username, long fromMillis, long toMillis) throws IOException {
+        User loaded = loadedUser(username);
+        if (loaded != null) {
+            return new ArrayList<>(loaded.getDateIndex().between(fromMillis, toMillis));
+        }
+        List<Photo> found = new ArrayList<>();
+        for (Photo photo : photosOf(username)) {
+            long date = photo.getDateMillis();
+            if (date >= fromMillis && date <= toMillis) {
+                found.add(photo);
+            }
+        }
+        return found;
+    }
+
+    // The user's live object if their albums are in memory, otherwise null.
+    private synchronized User loadedUser(String username) {
+        if (catalogUsers != null) {
+            int index = catalogUsers.indexOf(new User(username));
+            if (index >= 0 && catalogUsers.get(index).isLoaded()) {
+                return catalogUsers.get(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns every photo of a user once. A user that is not loaded is read from their
+     * shard without being attached, so this is a full scan either way.
+     */
+    private List<Photo> photosOf(String username) throws IOException {
+        User user = null;
+        synchronized (this) {
+            if (catalogUsers != null) {
+                int index = catalogUsers.indexOf(new User(username));
+                if (index >= 0 && catalogUsers.get(index).isLoaded()) {
+                    user = catalogUsers.get(index);
+                }
+            }
+            if (user == null) {
+                try {
+                    user = readShard(username, new long[1]);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Cannot read the library of " + username, e);
+                }
+            }
+        }
+        Set<Photo> photos = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Photo> result = new ArrayList<>();
+        for (Album album : new ArrayList<>(user.getAlbums())) {
+            for (Photo photo : new ArrayList<>(album.getPhotos())) {
+                if (photos.add(photo)) {
+                    result.add(photo);
+                }
+            }
+        }
+        return result;
+    }
+
+    // ---- Tag types ----
+
+    @Override
+    public synchronized Map<String, Boolean> loadTagTypes() throws IOException {
+        Map<String, Boolean> tagTypes = new LinkedHashMap<>();
+        File file = new File(TAG_TYPES_FILE);
+        if (!file.exists()) {
+            return tagTypes;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != TAG_TYPES_MAGIC) {
+                throw new IOException("Not a tag type file: " + TAG_TYPES_FILE);
+            }
+            while (true) {
+                String name;
+                boolean multiple;
+                try {
+                    name = in.readUTF();
+                    multiple = in.readBoolean();
+                } catch (EOFException e) {
+                    // End of file, or a registration cut short by a crash.
+                    break;
+                }
+                // Later registrations of the same type override earlier ones.
+                tagTypes.put(name, multiple);
+            }
+        }
+        return tagTypes;
+    }
+
+    @Override
+    public synchronized void saveTagType(String tagType, boolean multipleAllowed) throws IOException {
+        File file = new File(TAG_TYPES_FILE);
+        file.getParentFile().mkdirs();
+        boolean created = !file.exists();
+        try (FileOutputStream fileOut = new FileOutputStream(file, true);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            if (created) {
+                out.writeInt(TAG_TYPES_MAGIC);
+            }
+            out.writeUTF(tagType);
+            out.writeBoolean(multipleAllowed);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    // ---- Shards ----
+
+    private File shardDir(String username) {
+        return new File(USERS_DIR, username);
+    }
+
+    @Override
+    public synchronized User readStoredUser(String username) throws IOException, ClassNotFoundException {
+        return readShard(username, new long[1]);
+    }
+
+    /**
+     * Reads a user's shard: the snapshot with the journal replayed on top. The user is not
+     * attached to anything; valid[0] receives the length of the intact part of the journal.
+     */
+    private User readShard(String username, long[] valid) throws IOException, ClassNotFoundException {
+        File dir = shardDir(username);
+        ArrayList<User> shard = new ArrayList<>();
+        shard.add(readSnapshot(username, new File(dir, SHARD_SNAPSHOT)));
+        valid[0] = replay(new File(dir, SHARD_JOURNAL), shard);
+        return shard.get(0);
+    }
+
+    /**
+     * Encodes a user into memory. The user must not change meanwhile: it is either used on the
+     * calling thread only, or a copy, see {@link #copyOf}.
+     */
+    private byte[] encodeSnapshot(User user) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        Deflater deflater = null;
+        OutputStream stream = bytes;
+        if (compressionLevel >= 0) {
+            new DataOutputStream(bytes).writeInt(COMPRESSED_MAGIC);
+            deflater = new Deflater(compressionLevel);
+            stream = new DeflaterOutputStream(bytes, deflater, 64 * 1024);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+            LibraryCodec.write(user, out);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Copies what a snapshot holds of a user: the albums, and the photos with their captions and
+     * tags. A photo in several albums stays one photo. Must run on the model thread; the copy
+     * is not attached, and building it reports no changes.
+     */
+    private static User copyOf(User user) {
+        User copy = new User(user.getUsername());
+        Map<Photo, Photo> photos = new IdentityHashMap<>();
+        ModelEvents.runSilently(() -> {
+            for (Album album : user.getAlbums()) {
+                Album albumCopy = new Album(album.getName());
+                for (Photo photo : album.getPhotos()) {
+                    albumCopy.addPhoto(photos.computeIfAbsent(photo, p -> {
+                        Photo photoCopy = new Photo(p.getPath(), p.getDateMillis(), p.getName(),
+                                p.getWidth(), p.getHeight(), p.getOrientation());
+                        photoCopy.setCaption(p.getCaption());
+                        photoCopy.setTags(new ArrayList<>(p.getTags()));
+                        return photoCopy;
+                    }));
+                }
+                copy.addAlbum(albumCopy);
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * Runs a task on the model thread and waits for its result, or runs it right away if there
+     * is no model thread or this is it.
+     */
+    private <T> T onModelThread(Callable<T> task) throws IOException {
+        Executor executor = modelThread;
+        BooleanSupplier isModelThread = onModelThread;
+        FutureTask<T> future = new FutureTask<>(task);
+        try {
+            if (executor == null || isModelThread.getAsBoolean()) {
+                future.run();
+            } else {
+                executor.execute(future);
+            }
+            return future.get(COPY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        } catch (TimeoutException | RejectedExecutionException | IllegalStateException e) {
+            // The model thread is busy for too long, or has stopped.
+            future.cancel(false);
+            throw new IOException("The model thread is not available: " + e, e);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the model thread");
+        }
+    }
+
+    private void writeSnapshot(User user, byte[] data) throws IOException {
+        File dir = shardDir(user.getUsername());
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        writeAtomically(new File(dir, SHARD_SNAPSHOT), data, true);
+    }
+
+    /**
+     * Reads a snapshot, falling back to the previous generation if the current one is
+     * missing or damaged. Returns an empty user if there is neither.
+     */
+    private User readSnapshot(String username, File snapshot) throws IOException, ClassNotFoundException {
+        File previous = new File(snapshot.getPath() + PREVIOUS_SUFFIX);
+        if (snapshot.exists()) {
+            try {
+                return readUser(snapshot);
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                if (!previous.exists()) {
+                    throw e;
+                }
+                System.err.println("Snapshot " + snapshot + " is damaged (" + e.getMessage()
+                        + "), recovering from the previous generation.");
+            }
+        }
+        if (previous.exists()) {
+            return readUser(previous);
+        }
+        return new User(username);
+    }
+
+    /**
+     * Reads a snapshot in the binary format, compressed or not, or, for files written by
+     * older versions, Java serialization.
+     */
+    private User readUser(File file) throws IOException, ClassNotFoundException {
+        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            in.mark(4);
+            DataInputStream header = new DataInputStream(in);
+            int magic;
+            try {
+                magic = header.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Snapshot " + file + " is truncated", e);
+            }
+            if (magic == COMPRESSED_MAGIC) {
+                Inflater inflater = new Inflater();
+                try {
+                    InputStream inflated = new BufferedInputStream(new InflaterInputStream(in, inflater, 64 * 1024), 64 * 1024);
+                    return LibraryCodec.read(new DataInputStream(inflated));
+                } finally {
+                    inflater.end();
+                }
+            }
+            in.reset();
+            if ((magic >>> 16) == JAVA_SERIALIZATION_MAGIC) {
+                return (User) new ObjectInputStream(in).readObject();
+            }
+            return LibraryCodec.read(new DataInputStream(in));
+        }
+    }
+
+    private boolean isJavaSerialized(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return ((in.read() << 8) | in.read()) == JAVA_SERIALIZATION_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replaces a file with the given contents without ever exposing a partly written file:
+     * the data is written to a temporary file, forced to disk, and renamed over the target.
+     *
+     * @param target the file to replace
+     * @param data the new contents
+     * @param keepPrevious whether to keep the old contents as target + ".prev"
+     */
+    private void writeAtomically(File target, byte[] data, boolean keepPrevious) throws IOException {
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        if (keepPrevious && target.exists()) {
+            move(target, new File(target.getPath() + PREVIOUS_SUFFIX));
+        }
+        move(temp, target);
+        syncDirectory(target.getParentFile());
+    }
+
+    private void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Makes the renames durable. Not every platform can open a directory; there it is skipped.
+    private void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Best effort only.
+        }
+    }
+
+    private void openJournal(User user, long validLength) throws IOException {
+        MutationJournal journal = new MutationJournal(new File(shardDir(user.getUsername()), SHARD_JOURNAL), user);
+        journal.open(validLength);
+        journals.put(user.getUsername(), journal);
+        ModelEvents.addListener(journal);
+    }
+
+    private void closeJournal(User user) {
+        MutationJournal journal = journals.remove(user.getUsername());
+        if (journal == null) {
+            return;
+        }
+        ModelEvents.removeListener(journal);
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing journal of " + user.getUsername() + ": " + e.getMessage());
+        }
+    }
+
+    private long replay(File journalFile, ArrayList<User> users) throws IOException {
+        long[] valid = new long[1];
+        IOException[] failure = new IOException[1];
+        ModelEvents.runSilently(() -> {
+            try {
+                valid[0] = MutationJournal.replay(journalFile, users);
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return valid[0];
+    }
+
+    private void deleteShard(String username) {
+        File dir = shardDir(username);
+        // Only the library files are removed; uploaded photos in the same folder stay.
+        for (String name : new String[] { SHARD_SNAPSHOT, SHARD_SNAPSHOT + PREVIOUS_SUFFIX, SHARD_JOURNAL }) {
+            new File(dir, name).delete();
+        }
+    }
+
+    // ---- Catalog ----
+
+    private void saveCatalog() throws IOException {
+        writeCatalog(catalogUsers);
+    }
+
+    private void writeCatalog(ArrayList<User> users) throws IOException {
+        File dir = new File(USERS_DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            ArrayList<String> names = new ArrayList<>();
+            for (User user : users) {
+                if (!(user instanceof Admin)) {
+                    names.add(user.getUsername());
+                }
+            }
+            out.writeInt(CATALOG_MAGIC);
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+        }
+        writeAtomically(new File(CATALOG_FILE), bytes.toByteArray(), false);
+    }
+
+    /**
+     * Keeps the catalog and the shards in step with user creation and deletion.
+     */
+    private class CatalogListener implements ModelListener {
+        @Override
+        public void userAdded(User user) {
+            synchronized (FileLibraryRepository.this) {
+                try {
+                    saveCatalog();
+                    if (user.isLoaded()) {
+                        writeSnapshot(user, encodeSnapshot(user));
+                        openJournal(user, 0);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error saving new user " + user.getUsername() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void userDeleted(User user) {
+            synchronized (FileLibraryRepository.this) {
+                pendingUnload.remove(user);
+                closeJournal(user);
+                deleteShard(user.getUsername());
+                try {
+                    saveCatalog();
+                } catch (IOException e) {
+                    System.err.println("Error deleting user " + user.getUsername() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // ---- Migration ----
+
+    /**
+     * Splits a single-file library written by an older version (users.dat plus journal.log)
+     * into the catalog and one shard per user. The old files are kept with a ".migrated" suffix.
+     */
+    @SuppressWarnings("unchecked")
+    private void migrateLegacyFile() throws IOException, ClassNotFoundException {
+        File legacy = new File(LEGACY_USERS_FILE);
+        ArrayList<User> users = new ArrayList<>();
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacy)))) {
+            users.addAll((ArrayList<User>) in.readObject());
+        }
+        File legacyJournal = new File(LEGACY_JOURNAL_FILE);
+        replay(legacyJournal, users);
+        for (User user : users) {
+            if (!(user instanceof Admin)) {
+                writeSnapshot(user, encodeSnapshot(user));
+                new File(shardDir(user.getUsername()), SHARD_JOURNAL).delete();
+            }
+        }
+        writeCatalog(users);
+        move(legacy, new File(LEGACY_USERS_FILE + ".migrated"));
+        if (legacyJournal.exists()) {
+            move(legacyJournal, new File(LEGACY_JOURNAL_FILE + ".migrated"));
+        }
+    }
+}
@@ -0,0 +1,816 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import model.Admin;
+import model.Album;
+import model.ModelEvents;
+import model.ModelListener;
+import model.Photo;
+import model.Tag;
+import model.User;
+
+/**
+ * A {@link LibraryRepository} that keeps the library in an embedded, file-based SQL database.
+ * <p>
+ * Every model change is turned into a few row updates, so an edit costs the same however
+ * large the library is, and tag and date queries are answered from indexes without loading
+ * the user. The database is opened through JDBC at the URL given by the system property
+ * {@code photos.storage.url}, by default an H2 database in "users/library"; the driver of the
+ * chosen engine (for example H2 or SQLite) must be on the class path.
+ * </p>
+ * <p>
+ * All statements run in order on a single background thread, so edits made on the JavaFX
+ * thread never wait for the database. When the database is still empty, the file library
+ * under "users/" is copied into it once.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class JdbcLibraryRepository implements LibraryRepository {
+
+    private static final String DEFAULT_URL = "jdbc:h2:file:" + System.getProperty("user.dir")
+            + File.separator + "users" + File.separator + "library";
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS users (name VARCHAR(255) NOT NULL PRIMARY KEY)",
+        "CREATE TABLE IF NOT EXISTS albums (username VARCHAR(255) NOT NULL, name VARCHAR(255) NOT NULL,"
+                + " seq INT NOT NULL, PRIMARY KEY (username, name))",
+        "CREATE TABLE IF NOT EXISTS photos (username VARCHAR(255) NOT NULL, path VARCHAR(4096) NOT NULL,"
+                + " date_taken BIGINT NOT NULL, caption VARCHAR(4096), name VARCHAR(1024),"
+                + " PRIMARY KEY (username, path))",
+        "CREATE TABLE IF NOT EXISTS album_photos (username VARCHAR(255) NOT NULL, album VARCHAR(255) NOT NULL,"
+                + " path VARCHAR(4096) NOT NULL, seq INT NOT NULL, PRIMARY KEY (username, album, path))",
+        // type_key is the lower-case tag type, so lookups can ignore case and still use the index.
+        "CREATE TABLE IF NOT EXISTS photo_tags (username VARCHAR(255) NOT NULL, path VARCHAR(4096) NOT NULL,"
+                + " tag_type VARCHAR(255) NOT NULL, type_key VARCHAR(255) NOT NULL,"
+                + " tag_value VARCHAR(1024) NOT NULL, seq INT NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS tag_types (name VARCHAR(255) NOT NULL PRIMARY KEY, multiple_allowed BOOLEAN NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS photo_tags_by_tag ON photo_tags (type_key, tag_value)",
+        "CREATE INDEX IF NOT EXISTS photo_tags_by_photo ON photo_tags (username, path)",
+        "CREATE INDEX IF NOT EXISTS photos_by_date ON photos (username, date_taken)",
+        "CREATE INDEX IF NOT EXISTS album_photos_by_photo ON album_photos (username, path)",
+    };
+
+    // Columns added after the first release, as table, column and definition; databases created
+    // before get them when they are opened. Not every engine has ADD COLUMN IF NOT EXISTS, so
+    // the columns that exist are looked up first.
+    private static final String[][] ADDED_COLUMNS = {
+        {"photos", "width", "INT DEFAULT 0 NOT NULL"},
+        {"photos", "height", "INT DEFAULT 0 NOT NULL"},
+        {"photos", "orientation", "INT DEFAULT 0 NOT NULL"},
+    };
+
+    private final String url;
+    private final ExecutorService executor;
+    // Only touched on the executor thread.
+    private Connection connection;
+    // The live user list passed to start, guarded by this.
+    private ArrayList<User> users;
+
+    /**
+     * Returns the JDBC URL configured for this deployment.
+     *
+     * @return the value of {@code photos.storage.url}, or the default H2 database under "users/"
+     */
+    public static String configuredUrl() {
+        return System.getProperty("photos.storage.url", DEFAULT_URL);
+    }
+
+    /**
+     * Creates a repository for the database at the given URL. The database is opened on first use.
+     *
+     * @param url the JDBC URL
+     */
+    public JdbcLibraryRepository(String url) {
+        this.url = url;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "library-db");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Work done with the database connection inside a transaction.
+     */
+    private interface SqlTask<T> {
+        T run(Connection c) throws SQLException, IOException, ClassNotFoundException;
+    }
+
+    @Override
+    public ArrayList<User> loadUsers() throws IOException, ClassNotFoundException {
+        return call(c -> {
+            ArrayList<User> result = new ArrayList<>();
+            try (Statement st = c.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT name FROM users ORDER BY name")) {
+                while (rs.next()) {
+                    result.add(User.createUnloaded(rs.getString(1)));
+                }
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public synchronized void start(ArrayList<User> users) throws IOException {
+        if (this.users != null) {
+            return;
+        }
+        this.users = users;
+        try {
+            call(c -> {
+                for (User user : users) {
+                    if (!(user instanceof Admin)) {
+                        insertUser(c, user.getUsername());
+                        if (user.isLoaded()) {
+                            writeUser(c, user);
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        ModelEvents.addListener(new ChangeWriter());
+    }
+
+    @Override
+    public void loadUser(User user) throws IOException, ClassNotFoundException {
+        if (user.isLoaded()) {
+            return;
+        }
+        List<Album> albums = call(c -> readAlbums(c, user.getUsername()));
+        user.attachAlbums(albums);
+    }
+
+    @Override
+    public User readStoredUser(String username) throws IOException, ClassNotFoundException {
+        User stored = new User(username);
+        stored.getAlbums().addAll(call(c -> readAlbums(c, username)));
+        return stored;
+    }
+
+    /**
+     * Drops the user's albums right away; their changes are already queued for the database.
+     */
+    @Override
+    public void unloadUser(User user) {
+        if (user != null && user.isLoaded() && !(user instanceof Admin)) {
+            user.detachAlbums();
+        }
+    }
+
+    @Override
+    public long saveUser(User user) throws IOException {
+        if (!user.isLoaded() || user instanceof Admin) {
+            return -1;
+        }
+        try {
+            call(c -> {
+                writeUser(c, user);
+                return null;
+            });
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        return 0;
+    }
+
+    @Override
+    public List<Photo> findPhotosByTag(String username, String tagType, String tagValue) throws IOException {
+        return findPhotos(username, "EXISTS (SELECT 1 FROM photo_tags x WHERE x.username = p.username"
+                + " AND x.path = p.path AND x.type_key = ? AND x.tag_value = ?)",
+                tagType.toLowerCase(), tagValue);
+    }
+
+    @Override
+    public List<Photo> findPhotosByDate(String username, long fromMillis, long toMillis) throws IOException {
+        return findPhotos(username, "p.date_taken BETWEEN ? AND ?", fromMillis, toMillis);
+    }
+
+    @Override
+    public Map<String, Boolean> loadTagTypes() throws IOException {
+        try {
+            return call(c -> {
+                Map<String, Boolean> tagTypes = new LinkedHashMap<>();
+                try (Statement st = c.createStatement();
+                     ResultSet rs = st.executeQuery("SELECT name, multiple_allowed FROM tag_types")) {
+                    while (rs.next()) {
+                        tagTypes.put(rs.getString(1), rs.getBoolean(2));
+                    }
+                }
+                return tagTypes;
+            });
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void saveTagType(String tagType, boolean multipleAllowed) throws IOException {
+        try {
+            call(c -> {
+                writeTagType(c, tagType, multipleAllowed);
+                return null;
+            });
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Waits until every queued change has been committed.
+     */
+    @Override
+    public void flush() throws IOException {
+        try {
+            call(c -> null);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.execute(() -> {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    System.err.println("Error closing the library database: " + e.getMessage());
+                }
+                connection = null;
+            }
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---- Execution ----
+
+    /**
+     * Runs a task on the database thread and waits for its result.
+     */
+    private <T> T call(SqlTask<T> task) throws IOException, ClassNotFoundException {
+        Future<T> future = executor.submit(() -> inTransaction(task));
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the library database", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            }
+            throw new IOException("Library database error: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Queues a change for the database thread without waiting for it.
+     */
+    private void post(String what, SqlTask<?> task) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                inTransaction(task);
+            } catch (Exception e) {
+                System.err.println("Error storing " + what + ": " + e.getMessage());
+            }
+        });
+    }
+
+    // Must run on the executor thread.
+    private <T> T inTransaction(SqlTask<T> task) throws SQLException, IOException, ClassNotFoundException {
+        Connection c = connection();
+        try {
+            T result = task.run(c);
+            c.commit();
+            return result;
+        } catch (SQLException | IOException | ClassNotFoundException | RuntimeException e) {
+            c.rollback();
+            throw e;
+        }
+    }
+
+    // Must run on the executor thread.
+    private Connection connection() throws SQLException, IOException, ClassNotFoundException {
+        if (connection == null) {
+            Connection c = DriverManager.getConnection(url);
+            c.setAutoCommit(false);
+            try (Statement st = c.createStatement()) {
+                for (String ddl : SCHEMA) {
+                    st.execute(ddl);
+                }
+                for (String[] column : ADDED_COLUMNS) {
+                    if (!hasColumn(c, column[0], column[1])) {
+                        st.execute("ALTER TABLE " + column[0] + " ADD COLUMN " + column[1] + " " + column[2]);
+                    }
+                }
+            }
+            c.commit();
+            try {
+                importFileLibrary(c);
+            } catch (SQLException | IOException | ClassNotFoundException | RuntimeException e) {
+                c.rollback();
+                c.close();
+                throw e;
+            }
+            connection = c;
+        }
+        return connection;
+    }
+
+    private static boolean hasColumn(Connection c, String table, String column) throws SQLException {
+        DatabaseMetaData meta = c.getMetaData();
+        // Unquoted names are stored in upper case by some engines, such as H2, and as written by others.
+        if (meta.storesUpperCaseIdentifiers()) {
+            table = table.toUpperCase(Locale.ROOT);
+        } else if (meta.storesLowerCaseIdentifiers()) {
+            table = table.toLowerCase(Locale.ROOT);
+        }
+        try (ResultSet rs = meta.getColumns(null, null, table, null)) {
+            while (rs.next()) {
+                if (rs.getString("COLUMN_NAME").equalsIgnoreCase(column)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the file library into an empty database, so switching the storage of an
+     * existing installation keeps its users.
+     */
+    private void importFileLibrary(Connection c) throws SQLException, IOException, ClassNotFoundException {
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM users")) {
+            if (rs.next() && rs.getInt(1) > 0) {
+                return;
+            }
+        }
+        FileLibraryRepository files = new FileLibraryRepository();
+        ArrayList<User> stored = files.loadUsers();
+        for (User user : stored) {
+            insertUser(c, user.getUsername());
+            writeUser(c, files.readStoredUser(user.getUsername()));
+        }
+        for (Map.Entry<String, Boolean> tagType : files.loadTagTypes().entrySet()) {
+            writeTagType(c, tagType.getKey(), tagType.getValue());
+        }
+        c.commit();
+    }
+
+    // ---- Reading ----
+
+    private List<Album> readAlbums(Connection c, String username) throws SQLException {
+        Map<String, Photo> photos = new HashMap<>();
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT path, date_taken, caption, name, width, height, orientation FROM photos WHERE username = ?")) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    photos.put(rs.getString(1), newPhoto(rs));
+                }
+            }
+        }
+        readTags(c, "SELECT path, tag_type, tag_value FROM photo_tags WHERE username = ? ORDER BY path, seq",
+                photos, username);
+
+        Map<String, Album> albums = new LinkedHashMap<>();
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT name FROM albums WHERE username = ? ORDER BY seq")) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    albums.put(rs.getString(1), new Album(rs.getString(1)));
+                }
+            }
+        }
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT album, path FROM album_photos WHERE username = ? ORDER BY album, seq")) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Album album = albums.get(rs.getString(1));
+                    Photo photo = photos.get(rs.getString(2));
+                    if (album != null && photo != null) {
+                        album.addPhoto(photo);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(albums.values());
+    }
+
+    private List<Photo> findPhotos(String username, String condition, Object... params) throws IOException {
+        Map<String, Photo> found;
+        try {
+            found = call(c -> {
+                Map<String, Photo> photos = new LinkedHashMap<>();
+                try (PreparedStatement ps = c.prepareStatement("SELECT p.path, p.date_taken, p.caption, p.name,"
+                        + " p.width, p.height, p.orientation FROM photos p WHERE p.username = ? AND " + condition + " ORDER BY p.date_taken")) {
+                    bind(ps, username, params);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            photos.put(rs.getString(1), newPhoto(rs));
+                        }
+                    }
+                }
+                if (!photos.isEmpty()) {
+                    readTags(c, "SELECT p.path, t.tag_type, t.tag_value FROM photos p JOIN photo_tags t"
+                            + " ON t.username = p.username AND t.path = p.path"
+                            + " WHERE p.username = ? AND " + condition + " ORDER BY p.path, t.seq",
+                            photos, username, params);
+                }
+                return photos;
+            });
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+
+        // Hand out the live photos of a loaded user, so changes to them are stored.
+        User live = liveUser(username);
+        if (live == null) {
+            return new ArrayList<>(found.values());
+        }
+        List<Photo> result = new ArrayList<>();
+        for (String path : found.keySet()) {
+            for (Album album : live.getAlbums()) {
+                Photo photo = album.findPhoto(path);
+                if (photo != null) {
+                    result.add(photo);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private synchronized User liveUser(String username) {
+        if (users != null) {
+            for (User user : users) {
+                if (user.getUsername().equals(username) && user.isLoaded()) {
+                    return user;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Photo newPhoto(ResultSet rs) throws SQLException {
+        Photo photo = new Photo(rs.getString(1), rs.getLong(2), rs.getString(4));
+        if (rs.getInt(7) != 0) {
+            photo.setMetadata(rs.getLong(2), rs.getInt(5), rs.getInt(6), rs.getInt(7));
+        }
+        String caption = rs.getString(3);
+        photo.setCaption(caption == null ? "" : caption);
+        return photo;
+    }
+
+    private static void readTags(Connection c, String sql, Map<String, Photo> photos, String username,
+            Object... params) throws SQLException {
+        Map<String, ArrayList<Tag>> tags = new HashMap<>();
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            bind(ps, username, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    tags.computeIfAbsent(rs.getString(1), k -> new ArrayList<>())
+                            .add(new Tag(rs.getString(2), rs.getString(3)));
+                }
+            }
+        }
+        for (Map.Entry<String, ArrayList<Tag>> entry : tags.entrySet()) {
+            Photo photo = photos.get(entry.getKey());
+            if (photo != null) {
+                photo.setTags(entry.getValue());
+            }
+        }
+    }
+
+    private static void bind(PreparedStatement ps, String username, Object... params) throws SQLException {
+        ps.setString(1, username);
+        for (int i = 0; i < params.length; i++) {
+            ps.setObject(i + 2, params[i]);
+        }
+    }
+
+    // ---- Writing ----
+
+    private static void insertUser(Connection c, String username) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO users (name) SELECT ? WHERE NOT EXISTS (SELECT 1 FROM users WHERE name = ?)")) {
+            ps.setString(1, username);
+            ps.setString(2, username);
+            ps.executeUpdate();
+        }
+    }
+
+    private static void deleteUserRows(Connection c, String username, boolean includingUser) throws SQLException {
+        for (String table : new String[] { "photo_tags", "album_photos", "photos", "albums" }) {
+            update(c, "DELETE FROM " + table + " WHERE username = ?", username);
+        }
+        if (includingUser) {
+            update(c, "DELETE FROM users WHERE name = ?", username);
+        }
+    }
+
+    /**
+     * Replaces everything stored for a user with the user's current albums.
+     */
+    private static void writeUser(Connection c, User user) throws SQLException {
+        String username = user.getUsername();
+        deleteUserRows(c, username, false);
+        int seq = 0;
+        for (Album album : new ArrayList<>(user.getAlbums())) {
+            update(c, "INSERT INTO albums (username, name, seq) VALUES (?, ?, ?)", username, album.getName(), seq++);
+            for (Photo photo : new ArrayList<>(album.getPhotos())) {
+                writePhoto(c, username, photo.getPath(), photo.getName(), photo.getDateMillis(),
+                        metadataOf(photo), photo.getCaption(), new ArrayList<>(photo.getTags()));
+                link(c, username, album.getName(), photo.getPath());
+            }
+        }
+    }
+
+    private static void writeAlbum(Connection c, String username, String name, List<Photo> photos,
+            List<List<Tag>> tags) throws SQLException {
+        update(c, "INSERT INTO albums (username, name, seq) SELECT ?, ?, COALESCE(MAX(seq), -1) + 1"
+                + " FROM albums WHERE username = ?", username, name, username);
+        for (int i = 0; i < photos.size(); i++) {
+            Photo photo = photos.get(i);
+            writePhoto(c, username, photo.getPath(), photo.getName(), photo.getDateMillis(),
+                    metadataOf(photo), photo.getCaption(), tags.get(i));
+            link(c, username, name, photo.getPath());
+        }
+    }
+
+    // The width, height and orientation of a photo, copied for the database thread.
+    private static int[] metadataOf(Photo photo) {
+        return new int[] { photo.getWidth(), photo.getHeight(), photo.getOrientation() };
+    }
+
+    private static void writePhoto(Connection c, String username, String path, String name, long date,
+            int[] metadata, String caption, List<Tag> tags) throws SQLException {
+        if (update(c, "UPDATE photos SET name = ?, date_taken = ?, width = ?, height = ?, orientation = ?, caption = ?"
+                + " WHERE username = ? AND path = ?",
+                name, date, metadata[0], metadata[1], metadata[2], caption, username, path) == 0) {
+            update(c, "INSERT INTO photos (username, path, name, date_taken, width, height, orientation, caption)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)",
+                    username, path, name, date, metadata[0], metadata[1], metadata[2], caption);
+        }
+        writeTags(c, username, path, tags);
+    }
+
+    private static void writeTags(Connection c, String username, String path, List<Tag> tags) throws SQLException {
+        update(c, "DELETE FROM photo_tags WHERE username = ? AND path = ?", username, path);
+        if (tags.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement ps = c.prepareStatement("INSERT INTO photo_tags"
+                + " (username, path, tag_type, type_key, tag_value, seq) VALUES (?, ?, ?, ?, ?, ?)")) {
+            int seq = 0;
+            for (Tag tag : tags) {
+                ps.setString(1, username);
+                ps.setString(2, path);
+                ps.setString(3, tag.getTagType());
+                ps.setString(4, tag.getTagType().toLowerCase());
+                ps.setString(5, tag.getTagValue());
+                ps.setInt(6, seq++);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static void link(Connection c, String username, String album, String path) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT 1 FROM album_photos WHERE username = ? AND album = ? AND path = ?")) {
+            bind(ps, username, album, path);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return;
+                }
+            }
+        }
+        update(c, "INSERT INTO album_photos (username, album, path, seq) SELECT ?, ?, ?, COALESCE(MAX(seq), -1) + 1"
+                + " FROM album_photos WHERE username = ? AND album = ?", username, album, path, username, album);
+    }
+
+    // Drops a photo and its tags once it is in none of the user's albums any more.
+    private static void deleteIfOrphaned(Connection c, String username, String path) throws SQLException {
+        String orphaned = " AND NOT EXISTS (SELECT 1 FROM album_photos a WHERE a.username = ? AND a.path = ?)";
+        update(c, "DELETE FROM photo_tags WHERE username = ? AND path = ?" + orphaned, username, path, username, path);
+        update(c, "DELETE FROM photos WHERE username = ? AND path = ?" + orphaned, username, path, username, path);
+    }
+
+    private static void writeTagType(Connection c, String tagType, boolean multipleAllowed) throws SQLException {
+        if (update(c, "UPDATE tag_types SET multiple_allowed = ? WHERE name = ?", multipleAllowed, tagType) == 0) {
+            update(c, "INSERT INTO tag_types (name, multiple_allowed) VALUES (?, ?)", tagType, multipleAllowed);
+        }
+    }
+
+    private static int update(Connection c, String sql, Object... params) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                ps.setObject(i + 1, params[i]);
+            }
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Turns model changes into row updates. The values are copied on the thread that made the
+     * change, and written in order on the database thread.
+     */
+    private class ChangeWriter implements ModelListener {
+        @Override
+        public void userAdded(User user) {
+            String username = user.getUsername();
+            post("new user " + username, c -> {
+                insertUser(c, username);
+                return null;
+            });
+            if (user.isLoaded()) {
+                saveUserLater(user);
+            }
+        }
+
+        @Override
+        public void userDeleted(User user) {
+            String username = user.getUsername();
+            post("deletion of " + username, c -> {
+                deleteUserRows(c, username, true);
+                return null;
+            });
+        }
+
+        @Override
+        public void albumAdded(User user, Album album) {
+            String username = user.getUsername();
+            String name = album.getName();
+            List<Photo> photos = new ArrayList<>(album.getPhotos());
+            List<List<Tag>> tags = new ArrayList<>();
+            for (Photo photo : photos) {
+                tags.add(new ArrayList<>(photo.getTags()));
+            }
+            post("album " + name, c -> {
+                writeAlbum(c, username, name, photos, tags);
+                return null;
+            });
+        }
+
+        @Override
+        public void albumRemoved(User user, Album album) {
+            String username = user.getUsername();
+            String name = album.getName();
+            List<String> paths = paths(album);
+            post("removal of album " + name, c -> {
+                update(c, "DELETE FROM album_photos WHERE username = ? AND album = ?", username, name);
+                update(c, "DELETE FROM albums WHERE username = ? AND name = ?", username, name);
+                for (String path : paths) {
+                    deleteIfOrphaned(c, username, path);
+                }
+                return null;
+            });
+        }
+
+        @Override
+        public void albumRenamed(Album album, String oldName) {
+            String username = album.getOwner().getUsername();
+            String name = album.getName();
+            post("album " + name, c -> {
+                update(c, "UPDATE albums SET name = ? WHERE username = ? AND name = ?", name, username, oldName);
+                update(c, "UPDATE album_photos SET album = ? WHERE username = ? AND album = ?", name, username, oldName);
+                return null;
+            });
+        }
+
+        @Override
+        public void photoAdded(Album album, Photo photo) {
+            String username = album.getOwner().getUsername();
+            String name = album.getName();
+            String path = photo.getPath();
+            String photoName = photo.getName();
+            long date = photo.getDateMillis();
+            int[] metadata = metadataOf(photo);
+            String caption = photo.getCaption();
+            List<Tag> tags = new ArrayList<>(photo.getTags());
+            post("photo " + path, c -> {
+                writePhoto(c, username, path, photoName, date, metadata, caption, tags);
+                link(c, username, name, path);
+                return null;
+            });
+        }
+
+        @Override
+        public void photoRemoved(Album album, Photo photo) {
+            String username = album.getOwner().getUsername();
+            String name = album.getName();
+            String path = photo.getPath();
+            post("removal of photo " + path, c -> {
+                update(c, "DELETE FROM album_photos WHERE username = ? AND album = ? AND path = ?", username, name, path);
+                deleteIfOrphaned(c, username, path);
+                return null;
+            });
+        }
+
+        @Override
+        public void captionChanged(Photo photo) {
+            String username = photo.getOwner().getUsername();
+            String path = photo.getPath();
+            String caption = photo.getCaption();
+            post("caption of " + path, c -> {
+                update(c, "UPDATE photos SET caption = ? WHERE username = ? AND path = ?", caption, username, path);
+                return null;
+            });
+        }
+
+        @Override
+        public void metadataChanged(Photo photo) {
+            if (photo.getOwner() == null) {
+                return;
+            }
+            String username = photo.getOwner().getUsername();
+            String path = photo.getPath();
+            long date = photo.getDateMillis();
+            int[] metadata = metadataOf(photo);
+            post("metadata of " + path, c -> {
+                update(c, "UPDATE photos SET date_taken = ?, width = ?, height = ?, orientation = ?"
+                        + " WHERE username = ? AND path = ?", date, metadata[0], metadata[1], metadata[2],
+                        username, path);
+                return null;
+            });
+        }
+
+        @Override
+        public void tagAdded(Photo photo, Tag tag) {
+            tagsChanged(photo);
+        }
+
+        @Override
+        public void tagRemoved(Photo photo, Tag tag) {
+            tagsChanged(photo);
+        }
+
+        @Override
+        public void tagsReplaced(Photo photo, List<Tag> oldTags) {
+            tagsChanged(photo);
+        }
+
+        private void tagsChanged(Photo photo) {
+            String username = photo.getOwner().getUsername();
+            String path = photo.getPath();
+            List<Tag> tags = new ArrayList<>(photo.getTags());
+            post("tags of " + path, c -> {
+                writeTags(c, username, path, tags);
+                return null;
+            });
+        }
+
+        private void saveUserLater(User user) {
+            post("user " + user.getUsername(), c -> {
+                writeUser(c, user);
+                return null;
+            });
+        }
+
+        private List<String> paths(Album album) {
+            List<String> paths = new ArrayList<>();
+            for (Photo photo : album.getPhotos()) {
+                paths.add(photo.getPath());
+            }
+            return paths;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import model.Album;
+import model.Photo;
+import model.Tag;
+import model.User;
+
+/**
+ * A compact, versioned binary format for a user's library, used for the per-user snapshots
+ * instead of default Java serialization.
+ * <p>
+ * Layout (all counts and indexes are unsigned varints, strings are a varint byte length
+ * followed by UTF-8):
+ * </p>
+ * <pre>
+ *   int     magic "PHLB"
+ *   varint  format version
+ *   string  username
+ *   varint  dictionary size, then each string    -- every tag type and tag value, once
+ *   varint  photo count, then for each photo:
+ *             string path, string original name ("" if it is the end of the path; since version 2),
+ *             varlong date in epoch seconds (zig-zag),
+ *             varint width, varint height, varint orientation (0 if the file was not read; since version 3),
+ *             string caption,
+ *             varint tag count, then per tag: varint type index, varint value index
+ *   varint  album count, then for each album:
+ *             string name, varint photo count, then each photo's index in the photo table
+ * </pre>
+ * <p>
+ * A photo that is in several albums is written once and referenced by index, so it is
+ * still a single shared object after decoding.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public final class LibraryCodec {
+
+    /** The first four bytes of every encoded library: "PHLB". */
+    public static final int MAGIC = 0x50484C42;
+    /** The format version written by {@link #write}. */
+    public static final int VERSION = 3;
+
+    private LibraryCodec() {
+    }
+
+    /**
+     * Writes a user and all of their albums, photos and tags.
+     *
+     * @param user the user to write
+     * @param out the destination
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(User user, DataOutput out) throws IOException {
+        // Collect the distinct photos and strings first, so both tables can precede their users.
+        Map<Photo, Integer> photoIndex = new IdentityHashMap<>();
+        List<Photo> photos = new ArrayList<>();
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                if (photoIndex.putIfAbsent(photo, photos.size()) == null) {
+                    photos.add(photo);
+                    for (Tag tag : photo.getTags()) {
+                        intern(tag.getTagType(), dictionary, strings);
+                        intern(tag.getTagValue(), dictionary, strings);
+                    }
+                }
+            }
+        }
+
+        out.writeInt(MAGIC);
+        writeVarInt(out, VERSION);
+        writeString(out, user.getUsername());
+
+        writeVarInt(out, strings.size());
+        for (String s : strings) {
+            writeString(out, s);
+        }
+
+        writeVarInt(out, photos.size());
+        for (Photo photo : photos) {
+            writeString(out, photo.getPath());
+            String name = photo.getName();
+            writeString(out, name.equals(new File(photo.getPath()).getName()) ? "" : name);
+            writeVarLong(out, Math.floorDiv(photo.getDateMillis(), 1000L));
+            writeVarInt(out, photo.getWidth());
+            writeVarInt(out, photo.getHeight());
+            writeVarInt(out, photo.getOrientation());
+            writeString(out, photo.getCaption() == null ? "" : photo.getCaption());
+            List<Tag> tags = photo.getTags();
+            writeVarInt(out, tags.size());
+            for (Tag tag : tags) {
+                writeVarInt(out, dictionary.get(tag.getTagType()));
+                writeVarInt(out, dictionary.get(tag.getTagValue()));
+            }
+        }
+
+        writeVarInt(out, user.getAlbums().size());
+        for (Album album : user.getAlbums()) {
+            writeString(out, album.getName());
+            writeVarInt(out, album.getPhotos().size());
+            for (Photo photo : album.getPhotos()) {
+                writeVarInt(out, photoIndex.get(photo));
+            }
+        }
+    }
+
+    /**
+     * Reads a user written by {@link #write}. The magic number must not have been consumed yet.
+     *
+     * @param in the source
+     * @return the decoded user, with its albums attached
+     * @throws IOException if an I/O error occurs or the data is not a valid library
+     */
+    public static User read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a library file");
+        }
+        int version = readVarInt(in);
+        if (version > VERSION) {
+            throw new IOException("Library format version " + version + " is newer than this application");
+        }
+        User user = new User(readString(in));
+
+        String[] strings = new String[readCount(in)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(in);
+        }
+
+        Photo[] photos = new Photo[readCount(in)];
+        for (int i = 0; i < photos.length; i++) {
+            String path = readString(in);
+            String name = (version >= 2) ? readString(in) : null;
+            long seconds = readVarLong(in);
+            Photo photo = new Photo(path, seconds * 1000L, name);
+            if (version >= 3) {
+                int width = readVarInt(in);
+                int height = readVarInt(in);
+                int orientation = readVarInt(in);
+                if (orientation != 0) {
+                    photo.setMetadata(seconds * 1000L, width, height, orientation);
+                }
+            }
+            photo.setCaption(readString(in));
+            int tagCount = readCount(in);
+            ArrayList<Tag> tags = new ArrayList<>(tagCount);
+            for (int t = 0; t < tagCount; t++) {
+                tags.add(new Tag(lookup(strings, readVarInt(in)), lookup(strings, readVarInt(in))));
+            }
+            photo.setTags(tags);
+            photos[i] = photo;
+        }
+
+        int albumCount = readCount(in);
+        for (int a = 0; a < albumCount; a++) {
+            Album album = new Album(readString(in));
+            int count = readCount(in);
+            for (int p = 0; p < count; p++) {
+                album.addPhoto(lookup(photos, readVarInt(in)));
+            }
+            user.getAlbums().add(album);
+        }
+        return user;
+    }
+
+    private static void intern(String s, Map<String, Integer> dictionary, List<String> strings) {
+        if (dictionary.putIfAbsent(s, strings.size()) == null) {
+            strings.add(s);
+        }
+    }
+
+    private static <T> T lookup(T[] table, int index) throws IOException {
+        if (index < 0 || index >= table.length) {
+            throw new IOException("Corrupt library: index " + index + " out of range");
+        }
+        return table[index];
+    }
+
+    // ---- Primitive encodings ----
+
+    /**
+     * Writes an unsigned variable-length int: 7 bits per byte, high bit set on all but the last.
+     *
+     * @param out the destination
+     * @param value the value, treated as unsigned
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an unsigned variable-length int written by {@link #writeVarInt}.
+     *
+     * @param in the source
+     * @return the value
+     * @throws IOException if an I/O error occurs or the encoding is too long
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Writes a signed variable-length long using zig-zag encoding, so small negative
+     * numbers stay short too.
+     *
+     * @param out the destination
+     * @param value the value
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    /**
+     * Reads a signed variable-length long written by {@link #writeVarLong}.
+     *
+     * @param in the source
+     * @return the value
+     * @throws IOException if an I/O error occurs or the encoding is too long
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    /**
+     * Writes a string as a varint byte length followed by its UTF-8 bytes.
+     * Unlike {@link DataOutput#writeUTF}, there is no 64 KB limit.
+     *
+     * @param out the destination
+     * @param s the string
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     *
+     * @param in the source
+     * @return the string
+     * @throws IOException if an I/O error occurs
+     */
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readCount(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Reads a count or length, rejecting values that cannot be right before allocating for them.
+    private static int readCount(DataInput in) throws IOException {
+        int n = readVarInt(in);
+        if (n < 0 || n > 256 * 1024 * 1024) {
+            throw new IOException("Corrupt library: bad length " + n);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,133 @@
+package util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import model.Photo;
+import model.User;
+
+/**
+ * A storage backend for the photo library: users, their albums and photos, photo tags,
+ * and the registered tag types.
+ * <p>
+ * Users are listed without their albums and loaded one at a time. Once {@link #start} has
+ * been called, the repository follows every change to the model through {@link model.ModelEvents}
+ * and stores it, so callers never have to save explicitly; albums, photos and tags are edited
+ * through the model classes as usual.
+ * </p>
+ * <p>
+ * {@link PersistenceManager} picks the implementation for the running application.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public interface LibraryRepository {
+
+    /**
+     * Returns every stored user except the admin. The users are unloaded: their albums
+     * are read by {@link #loadUser(User)}.
+     *
+     * @return the stored users, or an empty list if there are none
+     * @throws IOException if the users cannot be read
+     * @throws ClassNotFoundException if a stored object's class cannot be found
+     */
+    ArrayList<User> loadUsers() throws IOException, ClassNotFoundException;
+
+    /**
+     * Starts following changes to the given live user list and the model. Users that exist
+     * only in memory, such as a freshly created stock user, are stored.
+     *
+     * @param users the live user list
+     * @throws IOException if a user cannot be stored
+     */
+    void start(ArrayList<User> users) throws IOException;
+
+    /**
+     * Reads a user's albums and attaches them. Does nothing if the user is already loaded.
+     *
+     * @param user the user to load
+     * @throws IOException if the user's albums cannot be read
+     * @throws ClassNotFoundException if a stored object's class cannot be found
+     */
+    void loadUser(User user) throws IOException, ClassNotFoundException;
+
+    /**
+     * Reads a user as stored, without loading the live user or attaching anything to it.
+     *
+     * @param username the user to read
+     * @return a detached copy of the user with the stored albums
+     * @throws IOException if the user's albums cannot be read
+     * @throws ClassNotFoundException if a stored object's class cannot be found
+     */
+    User readStoredUser(String username) throws IOException, ClassNotFoundException;
+
+    /**
+     * Drops a user's albums from memory, e.g. when they log out. Pending changes are kept.
+     *
+     * @param user the user to unload
+     */
+    void unloadUser(User user);
+
+    /**
+     * Stores the complete current state of a loaded user.
+     *
+     * @param user the user to save
+     * @return the number of bytes written, 0 if the size is unknown, or -1 if the user is not loaded
+     * @throws IOException if the user cannot be stored
+     */
+    long saveUser(User user) throws IOException;
+
+    /**
+     * Finds a user's photos that carry the given tag. Tag types are compared ignoring case,
+     * tag values exactly. If the user is loaded, the live photos are returned.
+     *
+     * @param username the user whose photos are searched
+     * @param tagType the tag type
+     * @param tagValue the tag value
+     * @return the matching photos, each once
+     * @throws IOException if the photos cannot be read
+     */
+    List<Photo> findPhotosByTag(String username, String tagType, String tagValue) throws IOException;
+
+    /**
+     * Finds a user's photos taken in the given range. If the user is loaded, the live
+     * photos are returned.
+     *
+     * @param username the user whose photos are searched
+     * @param fromMillis the start of the range, inclusive, in epoch milliseconds
+     * @param toMillis the end of the range, inclusive, in epoch milliseconds
+     * @return the matching photos, each once
+     * @throws IOException if the photos cannot be read
+     */
+    List<Photo> findPhotosByDate(String username, long fromMillis, long toMillis) throws IOException;
+
+    /**
+     * Reads the registered tag types.
+     *
+     * @return the tag types in lower case, mapped to whether a photo may carry several tags of the type
+     * @throws IOException if the tag types cannot be read
+     */
+    Map<String, Boolean> loadTagTypes() throws IOException;
+
+    /**
+     * Registers a tag type, or changes whether it allows several tags per photo.
+     *
+     * @param tagType the tag type, in lower case
+     * @param multipleAllowed whether a photo may carry several tags of the type
+     * @throws IOException if the tag type cannot be stored
+     */
+    void saveTagType(String tagType, boolean multipleAllowed) throws IOException;
+
+    /**
+     * Makes sure every change stored so far is on the storage device.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void flush() throws IOException;
+
+    /**
+     * Stores what is pending and releases the backend. Called on application exit.
+     */
+    void shutdown();
+}
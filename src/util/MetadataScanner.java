@@ -0,0 +1,169 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import model.Album;
+import model.Photo;
+import model.User;
+
+/**
+ * Reads the {@link PhotoMetadata} of many photos at once, for photos imported before the
+ * capture date was read from the files.
+ * <p>
+ * The headers are read on a pool of threads, several files at a time, since the time goes into
+ * waiting for the disk rather than into parsing. Reading does not touch the photos; the caller
+ * applies the results with {@link #apply} on the thread that owns the model.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public final class MetadataScanner {
+
+    // Files per task, so the pool is not flooded with tiny tasks.
+    private static final int BATCH = 64;
+
+    private MetadataScanner() {
+    }
+
+    /**
+     * Returns every photo of a user whose file has not been read yet, each once.
+     *
+     * @param user a loaded user
+     * @return the photos without metadata
+     */
+    public static List<Photo> unscanned(User user) {
+        Set<Photo> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Photo> photos = new ArrayList<>();
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                if (!photo.hasMetadata() && seen.add(photo)) {
+                    photos.add(photo);
+                }
+            }
+        }
+        return photos;
+    }
+
+    /**
+     * Reads the headers of the photos' files in parallel.
+     *
+     * @param photos the photos to read
+     * @return the metadata of each photo, in the same order; null where the file is missing or
+     *         is neither a JPEG nor a PNG
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public static PhotoMetadata[] scan(List<Photo> photos) throws InterruptedException {
+        PhotoMetadata[] results = new PhotoMetadata[photos.size()];
+        if (photos.isEmpty()) {
+            return results;
+        }
+        int threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors() * 2));
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "metadata-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int start = 0; start < photos.size(); start += BATCH) {
+                int from = start;
+                int to = Math.min(photos.size(), start + BATCH);
+                futures.add(pool.submit(() -> {
+                    for (int i = from; i < to; i++) {
+                        results[i] = read(photos.get(i));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Error reading photo metadata: " + e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Reads the headers of one photo's file.
+     *
+     * @param photo the photo
+     * @return the metadata, or null if the file is missing or is neither a JPEG nor a PNG
+     */
+    public static PhotoMetadata read(Photo photo) {
+        File file = fileOf(photo.getPath());
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            return PhotoMetadata.read(file);
+        } catch (IOException e) {
+            System.err.println("Error reading the metadata of " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores what was read on a photo. A photo whose file records no capture date keeps its date;
+     * one whose file could not be read is marked as read, so it is not read again at every login.
+     *
+     * @param photo the photo
+     * @param metadata the metadata read from its file, or null
+     */
+    public static void apply(Photo photo, PhotoMetadata metadata) {
+        if (metadata == null) {
+            photo.setMetadata(photo.getDateMillis(), 0, 0, 1);
+            return;
+        }
+        long taken = metadata.getCaptureMillis();
+        photo.setMetadata(taken == PhotoMetadata.UNKNOWN_DATE ? photo.getDateMillis() : taken,
+                metadata.getWidth(), metadata.getHeight(), metadata.getOrientation());
+    }
+
+    /**
+     * Creates a photo from what was read from its file, for a file that is not in the library yet.
+     * Like {@link #apply}, but no change is reported, so the photo can be built on any thread.
+     *
+     * @param path the path of the photo's file
+     * @param fallbackMillis the date to use if the file records none, in epoch milliseconds
+     * @param name the original file name, or null to use the last part of the path
+     * @param metadata the metadata read from the file, or null
+     * @return the new photo
+     */
+    public static Photo newPhoto(String path, long fallbackMillis, String name, PhotoMetadata metadata) {
+        if (metadata == null) {
+            return new Photo(path, fallbackMillis, name, 0, 0, 1);
+        }
+        long taken = metadata.getCaptureMillis();
+        return new Photo(path, taken == PhotoMetadata.UNKNOWN_DATE ? fallbackMillis : taken, name,
+                metadata.getWidth(), metadata.getHeight(), metadata.getOrientation());
+    }
+
+    // The file a photo path or file URL points to, or null if it is not a local file.
+    private static File fileOf(String path) {
+        if (!path.startsWith("file:")) {
+            return new File(path);
+        }
+        try {
+            return new File(new URI(path.replace(" ", "%20")));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
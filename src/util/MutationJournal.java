@@ -0,0 +1,574 @@
+package util;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import model.Admin;
+import model.Album;
+import model.ModelListener;
+import model.Photo;
+import model.Tag;
+import model.User;
+
+/**
+ * An append-only write-ahead log of model mutations.
+ * <p>
+ * Every change to the model (users, albums, photos, captions, tags and file metadata) is encoded as a
+ * small record and appended to the journal file as soon as it happens, so saving costs
+ * grow with the size of the change instead of the size of the library. On startup the
+ * journal is replayed on top of the last snapshot written by {@link PersistenceManager}.
+ * </p>
+ * <p>
+ * Each record is framed as {@code [length][payload][crc32]}. A record that was only
+ * partially written when the application died fails the length or checksum test; replay
+ * stops there and the torn tail is cut off when the journal is reopened.
+ * Records are only dropped once a snapshot containing them is on disk, and records appended
+ * while the snapshot was being written are kept (see {@link #mark()}), so no change is lost.
+ * If the application dies after writing a snapshot but before the journal is trimmed, the
+ * records already in the snapshot are replayed again. A single change replayed twice is skipped
+ * (an album that exists is not added again, a photo in the album is not added twice), but a
+ * sequence such as renaming an album and then adding one under the old name may not be.
+ * </p>
+ * <p>
+ * A journal may be scoped to a single user, in which case it ignores changes to everybody else.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class MutationJournal implements ModelListener {
+
+    private static final byte USER_ADD = 1;
+    private static final byte USER_DELETE = 2;
+    private static final byte ALBUM_ADD = 3;
+    private static final byte ALBUM_REMOVE = 4;
+    private static final byte ALBUM_RENAME = 5;
+    private static final byte PHOTO_ADD = 6;
+    private static final byte PHOTO_REMOVE = 7;
+    private static final byte CAPTION = 8;
+    private static final byte TAG_ADD = 9;
+    private static final byte TAG_REMOVE = 10;
+    private static final byte TAGS_SET = 11;
+    private static final byte METADATA = 12;
+
+    // Anything larger than this is treated as a corrupt length field.
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final File file;
+    // When set, only changes to this user's albums and photos are recorded.
+    private final User scope;
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private long size;
+
+    /**
+     * Creates a journal backed by the given file. The file is not opened until {@link #open(long)}.
+     *
+     * @param file the journal file
+     */
+    public MutationJournal(File file) {
+        this(file, null);
+    }
+
+    /**
+     * Creates a journal that only records changes to the given user's albums and photos.
+     *
+     * @param file the journal file
+     * @param scope the user whose changes are recorded
+     */
+    public MutationJournal(File file, User scope) {
+        this.file = file;
+        this.scope = scope;
+    }
+
+    /**
+     * Opens the journal for appending. Anything past {@code validLength} (a torn record left
+     * by a crash) is truncated first.
+     *
+     * @param validLength the number of bytes that replayed cleanly, as returned by {@link #replay}
+     * @throws IOException if the file cannot be opened
+     */
+    public synchronized void open(long validLength) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        if (file.exists() && file.length() > validLength) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                ch.truncate(validLength);
+            }
+        }
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        size = file.length();
+    }
+
+    /**
+     * Returns the current size of the journal file in bytes.
+     *
+     * @return the journal size
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Forces the appended records to the storage device.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void sync() throws IOException {
+        if (out == null) return;
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    /**
+     * Empties the journal. Called once a snapshot containing all journaled changes is on disk.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void reset() throws IOException {
+        if (out == null) return;
+        out.flush();
+        fileOut.getChannel().truncate(0);
+        size = 0;
+    }
+
+    /**
+     * Returns the current end of the journal. Every change recorded before this point has
+     * already been applied to the model, so a snapshot taken afterwards contains it.
+     *
+     * @return the position to pass to {@link #discardBefore(long)} once the snapshot is on disk
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized long mark() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+        return size;
+    }
+
+    /**
+     * Drops the records before {@code mark}, keeping those appended while a snapshot was being
+     * written. The remaining tail is copied to a new file which atomically replaces the journal.
+     *
+     * @param mark a position returned by {@link #mark()}
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void discardBefore(long mark) throws IOException {
+        if (out == null || mark <= 0) return;
+        out.flush();
+        if (mark >= size) {
+            reset();
+            return;
+        }
+        File tail = new File(file.getPath() + ".tmp");
+        try (FileChannel src = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             FileChannel dst = FileChannel.open(tail.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = mark;
+            while (position < size) {
+                position += src.transferTo(position, size - position, dst);
+            }
+            dst.force(true);
+        }
+        out.close();
+        Files.move(tail.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        size = file.length();
+    }
+
+    /**
+     * Flushes and closes the journal file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void close() throws IOException {
+        if (out == null) return;
+        sync();
+        out.close();
+        out = null;
+        fileOut = null;
+    }
+
+    private synchronized void append(byte[] payload) {
+        if (out == null) return;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        try {
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+            // Hand the record to the OS right away so it survives a crash of the JVM.
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error appending to journal: " + e.getMessage());
+            return;
+        }
+        size += payload.length + 8;
+    }
+
+    private boolean accepts(User user) {
+        return user != null && (scope == null || scope == user);
+    }
+
+    // ---- Record encoding ----
+
+    private static byte[] encode(byte op, User user, Object... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeByte(op);
+            data.writeUTF(user.getUsername());
+            for (Object field : fields) {
+                if (field instanceof String) {
+                    data.writeUTF((String) field);
+                } else if (field instanceof Long) {
+                    data.writeLong((Long) field);
+                } else if (field instanceof Integer) {
+                    data.writeInt((Integer) field);
+                } else if (field instanceof List) {
+                    List<?> tags = (List<?>) field;
+                    data.writeInt(tags.size());
+                    for (Object o : tags) {
+                        Tag tag = (Tag) o;
+                        data.writeUTF(tag.getTagType());
+                        data.writeUTF(tag.getTagValue());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // A ByteArrayOutputStream never throws.
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // A per-user journal leaves user creation and deletion to the catalog.
+    @Override
+    public void userAdded(User user) {
+        if (!accepts(user) || scope != null) return;
+        append(encode(USER_ADD, user));
+    }
+
+    @Override
+    public void userDeleted(User user) {
+        if (!accepts(user) || scope != null) return;
+        append(encode(USER_DELETE, user));
+    }
+
+    @Override
+    public void albumAdded(User user, Album album) {
+        if (!accepts(user)) return;
+        append(encode(ALBUM_ADD, user, album.getName()));
+        // Photos already in the album (e.g. an album created from search results) are journaled too.
+        for (Photo photo : album.getPhotos()) {
+            photoAdded(album, photo);
+        }
+    }
+
+    @Override
+    public void albumRemoved(User user, Album album) {
+        if (!accepts(user)) return;
+        append(encode(ALBUM_REMOVE, user, album.getName()));
+    }
+
+    @Override
+    public void albumRenamed(Album album, String oldName) {
+        if (!accepts(album.getOwner())) return;
+        append(encode(ALBUM_RENAME, album.getOwner(), oldName, album.getName()));
+    }
+
+    @Override
+    public void photoAdded(Album album, Photo photo) {
+        if (!accepts(album.getOwner())) return;
+        append(encode(PHOTO_ADD, album.getOwner(), album.getName(), photo.getPath(),
+                photo.getDateMillis(), photo.getCaption(), photo.getTags(), photo.getName(),
+                photo.getWidth(), photo.getHeight(), photo.getOrientation()));
+    }
+
+    @Override
+    public void photoRemoved(Album album, Photo photo) {
+        if (!accepts(album.getOwner())) return;
+        append(encode(PHOTO_REMOVE, album.getOwner(), album.getName(), photo.getPath()));
+    }
+
+    @Override
+    public void captionChanged(Photo photo) {
+        if (!accepts(photo.getOwner())) return;
+        append(encode(CAPTION, photo.getOwner(), photo.getPath(), photo.getCaption()));
+    }
+
+    @Override
+    public void metadataChanged(Photo photo) {
+        if (!accepts(photo.getOwner())) return;
+        append(encode(METADATA, photo.getOwner(), photo.getPath(), photo.getDateMillis(),
+                photo.getWidth(), photo.getHeight(), photo.getOrientation()));
+    }
+
+    @Override
+    public void tagAdded(Photo photo, Tag tag) {
+        if (!accepts(photo.getOwner())) return;
+        append(encode(TAG_ADD, photo.getOwner(), photo.getPath(), tag.getTagType(), tag.getTagValue()));
+    }
+
+    @Override
+    public void tagRemoved(Photo photo, Tag tag) {
+        if (!accepts(photo.getOwner())) return;
+        append(encode(TAG_REMOVE, photo.getOwner(), photo.getPath(), tag.getTagType(), tag.getTagValue()));
+    }
+
+    @Override
+    public void tagsReplaced(Photo photo, List<Tag> oldTags) {
+        if (!accepts(photo.getOwner())) return;
+        append(encode(TAGS_SET, photo.getOwner(), photo.getPath(), photo.getTags()));
+    }
+
+    // ---- Replay ----
+
+    /**
+     * Replays the journal file on top of the given users. Must be called before the journal
+     * is registered as a model listener, or inside {@link model.ModelEvents#runSilently}.
+     *
+     * @param file the journal file
+     * @param users the users loaded from the last snapshot; modified in place
+     * @return the number of bytes that replayed cleanly; anything after that is a torn record
+     * @throws IOException if the file cannot be read
+     */
+    public static long replay(File file, ArrayList<User> users) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        Replayer replayer = new Replayer(users);
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException eof) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    System.err.println("Journal: corrupt record length at offset " + valid + ", ignoring the rest.");
+                    break;
+                }
+                byte[] payload = new byte[length];
+                int storedCrc;
+                try {
+                    in.readFully(payload);
+                    storedCrc = in.readInt();
+                } catch (EOFException eof) {
+                    System.err.println("Journal: incomplete record at offset " + valid + ", ignoring it.");
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != storedCrc) {
+                    System.err.println("Journal: checksum mismatch at offset " + valid + ", ignoring the rest.");
+                    break;
+                }
+                replayer.apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                valid += length + 8;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Applies decoded records to the user list. Photos are looked up through a per-user
+     * path map that is built on first use, so a long replay does not rescan the library
+     * for every record.
+     */
+    private static class Replayer {
+        private final ArrayList<User> users;
+        private final Map<User, Map<String, Photo>> photosByUser = new HashMap<>();
+
+        Replayer(ArrayList<User> users) {
+            this.users = users;
+        }
+
+        private User findUser(String name) {
+            for (User u : users) {
+                if (u.getUsername().equals(name)) {
+                    return u;
+                }
+            }
+            return null;
+        }
+
+        private Map<String, Photo> photos(User user) {
+            return photosByUser.computeIfAbsent(user, u -> {
+                Map<String, Photo> map = new HashMap<>();
+                for (Album album : u.getAlbums()) {
+                    for (Photo p : album.getPhotos()) {
+                        map.putIfAbsent(p.getPath(), p);
+                    }
+                }
+                return map;
+            });
+        }
+
+        private static boolean inAnyAlbum(User user, Photo photo) {
+            for (Album album : user.getAlbums()) {
+                if (album.getPhotos().contains(photo)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static ArrayList<Tag> readTags(DataInput in) throws IOException {
+            int count = in.readInt();
+            ArrayList<Tag> tags = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tags.add(new Tag(in.readUTF(), in.readUTF()));
+            }
+            return tags;
+        }
+
+        void apply(DataInputStream in) throws IOException {
+            byte op = in.readByte();
+            String username = in.readUTF();
+            User user = findUser(username);
+            if (op == USER_ADD) {
+                if (user == null) {
+                    users.add(new User(username));
+                }
+                return;
+            }
+            if (user == null) {
+                // The user was deleted later on; nothing left to apply to.
+                return;
+            }
+            switch (op) {
+                case USER_DELETE:
+                    if (!(user instanceof Admin)) {
+                        users.remove(user);
+                        photosByUser.remove(user);
+                    }
+                    break;
+                case ALBUM_ADD: {
+                    String name = in.readUTF();
+                    if (user.getAlbum(name) == null) {
+                        user.addAlbum(new Album(name));
+                    }
+                    break;
+                }
+                case ALBUM_REMOVE: {
+                    Album album = user.getAlbum(in.readUTF());
+                    if (album != null) {
+                        user.deleteAlbum(album);
+                    }
+                    break;
+                }
+                case ALBUM_RENAME: {
+                    String oldName = in.readUTF();
+                    String newName = in.readUTF();
+                    Album album = user.getAlbum(oldName);
+                    if (album != null && user.getAlbum(newName) == null) {
+                        album.changeName(newName);
+                    }
+                    break;
+                }
+                case PHOTO_ADD: {
+                    Album album = user.getAlbum(in.readUTF());
+                    String path = in.readUTF();
+                    long date = in.readLong();
+                    String caption = in.readUTF();
+                    ArrayList<Tag> tags = readTags(in);
+                    // Records written before photos had a separate name end here.
+                    String name = (in.available() > 0) ? in.readUTF() : null;
+                    // And those written before photos had a size and orientation here.
+                    boolean hasMetadata = in.available() > 0;
+                    int width = hasMetadata ? in.readInt() : 0;
+                    int height = hasMetadata ? in.readInt() : 0;
+                    int orientation = hasMetadata ? in.readInt() : 0;
+                    if (album == null || album.findPhoto(path) != null) {
+                        break;
+                    }
+                    // A photo copied between albums is one shared object, as it was before saving.
+                    Photo photo = photos(user).get(path);
+                    if (photo == null) {
+                        photo = new Photo(path, date, name);
+                        if (orientation != 0) {
+                            photo.setMetadata(date, width, height, orientation);
+                        }
+                        photo.setCaption(caption);
+                        photo.setTags(tags);
+                        photos(user).put(path, photo);
+                    }
+                    album.addPhoto(photo);
+                    break;
+                }
+                case PHOTO_REMOVE: {
+                    Album album = user.getAlbum(in.readUTF());
+                    String path = in.readUTF();
+                    if (album != null) {
+                        Photo photo = album.findPhoto(path);
+                        if (photo != null) {
+                            album.removePhoto(photo);
+                            if (!inAnyAlbum(user, photo)) {
+                                photos(user).remove(path);
+                            }
+                        }
+                    }
+                    break;
+                }
+                case CAPTION: {
+                    Photo photo = photos(user).get(in.readUTF());
+                    String caption = in.readUTF();
+                    if (photo != null) {
+                        photo.setCaption(caption);
+                    }
+                    break;
+                }
+                case TAG_ADD: {
+                    Photo photo = photos(user).get(in.readUTF());
+                    Tag tag = new Tag(in.readUTF(), in.readUTF());
+                    // The tag type rules were checked when the tag was first added.
+                    if (photo != null && !photo.getTags().contains(tag)) {
+                        photo.getTags().add(tag);
+                    }
+                    break;
+                }
+                case TAG_REMOVE: {
+                    Photo photo = photos(user).get(in.readUTF());
+                    Tag tag = new Tag(in.readUTF(), in.readUTF());
+                    if (photo != null) {
+                        photo.getTags().remove(tag);
+                    }
+                    break;
+                }
+                case METADATA: {
+                    Photo photo = photos(user).get(in.readUTF());
+                    long date = in.readLong();
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    int orientation = in.readInt();
+                    if (photo != null) {
+                        photo.setMetadata(date, width, height, orientation);
+                    }
+                    break;
+                }
+                case TAGS_SET: {
+                    Photo photo = photos(user).get(in.readUTF());
+                    ArrayList<Tag> tags = readTags(in);
+                    if (photo != null) {
+                        photo.setTags(tags);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal record type " + op);
+            }
+        }
+    }
+}
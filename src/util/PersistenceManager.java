@@ -1,57 +1,222 @@
 package util;
 
-import java.io.*;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+import model.Admin;
+import model.Photo;
 import model.User;
 
 /**
  * A utility class that provides methods for persisting the user data
  * to disk and loading it back into the application.
  * <p>
- * The users are stored in a file called "users.dat" in the "users" directory
- * under the project's working directory.
+ * The work is done by a {@link LibraryRepository}. Which one is chosen per deployment with
+ * the system property {@code photos.storage}:
  * </p>
- * 
+ * <ul>
+ *   <li>{@code file} (the default) keeps the library in files under "users/", see {@link FileLibraryRepository}.</li>
+ *   <li>{@code jdbc} keeps it in an embedded SQL database, see {@link JdbcLibraryRepository}.</li>
+ * </ul>
+ *
  * @author Elvis Vasquez
  */
 public class PersistenceManager {
-    private static final String USERS_DIR = System.getProperty("user.dir") 
-            + File.separator + "users";
-    private static final String USERS_FILE = USERS_DIR + File.separator + "users.dat";
-    
+
+    private static LibraryRepository repository;
+
     /**
-     * Saves the given list of users to disk.
-     * If the "users" directory does not exist, it is created.
+     * Returns the repository of the running application, creating it on first use.
      *
-     * @param users the list of users to save
-     * @throws IOException if an I/O error occurs while writing the file
+     * @return the repository
      */
-    public static void saveUsers(ArrayList<User> users) throws IOException {
-        File dir = new File(USERS_DIR);
-        if (!dir.exists()) {
-            dir.mkdirs();
+    public static synchronized LibraryRepository getRepository() {
+        if (repository == null) {
+            String storage = System.getProperty("photos.storage", "file");
+            if (storage.equalsIgnoreCase("jdbc")) {
+                repository = new JdbcLibraryRepository(JdbcLibraryRepository.configuredUrl());
+            } else {
+                if (!storage.equalsIgnoreCase("file")) {
+                    System.err.println("Unknown storage '" + storage + "', using file storage.");
+                }
+                repository = new FileLibraryRepository();
+            }
+        }
+        return repository;
+    }
+
+    /**
+     * Loads the list of users. Every user is returned unloaded, without albums;
+     * call {@link #loadUser(User)} before using a user's albums. The admin is not
+     * stored and is created by {@link Admin#getInstance}.
+     * If nothing has been stored yet, a new, empty list is returned.
+     *
+     * @return the list of stored users, or an empty list if there are none
+     * @throws IOException if an I/O error occurs while reading the users
+     * @throws ClassNotFoundException if a legacy users.dat file cannot be deserialized
+     */
+    public static ArrayList<User> loadUsers() throws IOException, ClassNotFoundException {
+        return getRepository().loadUsers();
+    }
+
+    /**
+     * Starts storing every change to the given user list and its albums. Should be called
+     * once at startup, after {@link #loadUsers()} and after any default users have been created.
+     *
+     * @param users the live user list
+     * @throws IOException if a user cannot be stored
+     */
+    public static void start(ArrayList<User> users) throws IOException {
+        getRepository().start(users);
+    }
+
+    /**
+     * Sets how to reach the thread that changes the model, so that background saves copy the
+     * library there instead of reading it while it is being edited.
+     *
+     * @param executor runs a task on the model thread, e.g. {@code Platform::runLater}
+     * @param isModelThread tells whether the current thread is the model thread
+     */
+    public static void setModelThread(Executor executor, BooleanSupplier isModelThread) {
+        LibraryRepository current = getRepository();
+        if (current instanceof FileLibraryRepository) {
+            ((FileLibraryRepository) current).setModelThread(executor, isModelThread);
         }
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(USERS_FILE))) {
-            out.writeObject(users);
+    }
+
+    /**
+     * Returns the autosave service, e.g. to read its statistics.
+     *
+     * @return the autosave service, or null if the storage does not use one or has not been started
+     */
+    public static AutosaveService getAutosave() {
+        LibraryRepository current = getRepository();
+        if (current instanceof FileLibraryRepository) {
+            return ((FileLibraryRepository) current).getAutosave();
         }
+        return null;
     }
-    
+
     /**
-     * Loads the list of users from disk.
-     * If the file does not exist, a new, empty list is returned.
+     * Reads a user's albums. Does nothing if the user is already loaded.
      *
-     * @return the list of users loaded from disk, or an empty list if the file does not exist
-     * @throws IOException if an I/O error occurs while reading the file
+     * @param user the user to load
+     * @throws IOException if an I/O error occurs while reading the albums
      * @throws ClassNotFoundException if the class of a serialized object cannot be found
      */
-    @SuppressWarnings("unchecked")
-	public static ArrayList<User> loadUsers() throws IOException, ClassNotFoundException {
-        File file = new File(USERS_FILE);
-        if (!file.exists()) {
-            return new ArrayList<>();
-        }
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
-            return (ArrayList<User>) in.readObject();
+    public static void loadUser(User user) throws IOException, ClassNotFoundException {
+        getRepository().loadUser(user);
+    }
+
+    /**
+     * Reads a user as stored, without loading the live user.
+     *
+     * @param username the user to read
+     * @return a detached copy of the user with the stored albums
+     * @throws IOException if an I/O error occurs while reading the albums
+     * @throws ClassNotFoundException if the class of a serialized object cannot be found
+     */
+    public static User readStoredUser(String username) throws IOException, ClassNotFoundException {
+        return getRepository().readStoredUser(username);
+    }
+
+    /**
+     * Unloads a user, e.g. when they log out. Returns immediately; unsaved changes are kept.
+     *
+     * @param user the user to unload
+     */
+    public static void unloadUser(User user) {
+        getRepository().unloadUser(user);
+    }
+
+    /**
+     * Stores the complete current state of a loaded user.
+     *
+     * @param user the loaded user to save
+     * @return the number of bytes written, 0 if unknown, or -1 if the user is not loaded
+     * @throws IOException if an I/O error occurs while writing
+     */
+    public static long saveUser(User user) throws IOException {
+        return getRepository().saveUser(user);
+    }
+
+    /**
+     * Stores every loaded user in the list. Users that were never loaded are left untouched.
+     *
+     * @param users the list of users to save
+     * @throws IOException if an I/O error occurs while writing
+     */
+    public static void saveUsers(ArrayList<User> users) throws IOException {
+        for (User user : users) {
+            if (!(user instanceof Admin)) {
+                saveUser(user);
+            }
         }
     }
+
+    /**
+     * Finds a user's photos that carry the given tag.
+     *
+     * @param username the user whose photos are searched
+     * @param tagType the tag type
+     * @param tagValue the tag value
+     * @return the matching photos
+     * @throws IOException if the photos cannot be read
+     */
+    public static List<Photo> findPhotosByTag(String username, String tagType, String tagValue) throws IOException {
+        return getRepository().findPhotosByTag(username, tagType, tagValue);
+    }
+
+    /**
+     * Finds a user's photos taken in the given range.
+     *
+     * @param username the user whose photos are searched
+     * @param fromMillis the start of the range, inclusive
+     * @param toMillis the end of the range, inclusive
+     * @return the matching photos
+     * @throws IOException if the photos cannot be read
+     */
+    public static List<Photo> findPhotosByDate(String username, long fromMillis, long toMillis) throws IOException {
+        return getRepository().findPhotosByDate(username, fromMillis, toMillis);
+    }
+
+    /**
+     * Reads the registered tag types.
+     *
+     * @return the tag types, mapped to whether several tags of the type are allowed per photo
+     * @throws IOException if the tag types cannot be read
+     */
+    public static Map<String, Boolean> loadTagTypes() throws IOException {
+        return getRepository().loadTagTypes();
+    }
+
+    /**
+     * Stores a tag type registration.
+     *
+     * @param tagType the tag type, in lower case
+     * @param multipleAllowed whether several tags of the type are allowed per photo
+     * @throws IOException if the tag type cannot be stored
+     */
+    public static void saveTagType(String tagType, boolean multipleAllowed) throws IOException {
+        getRepository().saveTagType(tagType, multipleAllowed);
+    }
+
+    /**
+     * Makes sure every stored change is on the storage device.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public static void flush() throws IOException {
+        getRepository().flush();
+    }
+
+    /**
+     * Stores what is pending and releases the storage. Called on application exit.
+     */
+    public static void shutdown() {
+        getRepository().shutdown();
+    }
 }
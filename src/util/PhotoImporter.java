@@ -0,0 +1,94 @@
+package util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Copies photo files into the library.
+ * <p>
+ * Files are streamed with {@link FileChannel#transferTo}, which lets the operating system move
+ * the bytes directly between the files where it can, so importing a photo takes the same small
+ * amount of memory however large the file is. The modification time of the original is kept,
+ * since it serves as the photo's date.
+ * </p>
+ * <p>
+ * With the system property {@code photos.import.hardLink=true} a photo on the same file system
+ * as the library is hard-linked instead of copied, which takes no time and no extra disk space.
+ * The library then shares the file with the original, so changes to one show in the other.
+ * If linking is not possible the file is copied.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class PhotoImporter {
+
+    // Upper bound for a single transferTo call; some platforms transfer at most about 2 GB at once.
+    private static final long MAX_TRANSFER = 64L * 1024 * 1024;
+
+    /**
+     * Imports a photo file into a directory, replacing a file of the same name.
+     *
+     * @param source the photo to import
+     * @param targetDir the directory to import into; created if needed
+     * @return the imported file
+     * @throws IOException if the file cannot be read or written
+     */
+    public static Path importFile(Path source, Path targetDir) throws IOException {
+        Files.createDirectories(targetDir);
+        Path destination = targetDir.resolve(source.getFileName());
+        if (Files.exists(destination) && Files.isSameFile(source, destination)) {
+            // Already in place; copying onto itself would truncate it.
+            return destination;
+        }
+        if (Boolean.getBoolean("photos.import.hardLink") && link(source, destination)) {
+            return destination;
+        }
+        copy(source, destination);
+        return destination;
+    }
+
+    /**
+     * Copies a file at constant memory and gives the copy the original's modification time.
+     *
+     * @param source the file to copy
+     * @param destination the file to create or replace
+     * @throws IOException if the file cannot be read or written
+     */
+    public static void copy(Path source, Path destination) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, Math.min(MAX_TRANSFER, size - position), out);
+                if (transferred <= 0) {
+                    // The source shrank while it was being copied.
+                    break;
+                }
+                position += transferred;
+            }
+        }
+        FileTime modified = Files.getLastModifiedTime(source);
+        Files.setLastModifiedTime(destination, modified);
+    }
+
+    // Returns false if the two paths are on different file systems or links are not supported.
+    private static boolean link(Path source, Path destination) {
+        try {
+            if (!Files.getFileStore(source).equals(Files.getFileStore(destination.getParent()))) {
+                return false;
+            }
+            Files.deleteIfExists(destination);
+            Files.createLink(destination, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            System.err.println("Could not link " + source + ", copying it instead: " + e.getMessage());
+            return false;
+        }
+    }
+}
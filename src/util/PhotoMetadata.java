@@ -0,0 +1,386 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * The capture date, size and orientation of a photo, read from the headers of its file.
+ * <p>
+ * Only the segments in front of the pixel data are read: for a JPEG, the markers up to the
+ * start of the frame, including the EXIF block; for a PNG, the chunks up to the first image
+ * data, including an eXIf chunk. Large segments that do not matter here, such as colour
+ * profiles and embedded previews, are skipped without being read, so reading the metadata
+ * of a photo costs a few kilobytes of I/O whatever its size.
+ * </p>
+ * <p>
+ * The capture date is EXIF's DateTimeOriginal, else DateTimeDigitized, else DateTime. EXIF
+ * dates carry no time zone; they are taken as local time unless the file records the offset.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public final class PhotoMetadata {
+
+    /** The capture date of a photo whose file does not record it. */
+    public static final long UNKNOWN_DATE = Long.MIN_VALUE;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATE_TIME_DIGITIZED = 0x9004;
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    // An EXIF block is at most one JPEG segment; anything larger in a PNG is not read.
+    private static final int MAX_EXIF_SIZE = 65536;
+
+    private final int width;
+    private final int height;
+    private final int orientation;
+    private final long captureMillis;
+
+    private PhotoMetadata(int width, int height, int orientation, long captureMillis) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.captureMillis = captureMillis;
+    }
+
+    /**
+     * Reads the metadata of a JPEG or PNG file.
+     *
+     * @param file the photo file
+     * @return the metadata, or null if the file is neither a JPEG nor a PNG
+     * @throws IOException if the file cannot be read
+     */
+    public static PhotoMetadata read(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads the metadata at the start of a JPEG or PNG stream. The stream is not closed.
+     *
+     * @param stream the photo's bytes
+     * @return the metadata, or null if the stream is neither a JPEG nor a PNG
+     * @throws IOException if the stream cannot be read
+     */
+    public static PhotoMetadata read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 4096));
+        in.mark(8);
+        int start;
+        try {
+            start = in.readUnsignedShort();
+        } catch (EOFException e) {
+            return null;
+        }
+        try {
+            if (start == 0xFFD8) {
+                return readJpeg(in);
+            }
+            in.reset();
+            if (in.readLong() == PNG_SIGNATURE) {
+                return readPng(in);
+            }
+        } catch (EOFException e) {
+            // A truncated file; whatever was found before the end is lost with it.
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the width of the stored image, before it is rotated by its orientation.
+     *
+     * @return the width in pixels, or 0 if it is not known
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the stored image, before it is rotated by its orientation.
+     *
+     * @return the height in pixels, or 0 if it is not known
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns how the stored image must be turned to be shown upright, as the EXIF orientation
+     * value: 1 for upright, 6 to turn it 90 degrees clockwise, 3 for 180 and 8 for 90 counterclockwise
+     * (2, 4, 5 and 7 are the same with a mirror image).
+     *
+     * @return the orientation, 1 if the file does not record it
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Returns when the photo was taken.
+     *
+     * @return the date in epoch milliseconds, or {@link #UNKNOWN_DATE}
+     */
+    public long getCaptureMillis() {
+        return captureMillis;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + ", orientation " + orientation + ", taken "
+                + (captureMillis == UNKNOWN_DATE ? "unknown" : new java.util.Date(captureMillis).toString());
+    }
+
+    // ---- JPEG ----
+
+    private static PhotoMetadata readJpeg(DataInputStream in) throws IOException {
+        Exif exif = new Exif();
+        while (true) {
+            // Markers may be padded with any number of 0xFF bytes.
+            int marker = in.readUnsignedByte();
+            if (marker != 0xFF) {
+                return null;
+            }
+            while (marker == 0xFF) {
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // The end of the image or the start of the pixel data, without a frame header.
+                return exif.toMetadata(0, 0);
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue;
+            }
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+            if (marker == 0xE1 && !exif.found && length > 6) {
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                        && segment[4] == 0 && segment[5] == 0) {
+                    exif.parse(segment, 6);
+                }
+            } else if (isStartOfFrame(marker) && length >= 5) {
+                in.readUnsignedByte(); // sample precision
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                // The EXIF block always comes before the frame, so there is nothing left to find.
+                return exif.toMetadata(width, height);
+            } else {
+                skipFully(in, length);
+            }
+        }
+    }
+
+    // SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC), which share the range.
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    // ---- PNG ----
+
+    private static PhotoMetadata readPng(DataInputStream in) throws IOException {
+        Exif exif = new Exif();
+        int width = 0;
+        int height = 0;
+        while (true) {
+            long length = in.readInt() & 0xFFFFFFFFL;
+            int type = in.readInt();
+            if (type == 0x49484452 && length >= 8) { // IHDR
+                width = in.readInt();
+                height = in.readInt();
+                skipFully(in, length - 8 + 4);
+            } else if (type == 0x65584966 && length <= MAX_EXIF_SIZE && !exif.found) { // eXIf
+                byte[] chunk = new byte[(int) length];
+                in.readFully(chunk);
+                // Some writers keep the "Exif\0\0" header of the JPEG segment.
+                boolean prefixed = length > 6 && chunk[0] == 'E' && chunk[1] == 'x' && chunk[2] == 'i'
+                        && chunk[3] == 'f' && chunk[4] == 0 && chunk[5] == 0;
+                exif.parse(chunk, prefixed ? 6 : 0);
+                skipFully(in, 4);
+            } else if (type == 0x49444154 || type == 0x49454E44) { // IDAT, IEND
+                return exif.toMetadata(Math.max(0, width), Math.max(0, height));
+            } else {
+                skipFully(in, length + 4);
+            }
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip() may stop early without being at the end; read a byte to find out.
+                in.readByte();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    // ---- EXIF ----
+
+    /**
+     * The fields read from an EXIF block, which is a small TIFF file: a byte order mark, then
+     * directories of 12-byte entries whose values are stored inline or at an offset.
+     */
+    private static final class Exif {
+        boolean found;
+        int orientation = 1;
+        String dateTimeOriginal;
+        String dateTimeDigitized;
+        String dateTime;
+        String offsetTimeOriginal;
+
+        private byte[] data;
+        private int base;
+        private boolean littleEndian;
+
+        void parse(byte[] block, int start) {
+            found = true;
+            data = block;
+            base = start;
+            if (data.length - base < 8) {
+                return;
+            }
+            if (data[base] == 'I' && data[base + 1] == 'I') {
+                littleEndian = true;
+            } else if (!(data[base] == 'M' && data[base + 1] == 'M')) {
+                return;
+            }
+            if (u16(2) != 42) {
+                return;
+            }
+            long exifDirectory = readDirectory(u32(4), true);
+            if (exifDirectory > 0) {
+                readDirectory(exifDirectory, false);
+            }
+            data = null;
+        }
+
+        // Reads the fields of one directory; returns the offset of the EXIF directory if it points to one.
+        private long readDirectory(long offset, boolean first) {
+            if (offset < 8 || offset + 2 > data.length - base) {
+                return 0;
+            }
+            int count = u16((int) offset);
+            long exifDirectory = 0;
+            for (int i = 0; i < count; i++) {
+                int entry = (int) offset + 2 + i * 12;
+                if (entry + 12 > data.length - base) {
+                    break;
+                }
+                int tag = u16(entry);
+                int type = u16(entry + 2);
+                long n = u32(entry + 4);
+                if (first && tag == TAG_ORIENTATION && type == 3) {
+                    int value = u16(entry + 8);
+                    if (value >= 1 && value <= 8) {
+                        orientation = value;
+                    }
+                } else if (first && tag == TAG_DATE_TIME) {
+                    dateTime = ascii(entry, type, n);
+                } else if (first && tag == TAG_EXIF_IFD && (type == 4 || type == 13)) {
+                    exifDirectory = u32(entry + 8);
+                } else if (!first && tag == TAG_DATE_TIME_ORIGINAL) {
+                    dateTimeOriginal = ascii(entry, type, n);
+                } else if (!first && tag == TAG_DATE_TIME_DIGITIZED) {
+                    dateTimeDigitized = ascii(entry, type, n);
+                } else if (!first && tag == TAG_OFFSET_TIME_ORIGINAL) {
+                    offsetTimeOriginal = ascii(entry, type, n);
+                }
+            }
+            return exifDirectory;
+        }
+
+        private String ascii(int entry, int type, long count) {
+            if (type != 2 || count == 0 || count > 64) {
+                return null;
+            }
+            int start = (count <= 4) ? entry + 8 : (int) u32(entry + 8);
+            if (start < 0 || start + count > data.length - base) {
+                return null;
+            }
+            StringBuilder s = new StringBuilder((int) count);
+            for (int i = 0; i < count; i++) {
+                char c = (char) (data[base + start + i] & 0xFF);
+                if (c == 0) {
+                    break;
+                }
+                s.append(c);
+            }
+            return s.toString().trim();
+        }
+
+        private int u16(int offset) {
+            int a = data[base + offset] & 0xFF;
+            int b = data[base + offset + 1] & 0xFF;
+            return littleEndian ? (b << 8) | a : (a << 8) | b;
+        }
+
+        private long u32(int offset) {
+            long a = u16(littleEndian ? offset + 2 : offset);
+            long b = u16(littleEndian ? offset : offset + 2);
+            return (a << 16) | b;
+        }
+
+        PhotoMetadata toMetadata(int width, int height) {
+            long taken = parseDate(dateTimeOriginal, offsetTimeOriginal);
+            if (taken == UNKNOWN_DATE) {
+                taken = parseDate(dateTimeDigitized, null);
+            }
+            if (taken == UNKNOWN_DATE) {
+                taken = parseDate(dateTime, null);
+            }
+            return new PhotoMetadata(width, height, orientation, taken);
+        }
+    }
+
+    /**
+     * Parses an EXIF date, "YYYY:MM:DD HH:MM:SS". Cameras write blanks or zeros when the
+     * clock was not set; those dates are unknown.
+     */
+    static long parseDate(String value, String offset) {
+        if (value == null || value.length() < 19) {
+            return UNKNOWN_DATE;
+        }
+        try {
+            int year = Integer.parseInt(value.substring(0, 4));
+            int month = Integer.parseInt(value.substring(5, 7));
+            int day = Integer.parseInt(value.substring(8, 10));
+            int hour = Integer.parseInt(value.substring(11, 13));
+            int minute = Integer.parseInt(value.substring(14, 16));
+            int second = Integer.parseInt(value.substring(17, 19));
+            if (year == 0) {
+                return UNKNOWN_DATE;
+            }
+            LocalDateTime local = LocalDateTime.of(year, month, day, hour, minute, second);
+            ZoneId zone = ZoneId.systemDefault();
+            if (offset != null && !offset.isEmpty()) {
+                try {
+                    zone = ZoneOffset.of(offset);
+                } catch (DateTimeException e) {
+                    // An unreadable offset; keep local time.
+                }
+            }
+            return local.atZone(zone).toInstant().toEpochMilli();
+        } catch (NumberFormatException | DateTimeException e) {
+            return UNKNOWN_DATE;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes rectangular parts of one large image, so a zoomed-in view only decodes what it shows.
+ * <p>
+ * The file is opened once and kept open until {@link #close()}; each call to
+ * {@link #decode(int, int, int, int, int)} reads one region of the original, skipping pixels
+ * when a lower resolution is enough. Only the region is kept in memory, never the whole picture.
+ * Regions are decoded one at a time, as an {@link ImageReader} cannot be shared; closing waits
+ * for nothing: a region being decoded is aborted and the file is closed once it has stopped.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class RegionDecoder implements Closeable {
+
+    private final ImageInputStream in;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean closed;
+    private boolean released;
+
+    private RegionDecoder(ImageInputStream in, ImageReader reader) throws IOException {
+        this.in = in;
+        this.reader = reader;
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+    }
+
+    /**
+     * Opens an image file and reads its size.
+     *
+     * @param file the image file
+     * @return the decoder, or null if the file's format cannot be read here
+     * @throws IOException if the file cannot be read
+     */
+    public static RegionDecoder open(File file) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in == null) {
+            return null;
+        }
+        ImageReader reader = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                in.close();
+                return null;
+            }
+            reader = readers.next();
+            // Regions are read in any order, so the reader must be able to seek back.
+            reader.setInput(in, false, true);
+            return new RegionDecoder(in, reader);
+        } catch (IOException | RuntimeException e) {
+            if (reader != null) {
+                reader.dispose();
+            }
+            in.close();
+            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * Returns the width of the whole image.
+     *
+     * @return the width, in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the whole image.
+     *
+     * @return the height, in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Decodes a region of the image. The region is clipped to the image.
+     *
+     * @param x the left edge of the region in the original, in pixels
+     * @param y the top edge of the region in the original, in pixels
+     * @param w the width of the region in the original, in pixels
+     * @param h the height of the region in the original, in pixels
+     * @param subsampling keep every n-th pixel in each direction; 1 for full resolution
+     * @return the region, about w/subsampling by h/subsampling pixels
+     * @throws IOException if the file cannot be decoded or the decoder was closed
+     */
+    public BufferedImage decode(int x, int y, int w, int h, int subsampling) throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("The image is closed");
+            }
+            int left = Math.max(0, x);
+            int top = Math.max(0, y);
+            int right = Math.min(width, x + w);
+            int bottom = Math.min(height, y + h);
+            if (right <= left || bottom <= top) {
+                throw new IOException("The region lies outside the image");
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(left, top, right - left, bottom - top));
+            param.setSourceSubsampling(Math.max(1, subsampling), Math.max(1, subsampling), 0, 0);
+            BufferedImage region = reader.read(0, param);
+            if (closed) {
+                // Aborted by close(); what was read is incomplete.
+                throw new IOException("The image is closed");
+            }
+            return region;
+        } catch (RuntimeException e) {
+            // Some files ImageIO cannot decode, e.g. CMYK JPEGs.
+            throw new IOException(e);
+        } finally {
+            lock.unlock();
+            if (closed) {
+                releaseIfIdle();
+            }
+        }
+    }
+
+    /**
+     * Closes the file. A region being decoded is aborted; the file is closed once it has stopped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        reader.abort();
+        releaseIfIdle();
+    }
+
+    // Whoever finds the lock free after closing releases the reader and the stream, once.
+    private void releaseIfIdle() {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (released) {
+                return;
+            }
+            released = true;
+            reader.dispose();
+            try {
+                in.close();
+            } catch (IOException e) {
+                System.err.println("Error closing image: " + e.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
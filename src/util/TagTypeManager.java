@@ -1,7 +1,9 @@
 package util;
 
-import java.util.HashMap;
+import java.io.Serializable;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * TagTypeManager is a simple utility class for managing allowed tag types.
@@ -11,43 +13,61 @@ import java.util.Map;
  * For example, a tag type like "location" might allow only one value (false), while
  * a type like "person" might allow multiple values (true).
  * 
+ * There is a single instance per process, shared by every dialog and service that needs it.
+ * It is loaded once, on first use, and each new or changed tag type is persisted as soon as
+ * it is added (see {@link TagTypeManagerPersist}). Lookups do not lock and may be made from any thread.
+ * 
  * @author Elvis Vasquez
  */
-public class TagTypeManager {
+public class TagTypeManager implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private static volatile TagTypeManager instance;
     
     // Map of tag type to a boolean flag where:
     // true  = multiple tags allowed of that type.
     // false = only one tag allowed of that type.
-    private Map<String, Boolean> allowedTagTypes;
+    private final ConcurrentHashMap<String, Boolean> allowedTagTypes;
     
     /**
      * Private constructor initializes the allowed tag types map.
      */
     private TagTypeManager() {
-        allowedTagTypes = new HashMap<>();
+        allowedTagTypes = new ConcurrentHashMap<>();
         // Add default tag types:
         allowedTagTypes.put("location", false);  // Only one location tag allowed
         allowedTagTypes.put("person", true);       // Multiple person tags allowed
     }
     
     /**
-     * Loads and returns an instance of TagTypeManager.
-     * In a more advanced implementation, this might load configuration data from a file.
+     * Returns the shared instance, loading the persisted tag types on the first call.
      *
-     * @return a new TagTypeManager instance with default tag types.
+     * @return the process-wide TagTypeManager.
      */
-    public static TagTypeManager loadTagTypes() {
-        return new TagTypeManager();
+    public static TagTypeManager getInstance() {
+        TagTypeManager manager = instance;
+        if (manager == null) {
+            synchronized (TagTypeManager.class) {
+                manager = instance;
+                if (manager == null) {
+                    manager = new TagTypeManager();
+                    manager.allowedTagTypes.putAll(TagTypeManagerPersist.load());
+                    instance = manager;
+                }
+            }
+        }
+        return manager;
     }
     
     /**
      * Returns the allowed tag types.
      * The returned map has keys as tag type names and values as a flag indicating if multiple values are allowed.
+     * It is a read-only view; use {@link #addTagType} to change it.
      *
      * @return the map of allowed tag types.
      */
     public Map<String, Boolean> getAllowedTagTypes() {
-        return allowedTagTypes;
+        return Collections.unmodifiableMap(allowedTagTypes);
     }
     
     /**
@@ -69,13 +89,18 @@ public class TagTypeManager {
     /**
      * Adds a tag type to the allowed tag types map.
      * If the tag type already exists, its multiple-allowed status is updated.
+     * The change is persisted right away; re-adding an unchanged type writes nothing.
      *
      * @param tagType the tag type name.
      * @param isMultiAllowed true if multiple instances of the tag are allowed, false if only one is allowed.
      */
-    public void addTagType(String tagType, boolean isMultiAllowed) {
+    public synchronized void addTagType(String tagType, boolean isMultiAllowed) {
         if (tagType != null && !tagType.trim().isEmpty()) {
-            allowedTagTypes.put(tagType.toLowerCase(), isMultiAllowed);
+            String key = tagType.toLowerCase();
+            Boolean previous = allowedTagTypes.put(key, isMultiAllowed);
+            if (previous == null || previous != isMultiAllowed) {
+                TagTypeManagerPersist.persist(key, isMultiAllowed);
+            }
         }
     }
 }
@@ -1,36 +1,43 @@
 package util;
 
-import java.io.*;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
+ * Persists the tag types of the {@link TagTypeManager} through the library's storage
+ * (see {@link PersistenceManager}). Each registration is stored on its own as it is made,
+ * so adding a tag type never rewrites the others.
+ * 
  * @author Tyler Gehringer
  */
 
 public class TagTypeManagerPersist {
-    private static final String FILE_NAME = "tagTypes.dat";
-    
-    public static void persist(TagTypeManager manager) {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(FILE_NAME))) {
-            out.writeObject(manager);
-            System.out.println("TagTypeManager persisted successfully.");
+    /**
+     * Stores a single tag type registration.
+     *
+     * @param tagType the tag type, in lower case.
+     * @param isMultiAllowed whether several tags of the type are allowed per photo.
+     */
+    public static void persist(String tagType, boolean isMultiAllowed) {
+        try {
+            PersistenceManager.saveTagType(tagType, isMultiAllowed);
         } catch (IOException e) {
-            System.err.println("Error persisting TagTypeManager: " + e.getMessage());
+            System.err.println("Error persisting tag type " + tagType + ": " + e.getMessage());
         }
     }
     
-    public static TagTypeManager load() {
-        File file = new File(FILE_NAME);
-        if (!file.exists()) {
-            System.out.println("No persisted TagTypeManager found, using default.");
-            return null;
-        }
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
-            TagTypeManager manager = (TagTypeManager) in.readObject();
-            System.out.println("TagTypeManager loaded successfully.");
-            return manager;
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error loading TagTypeManager: " + e.getMessage());
-            return null;
+    /**
+     * Loads the persisted tag types.
+     *
+     * @return the tag types mapped to whether several tags of the type are allowed; empty if there are none.
+     */
+    public static Map<String, Boolean> load() {
+        try {
+            return PersistenceManager.loadTagTypes();
+        } catch (IOException e) {
+            System.err.println("Error loading tag types: " + e.getMessage());
+            return new HashMap<>();
         }
     }
 }
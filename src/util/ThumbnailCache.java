@@ -0,0 +1,176 @@
+package util;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A cache of small versions of the photos, kept on disk under "users/thumbs/".
+ * <p>
+ * A thumbnail is made once per photo and size, by decoding only every n-th pixel of the
+ * original and scaling the result down, and is then read from its own small file. The cache
+ * key is the photo's path together with the file's size and modification time, so a thumbnail
+ * is made again when its photo changes; the outdated one is deleted at that moment.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class ThumbnailCache {
+
+    private static final String THUMBS_DIR = System.getProperty("user.dir")
+            + File.separator + "users" + File.separator + "thumbs";
+
+    private static ThumbnailCache instance;
+
+    private final File root;
+
+    /**
+     * Returns the thumbnail cache under "users/thumbs".
+     *
+     * @return the shared thumbnail cache
+     */
+    public static synchronized ThumbnailCache getInstance() {
+        if (instance == null) {
+            instance = new ThumbnailCache(new File(THUMBS_DIR));
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a thumbnail cache in the given directory.
+     *
+     * @param root the directory that holds the thumbnails
+     */
+    public ThumbnailCache(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the thumbnail of a photo file, making it first if there is no up-to-date one.
+     * May be called from several threads at once.
+     *
+     * @param source the photo file
+     * @param size the largest width and height of the thumbnail, in pixels
+     * @return the thumbnail file, or null if the photo's format cannot be read here
+     * @throws IOException if the photo cannot be read or the thumbnail cannot be written
+     */
+    public Path getThumbnail(File source, int size) throws IOException {
+        Path path = source.toPath();
+        long length = Files.size(path);
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        String pathKey = hash(source.getAbsolutePath() + "|" + size);
+        String version = Long.toHexString(length) + "-" + Long.toHexString(modified);
+        File dir = new File(root, pathKey.substring(0, 2));
+        String prefix = pathKey + "-";
+
+        File[] cached = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if (cached != null) {
+            for (File file : cached) {
+                if (file.getName().startsWith(prefix + version + ".")) {
+                    return file.toPath();
+                }
+                // The photo has changed since this thumbnail was made.
+                file.delete();
+            }
+        }
+
+        BufferedImage thumbnail = decode(source, size);
+        if (thumbnail == null) {
+            return null;
+        }
+        boolean opaque = thumbnail.getTransparency() == BufferedImage.OPAQUE;
+        String format = opaque ? "jpg" : "png";
+        dir.mkdirs();
+        Path target = new File(dir, prefix + version + "." + format).toPath();
+        Path temp = Files.createTempFile(dir.toPath(), pathKey, ".part");
+        try {
+            if (!ImageIO.write(thumbnail, format, temp.toFile())) {
+                return null;
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return target;
+    }
+
+    /**
+     * Decodes a photo at a little over the given size and scales it down to fit it.
+     */
+    private static BufferedImage decode(File source, int size) throws IOException {
+        BufferedImage image;
+        try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // Skip pixels while decoding, keeping about twice the target size for a smooth result.
+                int step = Math.max(1, Math.max(width, height) / (size * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Some files ImageIO cannot decode, e.g. CMYK JPEGs; the caller falls back to a full decode.
+            System.err.println("Could not make a thumbnail of " + source + ": " + e.getMessage());
+            return null;
+        }
+
+        double scale = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        boolean opaque = !image.getColorModel().hasAlpha();
+        BufferedImage scaled = new BufferedImage(width, height,
+                opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+}
@@ -64,7 +64,7 @@ public class AlbumController {
      * @param album the album to remove
      */
     private void removeAlbum(Album album) {
-        currentUser.getAlbums().remove(album);
+        currentUser.deleteAlbum(album);
         populateAlbums();  // Refresh the TilePane
     }
     
@@ -137,7 +137,7 @@ public class AlbumController {
         
         // If the album is not empty, sort the photos by date and show the date range.
         if (album.getPhotos().size() != 0) {
-            album.getPhotos().sort((p1, p2) -> p1.getDate().compareTo(p2.getDate()));
+            album.getPhotos().sort((p1, p2) -> Long.compare(p1.getDateMillis(), p2.getDateMillis()));
 
             // Format the earliest and latest dates.
             SimpleDateFormat sdf = new SimpleDateFormat("MM-dd-yyyy");
@@ -200,6 +200,9 @@ public class AlbumController {
      */
     @FXML
     private void handleLogout(ActionEvent event) throws IOException {
+        // Save in the background and drop this user's albums from memory; they are read again on the next login.
+        util.PersistenceManager.unloadUser(currentUser);
+        currentUser = null;
         Parent loginView = FXMLLoader.load(getClass().getResource("/view/login.fxml"));
         Scene loginScene = new Scene(loginView, 600, 400);
         Stage stage = (Stage) ((Node) event.getSource()).getScene().getWindow();
@@ -207,6 +210,39 @@ public class AlbumController {
         stage.show();
     }
     
+    /**
+     * Handles the Search All Albums action: asks for a query, then shows the matching photos of
+     * every album, each once, as they are found.
+     *
+     * @param event the action event triggered by clicking the Search All Albums button
+     * @throws IOException if the FXML cannot be loaded
+     */
+    @FXML
+    private void handleSearchAll(ActionEvent event) throws IOException {
+        FXMLLoader dialogLoader = new FXMLLoader(getClass().getResource("/view/searchDialog.fxml"));
+        Parent dialogRoot = dialogLoader.load();
+        SearchDialogController dialogController = dialogLoader.getController();
+        dialogController.setUser(currentUser);
+        Stage dialogStage = new Stage();
+        dialogStage.setTitle("Search All Albums");
+        dialogStage.getIcons().add(new Image(loadDataImageSafely("icon.png")));
+        dialogStage.setScene(new Scene(dialogRoot));
+        dialogStage.showAndWait();
+        
+        Optional<SearchDialogController.SearchCriteria> criteria = dialogController.getCriteria();
+        if (criteria.isEmpty()) {
+            return;
+        }
+        FXMLLoader loader = new FXMLLoader(getClass().getResource("/view/photoView.fxml"));
+        Parent photoViewRoot = loader.load();
+        PhotoViewController controller = loader.getController();
+        controller.searchLibrary(currentUser, criteria.get().query);
+        Scene photoScene = new Scene(photoViewRoot, 600, 400);
+        Stage stage = (Stage) ((Node) event.getSource()).getScene().getWindow();
+        stage.setScene(photoScene);
+        stage.show();
+    }
+    
     /**
      * Handles the Add Album action by prompting the user for a new album name and creating a new album.
      *
@@ -240,7 +276,7 @@ public class AlbumController {
                     return;
                 } else {
                     Album newAlbum = new Album(albumName);
-                    currentUser.getAlbums().add(newAlbum);
+                    currentUser.addAlbum(newAlbum);
                     albumTilePane.getChildren().add(createAlbumBox(newAlbum));
                 }
             } else {
@@ -60,7 +60,7 @@ public class EditPhotoDialogController {
     
     @FXML
     public void initialize() {
-        tagTypeManager = TagTypeManager.loadTagTypes();
+        tagTypeManager = TagTypeManager.getInstance();
         
         ArrayList<String> presetTypes = new ArrayList<>(tagTypeManager.getAllowedTagTypes().keySet());
         presetTypes.add("other");
@@ -147,35 +147,22 @@ public class EditPhotoDialogController {
             String allowMulti = allowCombo.getSelectionModel().getSelectedItem();
             
             if (!tagType.isEmpty() && !tagValue.isEmpty()) {
-<<<<<<< HEAD
                 boolean isMultiAllowed = allowMulti.equalsIgnoreCase("Yes");
-                if (!isMultiAllowed) {
-                    boolean alreadyExists = tags.stream()
-                        .anyMatch(tag -> tag.getTagType().equalsIgnoreCase(tagType));
-                    if (alreadyExists) {
-                        showCustomWarning("Tag Multiplicity Error", "Only one '" + tagType + "' tag is allowed for a photo.");
-                        return; 
-                    }
+                boolean alreadyExists = tags.stream()
+                    .anyMatch(tag -> tag.getTagType().equalsIgnoreCase(tagType));
+                if (alreadyExists && !isMultiAllowed) {
+                    showCustomWarning("Tag Multiplicity Error", "Only one '" + tagType + "' tag is allowed for a photo.");
+                    return; 
+                }
+                
+                Boolean currentMultiAllowed = tagTypeManager.getAllowedTagTypes().get(tagType.toLowerCase());
+                if (currentMultiAllowed != null && !currentMultiAllowed && isMultiAllowed) {
+                    showCustomWarning("Tag Multiplicity Error",
+                            "The tag type '" + tagType + "' is already set as a single-value tag. " +
+                            "Cannot add additional values even if 'Allow Multiple' is selected.");
+                    return;
                 }
                 tagTypeManager.addTagType(tagType, isMultiAllowed);
-=======
-            	boolean isMultiAllowed = allowMulti.equalsIgnoreCase("Yes");
-            	boolean alreadyExists = tags.stream()
-                         .anyMatch(tag -> tag.getTagType().equalsIgnoreCase(tagType));
-            	if (alreadyExists && !isMultiAllowed) {
-                    	showCustomWarning("Tag Multiplicity Error", "Only one '" + tagType + "' tag is allowed for a photo.");
-                        return; 
-                    }
-            	
-            	 Boolean currentMultiAllowed = tagTypeManager.getAllowedTagTypes().get(tagType.toLowerCase());
-                 if (currentMultiAllowed != null && !currentMultiAllowed && isMultiAllowed) {
-                     showCustomWarning("Tag Multiplicity Error",
-                             "The tag type '" + tagType + "' is already set as a single-value tag. " +
-                             "Cannot add additional values even if 'Allow Multiple' is selected.");
-                     return;
-                 }
-            	tagTypeManager.addTagType(tagType, isMultiAllowed);
->>>>>>> 04f801fa1394f36d540e72f6323e36aa5807f99e
                 ArrayList<String> presetTypes = new ArrayList<>(tagTypeManager.getAllowedTagTypes().keySet());
                 presetTypes.add("other");
                 tagTypeCombo.setItems(FXCollections.observableArrayList(presetTypes));
@@ -221,21 +208,6 @@ public class EditPhotoDialogController {
                 if (child instanceof TextField) {
                     tf = (TextField) child;
                     break;
-<<<<<<< HEAD
-=======
-                    }
-                }
-                
-             if (tagToRemove != null) {
-
-                 tags.remove(tagToRemove);
-                 showCustomWarning("Tag Removed", "Removed tag: " + selected + ":" + valueToRemove);
-                 tf.clear();
-             } else {
-                 showCustomWarning("Tag Not Found", 
-                     "No tag of type '" + selected 
-                      + "' with value '" + valueToRemove + "' was found.");
->>>>>>> 04f801fa1394f36d540e72f6323e36aa5807f99e
                 }
             }
         }
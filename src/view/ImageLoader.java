@@ -0,0 +1,182 @@
+package view;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import model.ImageCache;
+import model.PhotoService;
+
+/**
+ * Decodes photos on a pool of worker threads, so the JavaFX thread never waits for image I/O.
+ * <p>
+ * Each request has a priority; the pool always decodes the request with the lowest number
+ * next, and a request's priority can be changed while it waits, e.g. when its tile scrolls
+ * into view. A request can be cancelled: if it has not started it is dropped, and if it is
+ * being decoded the result is thrown away. Images already in the {@link ImageCache} are
+ * handed over at once, without a detour through the pool.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class ImageLoader {
+
+    /** The priority of images the user is looking at. */
+    public static final int VISIBLE = 0;
+
+    private static ImageLoader instance;
+
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * A pending image, returned by {@link ImageLoader#load}.
+     */
+    public final class Request implements Runnable, Comparable<Request> {
+        private final String description;
+        private final Callable<Image> decoder;
+        private final Consumer<Image> onLoaded;
+        private volatile int priority;
+        private volatile long order;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+
+        private Request(String description, Callable<Image> decoder, int priority, Consumer<Image> onLoaded) {
+            this.description = description;
+            this.decoder = decoder;
+            this.priority = priority;
+            this.order = sequence.getAndIncrement();
+            this.onLoaded = onLoaded;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            Image image;
+            try {
+                image = decoder.call();
+            } catch (Exception e) {
+                System.err.println("Error loading image " + description + ": " + e.getMessage());
+                done = true;
+                return;
+            }
+            Platform.runLater(() -> deliver(image));
+        }
+
+        private void deliver(Image image) {
+            done = true;
+            if (!cancelled) {
+                onLoaded.accept(image);
+            }
+        }
+
+        /**
+         * Moves the request ahead of or behind the others waiting. Does nothing once it has started.
+         *
+         * @param newPriority the new priority, lower numbers first
+         */
+        public void setPriority(int newPriority) {
+            if (newPriority == priority || cancelled || done) {
+                return;
+            }
+            // The queue only orders a request when it is inserted, so take it out and put it back.
+            if (pool.remove(this)) {
+                priority = newPriority;
+                order = sequence.getAndIncrement();
+                pool.execute(this);
+            }
+        }
+
+        /**
+         * Cancels the request: the image is not decoded if it has not started, and not handed over if it has.
+         */
+        public void cancel() {
+            cancelled = true;
+            pool.remove(this);
+        }
+
+        /**
+         * Returns whether the image has been handed over or failed to load.
+         *
+         * @return true if the request is finished
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            int byPriority = Integer.compare(priority, other.priority);
+            return (byPriority != 0) ? byPriority : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Returns the image loader of the application.
+     *
+     * @return the shared image loader
+     */
+    public static synchronized ImageLoader getInstance() {
+        if (instance == null) {
+            int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            instance = new ImageLoader(threads);
+        }
+        return instance;
+    }
+
+    private ImageLoader(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "image-decode-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Loads a photo in the background and hands it over on the JavaFX thread. If the image
+     * is cached, it is handed over before this method returns.
+     *
+     * @param path the photo's path
+     * @param size the largest width and height to decode, or 0 for full size
+     * @param priority the priority, {@link #VISIBLE} or higher numbers for images needed later
+     * @param onLoaded called on the JavaFX thread with the image, unless the request is cancelled
+     * @return the request, to cancel it or change its priority
+     */
+    public Request load(String path, double size, int priority, Consumer<Image> onLoaded) {
+        Request request = new Request(path, () -> (size > 0) ? PhotoService.loadThumbnail(path, size)
+                : PhotoService.loadImage(path), priority, onLoaded);
+        Image cached = ImageCache.getInstance().peek(path, size);
+        if (cached != null) {
+            request.deliver(cached);
+        } else {
+            pool.execute(request);
+        }
+        return request;
+    }
+
+    /**
+     * Runs any image decode on the pool and hands the image over on the JavaFX thread.
+     * Nothing is looked up in or added to the {@link ImageCache}.
+     *
+     * @param description what is decoded, for error messages
+     * @param decoder decodes the image; runs on a worker thread
+     * @param priority the priority, {@link #VISIBLE} or higher numbers for images needed later
+     * @param onLoaded called on the JavaFX thread with the image, unless the request is cancelled
+     * @return the request, to cancel it or change its priority
+     */
+    public Request submit(String description, Callable<Image> decoder, int priority, Consumer<Image> onLoaded) {
+        Request request = new Request(description, decoder, priority, onLoaded);
+        pool.execute(request);
+        return request;
+    }
+}
@@ -3,6 +3,7 @@ package view;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -13,7 +14,10 @@ import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.stage.Stage;
+import model.Photo;
 import model.User;
+import util.MetadataScanner;
+import util.PhotoMetadata;
 import app.Photos;
 
 /**
@@ -75,7 +79,17 @@ public class LoginController {
         int index = users.indexOf(temp);
         if (index != -1) {
             User user = users.get(index);
+            // Only now are this user's albums read from disk.
+            try {
+                util.PersistenceManager.loadUser(user);
+            } catch (IOException | ClassNotFoundException e) {
+                e.printStackTrace();
+                errorLabel.setStyle("-fx-text-fill: red;");
+                errorLabel.setText("Could not load " + uname + "'s albums");
+                return;
+            }
             AlbumController.currentUser = user;  // Set current user for album display.
+            scanMetadata(user);
             errorLabel.setText("");
             Parent newRoot = FXMLLoader.load(getClass().getResource("/view/home.fxml"));
             Scene newScene = new Scene(newRoot, 600, 400);
@@ -137,18 +151,16 @@ public class LoginController {
     
     /**
      * Handles the logout process.
-     * Saves the user data and reloads the login scene.
+     * Hands the current user's albums to the background autosave, which saves and unloads them,
+     * and reloads the login scene without waiting for the save.
      *
      * @param event the ActionEvent triggered by the logout action
      * @throws IOException if the login.fxml file cannot be loaded
      */
     @FXML
     void handleLogout(ActionEvent event) throws IOException {
-        try {
-            util.PersistenceManager.saveUsers(app.Photos.admin.listUsers());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        util.PersistenceManager.unloadUser(AlbumController.currentUser);
+        AlbumController.currentUser = null;
         Parent loginView = FXMLLoader.load(getClass().getResource("/view/login.fxml"));
         Scene loginScene = new Scene(loginView, 600, 400);
         Stage stage = (Stage) ((Node) event.getSource()).getScene().getWindow();
@@ -156,6 +168,39 @@ public class LoginController {
         stage.show();
     }
     
+    /**
+     * Reads the capture date, size and orientation of the user's photos that were imported
+     * before these were read from the files. The files are read in the background; the photos
+     * are updated on the JavaFX thread, unless the user has logged out by then.
+     *
+     * @param user the user who just logged in
+     */
+    private static void scanMetadata(User user) {
+        List<Photo> photos = MetadataScanner.unscanned(user);
+        if (photos.isEmpty()) {
+            return;
+        }
+        Task<PhotoMetadata[]> scan = new Task<>() {
+            @Override
+            protected PhotoMetadata[] call() throws Exception {
+                return MetadataScanner.scan(photos);
+            }
+        };
+        scan.setOnSucceeded(e -> {
+            if (AlbumController.currentUser != user) {
+                return;
+            }
+            PhotoMetadata[] results = scan.getValue();
+            for (int i = 0; i < results.length; i++) {
+                MetadataScanner.apply(photos.get(i), results[i]);
+            }
+        });
+        scan.setOnFailed(e -> System.err.println("Error reading photo metadata: " + scan.getException()));
+        Thread thread = new Thread(scan, "metadata-scan");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
     /**
      * Helper method to load an image from the external data folder.
      * Assumes that the image files (e.g. icon.png, user_icon.png) are located
@@ -1,28 +1,45 @@
 package view;
 
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import javafx.fxml.FXML;
+import javafx.geometry.Bounds;
 import javafx.scene.control.Label;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.Scene;
 import javafx.scene.Node;
 import javafx.event.ActionEvent;
 import javafx.stage.Stage;
+import model.ImageCache;
 import model.Photo;
+import model.PhotoService;
+import util.RegionDecoder;
 
 /*
- * This class handles the detailed view window of photos
+ * This class handles the detailed view window of photos.
+ * The photo appears at once as its cached thumbnail, is then replaced by an image decoded
+ * at the size it is shown at. When the user zooms in further, only the visible part of the
+ * original is decoded, in tiles at the resolution they are shown at, so even a very large
+ * scan or panorama is never decoded whole.
  * 
  * @author Elvis Vasquez
  */
 
 public class PhotoDetailController {
 
+    @FXML
+    private ScrollPane scrollPane;
+    
     @FXML
     private ImageView largeImage;
     
+    @FXML
+    private TileLayer tileLayer;
+    
     @FXML
     private Label captionLabel;
     
@@ -34,6 +51,33 @@ public class PhotoDetailController {
     
     private Scene previousScene;
     
+    // The size the photo is shown at when it is not zoomed.
+    private static final double DISPLAY_WIDTH = 900;
+    private static final double DISPLAY_HEIGHT = 600;
+    private static final double MAX_ZOOM = 8;
+    
+    private Photo photo;
+    private double zoom = 1;
+    // The width of the image currently shown, in pixels, and whether it is the full-size one.
+    private double shownWidth;
+    private boolean fullSize;
+    private ImageLoader.Request screenRequest;
+    private ImageLoader.Request fullRequest;
+    // The original, opened for decoding tiles the first time the user zooms in; null if it cannot be.
+    private RegionDecoder regions;
+    private boolean regionsOpened;
+    
+    /**
+     * Called when the FXML file is loaded: decodes the tiles in view whenever the user zooms or scrolls.
+     */
+    @FXML
+    private void initialize() {
+        scrollPane.hvalueProperty().addListener((obs, oldValue, newValue) -> updateTiles());
+        scrollPane.vvalueProperty().addListener((obs, oldValue, newValue) -> updateTiles());
+        scrollPane.viewportBoundsProperty().addListener((obs, oldValue, newValue) -> updateTiles());
+        largeImage.layoutBoundsProperty().addListener((obs, oldValue, newValue) -> updateTiles());
+    }
+    
     /**
      * Sets the photo data and updates the UI.
      * @param photo the Photo object whose details are to be shown
@@ -59,9 +103,155 @@ public class PhotoDetailController {
      */
     public void setImage(Image image) {
         largeImage.setImage(image);
-        largeImage.setFitWidth(900);
-        largeImage.setFitHeight(600);
         largeImage.setPreserveRatio(true);
+        applyZoom();
+        shownWidth = (image == null) ? 0 : image.getWidth();
+    }
+    
+    /**
+     * Shows a photo's image progressively: the cached thumbnail right away, if there is one,
+     * then an image decoded at the display size. Nothing is decoded on the JavaFX thread.
+     * @param photo the Photo whose image is to be shown
+     */
+    public void loadImage(Photo photo) {
+        cancelRequests();
+        closeRegions();
+        this.photo = photo;
+        fullSize = false;
+        Image thumbnail = ImageCache.getInstance().peek(photo.getPath(), UploadTask.THUMBNAIL_SIZE);
+        setImage(thumbnail);
+        
+        double scale = outputScale();
+        double width = Math.ceil(DISPLAY_WIDTH * scale);
+        double height = Math.ceil(DISPLAY_HEIGHT * scale);
+        String path = photo.getPath();
+        screenRequest = ImageLoader.getInstance().submit(path, () -> PhotoService.loadImage(path, width, height),
+                ImageLoader.VISIBLE, image -> {
+                    if (!fullSize) {
+                        setImage(image);
+                    }
+                });
+    }
+    
+    /**
+     * Zooms in or out with the mouse wheel while Ctrl is held.
+     * @param event the scroll event
+     */
+    @FXML
+    private void handleScroll(ScrollEvent event) {
+        if (!event.isControlDown() || event.getDeltaY() == 0) {
+            return;
+        }
+        setZoom(zoom * (event.getDeltaY() > 0 ? 1.25 : 0.8));
+        event.consume();
+    }
+    
+    /**
+     * Zooms in.
+     * @param event the action event triggered by the zoom in button
+     */
+    @FXML
+    private void handleZoomIn(ActionEvent event) {
+        setZoom(zoom * 1.5);
+    }
+    
+    /**
+     * Zooms out.
+     * @param event the action event triggered by the zoom out button
+     */
+    @FXML
+    private void handleZoomOut(ActionEvent event) {
+        setZoom(zoom / 1.5);
+    }
+    
+    /**
+     * Shows the whole photo again.
+     * @param event the action event triggered by the fit button
+     */
+    @FXML
+    private void handleZoomFit(ActionEvent event) {
+        setZoom(1);
+    }
+    
+    /**
+     * Changes the zoom. Once the photo is shown larger than the decoded image, the visible part
+     * of the original is decoded in tiles. Photos that cannot be decoded in parts are decoded
+     * whole, in the background, and swapped in.
+     * @param newZoom the new zoom factor, 1 to fit the photo into the view
+     */
+    private void setZoom(double newZoom) {
+        zoom = Math.max(1, Math.min(MAX_ZOOM, newZoom));
+        applyZoom();
+        if (photo == null || fullSize || !needsDetail()) {
+            return;
+        }
+        if (!regionsOpened) {
+            regionsOpened = true;
+            try {
+                // Only reads the header, to learn the size of the original.
+                regions = PhotoService.openRegions(photo.getPath());
+            } catch (IOException e) {
+                System.err.println("Error opening " + photo.getPath() + ": " + e.getMessage());
+            }
+            tileLayer.setSource(photo.getPath(), regions);
+        }
+        if (regions != null) {
+            updateTiles();
+        } else if (fullRequest == null) {
+            fullRequest = ImageLoader.getInstance().load(photo.getPath(), 0, ImageLoader.VISIBLE, image -> {
+                fullSize = true;
+                setImage(image);
+            });
+        }
+    }
+    
+    // Whether the photo is shown with more pixels than the decoded image has.
+    private boolean needsDetail() {
+        return largeImage.getLayoutBounds().getWidth() * outputScale() > shownWidth + 1;
+    }
+    
+    /**
+     * Shows the tiles of the original that are in view, or none if the decoded image is enough.
+     */
+    private void updateTiles() {
+        if (regions == null || regions.getWidth() <= shownWidth || !needsDetail()) {
+            tileLayer.clear();
+            return;
+        }
+        Bounds visible = largeImage.sceneToLocal(scrollPane.localToScene(scrollPane.getLayoutBounds()));
+        tileLayer.update(largeImage.getLayoutBounds().getWidth(), visible, outputScale());
+    }
+    
+    private void applyZoom() {
+        largeImage.setFitWidth(DISPLAY_WIDTH * zoom);
+        largeImage.setFitHeight(DISPLAY_HEIGHT * zoom);
+    }
+    
+    private double outputScale() {
+        if (largeImage.getScene() != null && largeImage.getScene().getWindow() != null) {
+            return largeImage.getScene().getWindow().getOutputScaleX();
+        }
+        return 1;
+    }
+    
+    private void cancelRequests() {
+        if (screenRequest != null) {
+            screenRequest.cancel();
+            screenRequest = null;
+        }
+        if (fullRequest != null) {
+            fullRequest.cancel();
+            fullRequest = null;
+        }
+    }
+    
+    private void closeRegions() {
+        tileLayer.setSource(null, null);
+        if (regions != null) {
+            regions.close();
+            regions = null;
+        }
+        regionsOpened = false;
     }
     
     /**
@@ -78,6 +268,8 @@ public class PhotoDetailController {
      */
     @FXML
     private void handleExit(ActionEvent event) {
+        cancelRequests();
+        closeRegions();
         Stage stage = (Stage) ((Node) event.getSource()).getScene().getWindow();
         if (previousScene != null) {
             stage.setScene(previousScene);
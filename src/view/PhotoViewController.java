@@ -1,21 +1,20 @@
 package view;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.ResourceBundle;
-import java.util.stream.Collectors;
+import java.util.Set;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -29,6 +28,9 @@ import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ChoiceDialog;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.Tooltip;
 import javafx.scene.image.Image;
@@ -36,13 +38,17 @@ import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
-import javafx.scene.layout.TilePane;
 import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import model.Album;
+import model.LibrarySearch;
+import model.ModelEvents;
+import model.ModelListener;
 import model.Photo;
+import model.PhotoQuery;
 import model.PhotoService;
+import model.User;
 
 /**
  * Controller for the photo viewing screen.
@@ -52,17 +58,87 @@ import model.PhotoService;
  */
 public class PhotoViewController implements Initializable {
 
-    @FXML private TilePane photoTilePane;
+    // The items are the row numbers; the photos of a row are looked up in gridPhotos.
+    @FXML private ListView<Integer> photoGrid;
     @FXML private Button uploadPhotoButton;
     @FXML private Button createAlbumButton; // appears only when search results are active
+    @FXML private ProgressBar uploadProgress;
+    @FXML private Button cancelUploadButton;
+    @FXML private Label searchStatus;
 
+    // Null while showing a search of all albums.
     private Album album;
+    // The running or finished search of all albums, if that is what is shown.
+    private LibrarySearch librarySearch;
     // When search is active, these photos are shown.
     private List<Photo> searchResults = null;
+    // The photos shown in the grid, in order: the album's photos or the search results.
+    private final ObservableList<Photo> gridPhotos = FXCollections.observableArrayList();
+    private int columns = 1;
+    // Every row and tile the grid has created; only as many as fit on screen.
+    private final List<PhotoRowCell> rowCells = new ArrayList<>();
+    private final List<PhotoTile> allTiles = new ArrayList<>();
+    
+    // Keeps the grid in step with the album while it is shown.
+    private final ModelListener albumListener = new ModelListener() {
+        @Override
+        public void photoAdded(Album changed, Photo photo) {
+            if (changed == album && searchResults == null) {
+                runOnFxThread(() -> gridPhotos.add(photo));
+            }
+        }
+        
+        @Override
+        public void photoRemoved(Album changed, Photo photo) {
+            if (changed == album) {
+                runOnFxThread(() -> {
+                    if (searchResults != null) {
+                        searchResults.remove(photo);
+                    }
+                    gridPhotos.remove(photo);
+                });
+            }
+        }
+        
+        @Override
+        public void captionChanged(Photo photo) {
+            runOnFxThread(() -> {
+                for (PhotoTile tile : allTiles) {
+                    if (tile.photo == photo) {
+                        tile.showLabels();
+                    }
+                }
+            });
+        }
+    };
+    private Image removeIcon;
+    
+    private static final double TILE_WIDTH = 190;
+    private static final double TILE_GAP = 10;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
-        // No additional initialization needed here.
+        photoGrid.setCellFactory(list -> {
+            PhotoRowCell cell = new PhotoRowCell();
+            rowCells.add(cell);
+            return cell;
+        });
+        photoGrid.setFocusTraversable(false);
+        // Fit as many tiles in a row as the width allows.
+        photoGrid.widthProperty().addListener((obs, oldWidth, newWidth) -> {
+            int fitting = Math.max(1, (int) ((newWidth.doubleValue() - 40 + TILE_GAP) / (TILE_WIDTH + TILE_GAP)));
+            if (fitting != columns) {
+                columns = fitting;
+                photosChanged(0);
+            }
+        });
+        gridPhotos.addListener((ListChangeListener<Photo>) change -> {
+            int from = Integer.MAX_VALUE;
+            while (change.next()) {
+                from = Math.min(from, change.getFrom());
+            }
+            photosChanged(from);
+        });
     }
 
     /**
@@ -74,6 +150,7 @@ public class PhotoViewController implements Initializable {
      */
     public void setAlbum(Album album) throws MalformedURLException {
         this.album = album;
+        ModelEvents.addListener(albumListener);
         updatePhotoDisplay();
         // Hide upload button for the Stock Images album.
         if ("Stock Images".equals(album.getName())) {
@@ -91,15 +168,119 @@ public class PhotoViewController implements Initializable {
     }
 
     /**
-     * Refreshes the photo display in the TilePane.
+     * Shows the photos of all of a user's albums that match a query, instead of an album.
+     * The photos appear in the grid as they are found; each tile names the albums its photo is in.
+     *
+     * @param user the logged-in user
+     * @param query the query
+     */
+    public void searchLibrary(User user, PhotoQuery query) {
+        ModelEvents.addListener(albumListener);
+        if (uploadPhotoButton != null) {
+            uploadPhotoButton.setVisible(false);
+        }
+        startLibrarySearch(user, query);
+    }
+    
+    /**
+     * Starts a search of all albums, replacing the one shown.
+     */
+    private void startLibrarySearch(User user, PhotoQuery query) {
+        stopLibrarySearch();
+        LibrarySearch search = new LibrarySearch(user, query);
+        librarySearch = search;
+        searchResults = new ArrayList<>();
+        gridPhotos.clear();
+        createAlbumButton.setVisible(false);
+        searchStatus.setText("Searching...");
+        // The callbacks come from the searching threads, or from start() itself.
+        search.start(hits -> Platform.runLater(() -> {
+            if (search != librarySearch) {
+                return;
+            }
+            List<Photo> photos = new ArrayList<>(hits.size());
+            for (LibrarySearch.Hit hit : hits) {
+                photos.add(hit.getPhoto());
+            }
+            searchResults.addAll(photos);
+            gridPhotos.addAll(photos);
+            createAlbumButton.setVisible(true);
+            searchStatus.setText("Searching... " + searchResults.size() + " found");
+        }), () -> Platform.runLater(() -> {
+            if (search != librarySearch) {
+                return;
+            }
+            Set<Album> albums = new HashSet<>();
+            for (Photo photo : searchResults) {
+                albums.addAll(search.albumsOf(photo));
+            }
+            searchStatus.setText(searchResults.size() + (searchResults.size() == 1 ? " photo" : " photos")
+                    + " in " + albums.size() + (albums.size() == 1 ? " album" : " albums"));
+            // A photo found early may have turned up in more albums since its tile was shown.
+            for (PhotoTile tile : allTiles) {
+                tile.showLabels();
+            }
+        }));
+    }
+    
+    private void stopLibrarySearch() {
+        if (librarySearch != null) {
+            librarySearch.cancel();
+        }
+    }
+    
+    /**
+     * Refreshes the photo grid.
      * If a search is active, shows the search results; otherwise, shows all photos in the album.
+     * Tiles that keep showing the same photo keep their thumbnail.
      * @throws MalformedURLException 
      */
     private void updatePhotoDisplay() throws MalformedURLException {
-        photoTilePane.getChildren().clear();
-        List<Photo> displayPhotos = (searchResults != null) ? searchResults : album.getPhotos();
-        for (Photo photo : displayPhotos) {
-            addPhotoToTile(photo);
+        gridPhotos.setAll((searchResults != null) ? searchResults : album.getPhotos());
+    }
+    
+    /**
+     * Updates the grid after the photos from the given position on have changed: adds or
+     * removes rows at the end, and lets the visible rows from that position on show their
+     * current photos. Rows above the change and rows off screen are not touched.
+     *
+     * @param from the position of the first changed photo
+     */
+    private void photosChanged(int from) {
+        int rows = (gridPhotos.size() + columns - 1) / columns;
+        ObservableList<Integer> items = photoGrid.getItems();
+        if (items.size() > rows) {
+            items.remove(rows, items.size());
+        }
+        if (items.size() < rows) {
+            List<Integer> added = new ArrayList<>(rows - items.size());
+            for (int i = items.size(); i < rows; i++) {
+                added.add(i);
+            }
+            items.addAll(added);
+        }
+        int firstRow = from / columns;
+        for (PhotoRowCell cell : rowCells) {
+            if (!cell.isEmpty() && cell.getItem() != null && cell.getItem() >= firstRow) {
+                cell.showRow();
+            }
+        }
+    }
+    
+    private static void runOnFxThread(Runnable action) {
+        if (Platform.isFxApplicationThread()) {
+            action.run();
+        } else {
+            Platform.runLater(action);
+        }
+    }
+    
+    /**
+     * Cancels the thumbnails that are still being decoded, e.g. when the user leaves the album.
+     */
+    private void cancelTileRequests() {
+        for (PhotoTile tile : allTiles) {
+            tile.unbind();
         }
     }
 
@@ -119,9 +300,8 @@ public class PhotoViewController implements Initializable {
             stage.setTitle("Edit Photo");
             stage.getIcons().add(new Image(loadDataImage("icon.png")));
             stage.setScene(new Scene(root));
+            // The tile shows the new caption through the album listener.
             stage.showAndWait();
-            
-            updatePhotoDisplay();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -133,7 +313,6 @@ public class PhotoViewController implements Initializable {
      * @param photo the photo to copy
      */
     private void copyPhoto(Photo photo) {
-        String imageUrl = PhotoService.getImageURL(photo.getPath());
         ArrayList<model.Album> albums = AlbumController.currentUser.getAlbums();
         ArrayList<String> albumNames = new ArrayList<>();
         for (model.Album a : albums) {
@@ -144,7 +323,7 @@ public class PhotoViewController implements Initializable {
         dialog.setHeaderText("Select the album to copy the photo to:");
         dialog.setContentText("Album:");
         
-        ImageView iv = new ImageView(new Image(imageUrl));
+        ImageView iv = previewImageView(photo);
         iv.setFitWidth(150);
         iv.setFitHeight(150);
         iv.setPreserveRatio(true);
@@ -178,7 +357,6 @@ public class PhotoViewController implements Initializable {
      * @throws MalformedURLException 
      */
     private void movePhoto(Photo photo) throws MalformedURLException {
-        String imageUrl = PhotoService.getImageURL(photo.getPath());
         ArrayList<model.Album> albums = AlbumController.currentUser.getAlbums();
         ArrayList<String> destinationNames = new ArrayList<>();
         for (model.Album a : albums) {
@@ -195,7 +373,7 @@ public class PhotoViewController implements Initializable {
         dialog.setHeaderText("Select the album to move the photo to:");
         dialog.setContentText("Album:");
         
-        ImageView iv = new ImageView(new Image(imageUrl));
+        ImageView iv = previewImageView(photo);
         iv.setFitWidth(150);
         iv.setFitHeight(150);
         iv.setPreserveRatio(true);
@@ -211,93 +389,198 @@ public class PhotoViewController implements Initializable {
                     .filter(a -> a.getName().equals(chosenAlbumName))
                     .findFirst().orElse(null);
             if (destAlbum != null) {
-                album.getPhotos().remove(photo);
+                album.removePhoto(photo);
                 destAlbum.addPhoto(photo);
-                updatePhotoDisplay();
                 showInfo("Photo Moved", "Photo moved to album: " + chosenAlbumName);
             }
         }
     }
     
     /**
-     * Creates a visual tile for a photo, including thumbnail, labels, and action buttons.
+     * Returns a view of the small picture of a photo shown in the copy and move dialogs.
+     * The picture appears once it has been decoded in the background.
      *
-     * @param photo the photo to represent
-     * @throws MalformedURLException 
+     * @param photo the photo
+     * @return the image view
      */
-    private void addPhotoToTile(Photo photo) throws MalformedURLException {
-        Image image;
-        try {
-            // Use the PhotoService to load the image.
-            image = PhotoService.loadImage(photo.getPath());
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return;
-        }
-        ImageView photoIcon = new ImageView(image);
-        photoIcon.setFitWidth(150);
-        photoIcon.setFitHeight(150);
-        photoIcon.setPreserveRatio(true);
+    private ImageView previewImageView(Photo photo) {
+        ImageView iv = new ImageView();
+        ImageLoader.getInstance().load(photo.getPath(), UploadTask.THUMBNAIL_SIZE, ImageLoader.VISIBLE, iv::setImage);
+        return iv;
+    }
+    
+    /**
+     * A row of the photo grid. The list view only creates rows for the visible part of the
+     * album and reuses them while scrolling; each row reuses its tiles for the photos it is given.
+     */
+    private class PhotoRowCell extends ListCell<Integer> {
+        private final HBox row = new HBox(TILE_GAP);
+        private final List<PhotoTile> tiles = new ArrayList<>();
         
-        // Create a remove button (only if not in the "Stock Images" album).
-        Button removeButton = new Button();
-        removeButton.setStyle("-fx-background-color: transparent;");
-        Image removeIcon = new Image(loadDataImage("remove_icon.png"));
-        ImageView removeIconView = new ImageView(removeIcon);
-        removeIconView.setFitWidth(25);
-        removeIconView.setFitHeight(25);
-        removeButton.setGraphic(removeIconView);
-        Tooltip.install(removeButton, new Tooltip("Remove"));
-        removeButton.setOnAction(e -> {
-            album.getPhotos().remove(photo);
-            try {
-				updatePhotoDisplay();
-			} catch (MalformedURLException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
-			}
-            e.consume();
-        });
+        PhotoRowCell() {
+            setStyle("-fx-background-color: transparent; -fx-padding: 5 10 5 10;");
+        }
         
-        StackPane imageContainer = new StackPane();
-        imageContainer.getChildren().add(photoIcon);
-        if (!"Stock Images".equals(album.getName())) {
-            imageContainer.getChildren().add(removeButton);
-            StackPane.setAlignment(removeButton, Pos.TOP_RIGHT);
-            StackPane.setMargin(removeButton, new Insets(5));
+        @Override
+        protected void updateItem(Integer item, boolean empty) {
+            super.updateItem(item, empty);
+            showRow();
         }
-        imageContainer.setOnMouseClicked(event -> {
-            if (!(event.getTarget() instanceof Button)) {
-                openPhoto(photo, event);
+        
+        /**
+         * Shows the current photos of this cell's row.
+         */
+        void showRow() {
+            Integer item = getItem();
+            int start = (isEmpty() || item == null) ? 0 : item * columns;
+            int count = (isEmpty() || item == null) ? 0 : Math.max(0, Math.min(columns, gridPhotos.size() - start));
+            while (tiles.size() < count) {
+                PhotoTile tile = new PhotoTile();
+                tiles.add(tile);
+                allTiles.add(tile);
             }
-        });
+            for (int i = 0; i < tiles.size(); i++) {
+                if (i < count) {
+                    tiles.get(i).bind(gridPhotos.get(start + i));
+                } else {
+                    tiles.get(i).unbind();
+                }
+            }
+            if (row.getChildren().size() != count) {
+                row.getChildren().setAll(tiles.subList(0, count));
+            }
+            setGraphic(count == 0 ? null : row);
+        }
+    }
+    
+    /**
+     * A visual tile for a photo, including thumbnail, labels, and action buttons. A tile is
+     * created once and then shows whichever photo its row is given. It shows a placeholder
+     * until the photo's thumbnail has been decoded in the background.
+     */
+    private class PhotoTile extends VBox {
+        private final ImageView photoIcon = new ImageView();
+        private final StackPane imageContainer = new StackPane();
+        private final Button removeButton = new Button();
+        private final Label nameLabel = new Label();
+        private final Label captionLabel = new Label();
+        private final Label albumsLabel = new Label();
+        private final HBox buttonsBox;
+        private Photo photo;
+        private ImageLoader.Request request;
         
-        VBox container = new VBox();
-        container.setAlignment(Pos.CENTER);
-        container.setSpacing(5);
-        Label nameLabel = new Label(new File(photo.getPath()).getName());
-        Label captionLabel = new Label(photo.getCaption());
-        if (!"Stock Images".equals(album.getName())) {
+        PhotoTile() {
+            photoIcon.setFitWidth(150);
+            photoIcon.setFitHeight(150);
+            photoIcon.setPreserveRatio(true);
+            
+            // The remove button is only shown if not in the "Stock Images" album.
+            removeButton.setStyle("-fx-background-color: transparent;");
+            ImageView removeIconView = new ImageView(getRemoveIcon());
+            removeIconView.setFitWidth(25);
+            removeIconView.setFitHeight(25);
+            removeButton.setGraphic(removeIconView);
+            Tooltip.install(removeButton, new Tooltip("Remove"));
+            removeButton.setOnAction(e -> {
+                album.removePhoto(photo);
+                e.consume();
+            });
+            
+            imageContainer.setPrefSize(150, 150);
+            imageContainer.getChildren().addAll(photoIcon, removeButton);
+            StackPane.setAlignment(removeButton, Pos.TOP_RIGHT);
+            StackPane.setMargin(removeButton, new Insets(5));
+            imageContainer.setOnMouseClicked(event -> {
+                if (photo != null && !(event.getTarget() instanceof Button)) {
+                    openPhoto(photo, event);
+                }
+            });
+            
             Button editButton = new Button("Edit");
             editButton.setOnAction(e -> editPhoto(photo));
             Button copyButton = new Button("Copy");
             copyButton.setOnAction(e -> copyPhoto(photo));
             Button moveButton = new Button("Move");
             moveButton.setOnAction(e -> {
-				try {
-					movePhoto(photo);
-				} catch (MalformedURLException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				}
-			});
-            HBox buttonsBox = new HBox(10, editButton, copyButton, moveButton);
+                try {
+                    movePhoto(photo);
+                } catch (MalformedURLException e1) {
+                    e1.printStackTrace();
+                }
+            });
+            buttonsBox = new HBox(10, editButton, copyButton, moveButton);
             buttonsBox.setAlignment(Pos.CENTER);
-            container.getChildren().addAll(imageContainer, nameLabel, captionLabel, buttonsBox);
-        } else {
-            container.getChildren().addAll(imageContainer, nameLabel, captionLabel);
+            
+            setAlignment(Pos.CENTER);
+            setSpacing(5);
+            setPrefWidth(TILE_WIDTH);
+            albumsLabel.setWrapText(true);
+            albumsLabel.setMaxWidth(TILE_WIDTH);
+            getChildren().addAll(imageContainer, nameLabel, captionLabel, albumsLabel, buttonsBox);
+        }
+        
+        /**
+         * Shows a photo in this tile.
+         *
+         * @param newPhoto the photo to show
+         */
+        void bind(Photo newPhoto) {
+            boolean editable = album != null && !"Stock Images".equals(album.getName());
+            removeButton.setVisible(editable);
+            buttonsBox.setVisible(editable);
+            buttonsBox.setManaged(editable);
+            if (newPhoto == photo && (request == null || !request.isDone() || photoIcon.getImage() != null)) {
+                return;
+            }
+            unbind();
+            photo = newPhoto;
+            showLabels();
+            imageContainer.setStyle("-fx-background-color: #e0e0e0;");
+            request = ImageLoader.getInstance().load(newPhoto.getPath(), UploadTask.THUMBNAIL_SIZE,
+                    ImageLoader.VISIBLE, loaded -> {
+                        photoIcon.setImage(loaded);
+                        imageContainer.setStyle(null);
+                    });
+        }
+        
+        /**
+         * Shows the name and caption of the tile's photo.
+         */
+        void showLabels() {
+            if (photo != null) {
+                nameLabel.setText(photo.getName());
+                captionLabel.setText(photo.getCaption());
+                boolean library = (librarySearch != null);
+                albumsLabel.setVisible(library);
+                albumsLabel.setManaged(library);
+                if (library) {
+                    List<String> names = new ArrayList<>();
+                    for (Album found : librarySearch.albumsOf(photo)) {
+                        names.add(found.getName());
+                    }
+                    albumsLabel.setText("In: " + String.join(", ", names));
+                }
+            }
+        }
+        
+        /**
+         * Clears this tile and cancels the decoding of its thumbnail.
+         */
+        void unbind() {
+            if (request != null) {
+                request.cancel();
+                request = null;
+            }
+            photo = null;
+            photoIcon.setImage(null);
         }
-        photoTilePane.getChildren().add(container);
+    }
+    
+    private Image getRemoveIcon() {
+        if (removeIcon == null) {
+            removeIcon = new Image(loadDataImage("remove_icon.png"));
+        }
+        return removeIcon;
     }
     
     /**
@@ -313,16 +596,9 @@ public class PhotoViewController implements Initializable {
             PhotoDetailController detailController = loader.getController();
             detailController.setPhoto(photo);
             
-            FileInputStream imageStream = getImageInputStream(photo.getPath());
-            if (imageStream == null) {
-                // Try using PhotoService instead
-                Image image = PhotoService.loadImage(photo.getPath());
-                detailController.setImage(image);
-            } else {
-                detailController.setImage(new Image(imageStream));
-            }
+            detailController.loadImage(photo);
             
-            Scene currentScene = photoTilePane.getScene();
+            Scene currentScene = photoGrid.getScene();
             detailController.setPreviousScene(currentScene);
             Scene detailScene = new Scene(detailRoot, 900, 600);
             Stage stage = (Stage) ((Node) event.getSource()).getScene().getWindow();
@@ -352,56 +628,78 @@ public class PhotoViewController implements Initializable {
         Stage stage = (Stage) ((Node) event.getSource()).getScene().getWindow();
         List<File> files = fileChooser.showOpenMultipleDialog(stage);
         if (files != null && !files.isEmpty() && album != null) {
-            String username = AlbumController.currentUser.getUsername();
-            Path albumDir = Path.of(app.Photos.usersDir, username, album.getName());
-            try {
-                Files.createDirectories(albumDir);
-            } catch (IOException e1) {
-                e1.printStackTrace();
-                return;
-            }
-            for (File file : files) {
-                try {
-                    Path destination = albumDir.resolve(file.getName());
-                    byte[] data = Files.readAllBytes(file.toPath());
-                    Files.write(destination, data);
-                    java.nio.file.attribute.FileTime fileTime = Files.getLastModifiedTime(file.toPath());
-                    Files.setLastModifiedTime(destination, fileTime);
-                    
-                    Photo newPhoto = new Photo(destination.toString());
-                    
-                    TextInputDialog dialog = new TextInputDialog();
-                    dialog.setTitle("Add a Caption");
-                    dialog.setHeaderText("Please enter a caption for the photo (optional):");
-                    dialog.setContentText("Caption:");
-                    
-                    String p = newPhoto.getPath();
-                    String imageUrl = PhotoService.getImageURL(p);
-                    ImageView iv = new ImageView(new Image(imageUrl));
-                    iv.setFitWidth(150);
-                    iv.setFitHeight(150);
-                    iv.setPreserveRatio(true);
-                    dialog.setGraphic(iv);
-                    
-                    Stage dialogStage = (Stage) dialog.getDialogPane().getScene().getWindow();
-                    dialogStage.getIcons().add(new Image(loadDataImage("icon.png")));
-                    
-                    Optional<String> result = dialog.showAndWait();
-                    if (result.isPresent()) {
-                        String caption = result.get().trim();
-                        if (!caption.isEmpty()) {
-                            newPhoto.setCaption(caption);
-                        }
-                    }
-                    album.addPhoto(newPhoto);
-                    addPhotoToTile(newPhoto);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+            Album target = album;
+            UploadTask upload = new UploadTask(files);
+            
+            uploadProgress.progressProperty().bind(upload.progressProperty());
+            setUploadControlsVisible(true);
+            uploadPhotoButton.setDisable(true);
+            cancelUploadButton.setOnAction(e -> upload.cancel());
+            
+            upload.setOnSucceeded(e -> finishUpload(upload, target, false));
+            upload.setOnCancelled(e -> finishUpload(upload, target, true));
+            upload.setOnFailed(e -> {
+                upload.getException().printStackTrace();
+                finishUpload(upload, target, true);
+            });
+            
+            Thread thread = new Thread(upload, "upload");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Adds the photos of a finished or cancelled upload to the album in one batch, then offers
+     * to give all of them the same caption.
+     *
+     * @param upload the upload
+     * @param target the album the photos were uploaded to
+     * @param cancelled whether the upload was stopped before it finished
+     */
+    private void finishUpload(UploadTask upload, Album target, boolean cancelled) {
+        uploadProgress.progressProperty().unbind();
+        setUploadControlsVisible(false);
+        uploadPhotoButton.setDisable(false);
+        
+        // Re-uploaded files are already in the album, and files already in another album are
+        // added as the photo there. The album listener adds the new tiles,
+        // which find their thumbnails in the image cache.
+        List<Photo> uploaded = target.addPhotos(upload.getImported());
+        
+        List<String> failures = upload.getFailures();
+        if (!failures.isEmpty()) {
+            showError("Some photos could not be uploaded:\n" + String.join("\n", failures));
+        }
+        if (uploaded.isEmpty()) {
+            return;
+        }
+        
+        TextInputDialog dialog = new TextInputDialog();
+        dialog.setTitle("Add a Caption");
+        dialog.setHeaderText((cancelled ? "Upload cancelled. " : "") + uploaded.size()
+                + (uploaded.size() == 1 ? " photo was" : " photos were") + " uploaded.\n"
+                + "Enter a caption for all of them (optional):");
+        dialog.setContentText("Caption:");
+        Stage dialogStage = (Stage) dialog.getDialogPane().getScene().getWindow();
+        dialogStage.getIcons().add(new Image(loadDataImage("icon.png")));
+        
+        Optional<String> result = dialog.showAndWait();
+        if (result.isPresent() && !result.get().trim().isEmpty()) {
+            String caption = result.get().trim();
+            for (Photo photo : uploaded) {
+                photo.setCaption(caption);
             }
         }
     }
     
+    private void setUploadControlsVisible(boolean visible) {
+        uploadProgress.setVisible(visible);
+        uploadProgress.setManaged(visible);
+        cancelUploadButton.setVisible(visible);
+        cancelUploadButton.setManaged(visible);
+    }
+    
     /**
      * Handles the action of returning to the album view.
      *
@@ -410,6 +708,9 @@ public class PhotoViewController implements Initializable {
      */
     @FXML
     private void handleBack(ActionEvent event) throws IOException {
+        ModelEvents.removeListener(albumListener);
+        stopLibrarySearch();
+        cancelTileRequests();
         Parent albumView = FXMLLoader.load(getClass().getResource("/view/home.fxml"));
         Scene albumScene = new Scene(albumView, 600, 400);
         Stage stage = (Stage) ((Node) event.getSource()).getScene().getWindow();
@@ -418,8 +719,7 @@ public class PhotoViewController implements Initializable {
     }
     
     /**
-     * Handles photo search based on either a date range or a tag search.
-     * Only one type of search is allowed at a time.
+     * Handles photo search with a query, or with a date range and tags combined.
      *
      * @param event the action event triggered by the Search button
      */
@@ -429,6 +729,11 @@ public class PhotoViewController implements Initializable {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/view/searchDialog.fxml"));
             Parent root = loader.load();
             SearchDialogController controller = loader.getController();
+            if (album != null) {
+                controller.setAlbum(album);
+            } else {
+                controller.setUser(AlbumController.currentUser);
+            }
 
             Stage stage = new Stage();
             stage.setTitle("Search Photos");
@@ -439,71 +744,12 @@ public class PhotoViewController implements Initializable {
             Optional<SearchDialogController.SearchCriteria> optionalCriteria = controller.getCriteria();
             if (optionalCriteria.isPresent()) {
                 SearchDialogController.SearchCriteria criteria = optionalCriteria.get();
-                List<Photo> filtered = new ArrayList<>(album.getPhotos());
-                // CASE 1: Date Search (if both start and end dates are provided and tag fields are empty)
-                if (criteria.startDate != null && criteria.endDate != null
-                    && criteria.tagType1.isEmpty() && criteria.tagValue1.isEmpty()) {
-                    filtered = filtered.stream()
-                            .filter(photo -> {
-                                LocalDate photoDate = photo.getDate().toInstant()
-                                        .atZone(java.time.ZoneId.systemDefault())
-                                        .toLocalDate();
-                                return !photoDate.isBefore(criteria.startDate)
-                                        && !photoDate.isAfter(criteria.endDate);
-                            })
-                            .collect(Collectors.toList());
-                }
-                // CASE 2: Tag Search
-                else if (!criteria.tagType1.isEmpty() && !criteria.tagValue1.isEmpty()) {
-                    // If only one tag pair is provided, or the second pair/operator is incomplete:
-                    if (criteria.tagType2.isEmpty() || criteria.tagValue2.isEmpty() || criteria.operator.isEmpty()){
-                        filtered = filtered.stream()
-                                .filter(photo ->
-                                    photo.getTags().stream()
-                                        .anyMatch(tag ->
-                                            tag.getTagType().equalsIgnoreCase(criteria.tagType1) &&
-                                            tag.getTagValue().equalsIgnoreCase(criteria.tagValue1)
-                                        )
-                                )
-                                .collect(Collectors.toList());
-                    }
-                    // Otherwise, use two tag pairs with an operator.
-                    else {
-                        if (criteria.operator.equalsIgnoreCase("AND")) {
-                            filtered = filtered.stream()
-                                    .filter(photo ->
-                                        photo.getTags().stream().anyMatch(tag ->
-                                            tag.getTagType().equalsIgnoreCase(criteria.tagType1) &&
-                                            tag.getTagValue().equalsIgnoreCase(criteria.tagValue1)
-                                        )
-                                        &&
-                                        photo.getTags().stream().anyMatch(tag ->
-                                            tag.getTagType().equalsIgnoreCase(criteria.tagType2) &&
-                                            tag.getTagValue().equalsIgnoreCase(criteria.tagValue2)
-                                        )
-                                    )
-                                    .collect(Collectors.toList());
-                        } else if (criteria.operator.equalsIgnoreCase("OR")) {
-                            filtered = filtered.stream()
-                                    .filter(photo ->
-                                        photo.getTags().stream().anyMatch(tag ->
-                                            (tag.getTagType().equalsIgnoreCase(criteria.tagType1) &&
-                                             tag.getTagValue().equalsIgnoreCase(criteria.tagValue1))
-                                            ||
-                                            (tag.getTagType().equalsIgnoreCase(criteria.tagType2) &&
-                                             tag.getTagValue().equalsIgnoreCase(criteria.tagValue2))
-                                        )
-                                    )
-                                    .collect(Collectors.toList());
-                        } else {
-                            showError("Invalid operator. Use either 'AND' or 'OR'.");
-                            return;
-                        }
-                    }
-                } else {
-                    showError("Please enter either a complete date range or complete tag search criteria.");
+                if (album == null) {
+                    startLibrarySearch(AlbumController.currentUser, criteria.query);
                     return;
                 }
+                // The query is answered from the bitmaps of the user's tag index.
+                List<Photo> filtered = criteria.query.search(album);
                 // Set the search results and update display.
                 searchResults = filtered;
                 updatePhotoDisplay();
@@ -524,6 +770,15 @@ public class PhotoViewController implements Initializable {
      */
     @FXML
     private void handleClearSearch(ActionEvent event) throws MalformedURLException {
+        if (album == null) {
+            // There is no album to go back to; stop and empty the search of all albums.
+            stopLibrarySearch();
+            searchResults = new ArrayList<>();
+            gridPhotos.clear();
+            searchStatus.setText("");
+            createAlbumButton.setVisible(false);
+            return;
+        }
         searchResults = null;
         updatePhotoDisplay();
         createAlbumButton.setVisible(false);
@@ -564,8 +819,10 @@ public class PhotoViewController implements Initializable {
                 return;
             }
             Album newAlbum = new Album(newAlbumName);
-            newAlbum.getPhotos().addAll(searchResults);
-            AlbumController.currentUser.getAlbums().add(newAlbum);
+            for (Photo photo : searchResults) {
+                newAlbum.addPhoto(photo);
+            }
+            AlbumController.currentUser.addAlbum(newAlbum);
             showInfo("Album Created", "Album created successfully: " + newAlbumName);
         }
     }
@@ -581,8 +838,8 @@ public class PhotoViewController implements Initializable {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/view/slideshow.fxml"));
             Parent root = loader.load();
             SlideshowController controller = loader.getController();
-            controller.setPreviousScene(this.photoTilePane.getScene(), (String)((Stage)this.photoTilePane.getScene().getWindow()).getTitle());
-            controller.setPhotos(album.getPhotos());
+            controller.setPreviousScene(this.photoGrid.getScene(), (String)((Stage)this.photoGrid.getScene().getWindow()).getTitle());
+            controller.setPhotos((album != null) ? album.getPhotos() : new ArrayList<>(gridPhotos));
             
             // Get the current stage instead of creating a new one
             Stage currentStage = (Stage) ((javafx.scene.Node) event.getSource()).getScene().getWindow();
@@ -596,62 +853,6 @@ public class PhotoViewController implements Initializable {
         }
     }
     
-    /**
-     * Helper method to obtain a FileInputStream for an image given its path.
-     * If the path starts with "file:", it is treated as a file URL.
-     *
-     * @param path the image path
-     * @return a FileInputStream for the image
-     */
-    private FileInputStream getImageInputStream(String path) {
-        try {
-            if (path.startsWith("file:")) {
-                // Just extract the actual file path from the file: URL
-                String filePath = path.substring(5); // Remove "file:"
-                
-                // Handle Windows paths that start with a drive letter
-                if (filePath.startsWith("/") && filePath.length() > 2 && filePath.charAt(2) == ':') {
-                    filePath = filePath.substring(1); // Remove leading slash for Windows paths
-                }
-                
-                File file = new File(filePath);
-                if (file.exists()) {
-                    return new FileInputStream(file);
-                } else {
-                    System.err.println("File not found: " + file.getAbsolutePath());
-                    return null;
-                }
-            } else if (path.startsWith("/")) {
-                // Handle resource paths
-                try {
-                    URL resourceUrl = getClass().getResource(path);
-                    if (resourceUrl != null) {
-                        return new FileInputStream(new File(resourceUrl.toURI()));
-                    } else {
-                        System.err.println("Resource not found: " + path);
-                        return null;
-                    }
-                } catch (URISyntaxException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            } else {
-                // Handle regular file paths
-                File file = new File(path);
-                if (file.exists()) {
-                    return new FileInputStream(file);
-                } else {
-                    System.err.println("File not found: " + file.getAbsolutePath());
-                    return null;
-                }
-            }
-        } catch (FileNotFoundException e) {
-            System.err.println("Error opening file: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        }
-    }
-
     /**
      * Helper method to get a URL string for an image.
      *
@@ -1,12 +1,20 @@
 package view;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.ToIntFunction;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
+import javafx.scene.control.Alert;
 import javafx.scene.control.DatePicker;
+import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
 import javafx.stage.Stage;
+import model.Album;
+import model.PhotoQuery;
+import model.User;
 
 /**
  * Controller for the search dialog.
@@ -14,6 +22,8 @@ import javafx.stage.Stage;
  */
 public class SearchDialogController {
 
+    @FXML 
+    private TextField queryField;
     @FXML 
     private DatePicker startDatePicker;
     @FXML 
@@ -28,8 +38,12 @@ public class SearchDialogController {
     private TextField tagValueField2;
     @FXML 
     private TextField operatorField;
+    @FXML 
+    private Label matchCountLabel;
     
     private SearchCriteria criteria;
+    // Counts the photos a query matches in the photos searched; null if not known.
+    private ToIntFunction<PhotoQuery> counter;
     
     /**
      * Represents the search criteria provided by the user.
@@ -42,15 +56,71 @@ public class SearchDialogController {
         public String tagType2;
         public String tagValue2 ;
         public String operator;
+        /** The search to run: the query typed in, or the other fields combined. */
+        public PhotoQuery query;
+    }
+    
+    @FXML
+    private void initialize() {
+        queryField.textProperty().addListener((obs, oldValue, newValue) -> updateMatchCount());
+        startDatePicker.valueProperty().addListener((obs, oldValue, newValue) -> updateMatchCount());
+        endDatePicker.valueProperty().addListener((obs, oldValue, newValue) -> updateMatchCount());
+        for (TextField field : List.of(tagTypeField1, tagValueField1, tagTypeField2, tagValueField2, operatorField)) {
+            field.textProperty().addListener((obs, oldValue, newValue) -> updateMatchCount());
+        }
+    }
+    
+    /**
+     * Shows, as the user types, how many photos of an album the search would find.
+     *
+     * @param album the album to be searched
+     */
+    public void setAlbum(Album album) {
+        counter = query -> query.count(album);
+        updateMatchCount();
+    }
+    
+    /**
+     * Shows, as the user types, how many photos in all of a user's albums the search would find.
+     *
+     * @param user the loaded user whose albums are to be searched
+     */
+    public void setUser(User user) {
+        counter = query -> query.count(user);
+        updateMatchCount();
+    }
+    
+    /**
+     * Counts the photos the current input matches. The count comes from the sizes of the
+     * index bitmaps, so it is cheap enough to update on every key stroke. Nothing is shown
+     * while the input is empty or not a valid query.
+     */
+    private void updateMatchCount() {
+        if (counter == null) {
+            return;
+        }
+        String text = queryField.getText().trim();
+        try {
+            PhotoQuery query = text.isEmpty()
+                    ? combine(startDatePicker.getValue(), endDatePicker.getValue(),
+                            tagTypeField1.getText().trim(), tagValueField1.getText().trim(),
+                            tagTypeField2.getText().trim(), tagValueField2.getText().trim(),
+                            operatorField.getText().trim())
+                    : PhotoQuery.parse(text);
+            int count = counter.applyAsInt(query);
+            matchCountLabel.setText(count + (count == 1 ? " matching photo" : " matching photos"));
+        } catch (IllegalArgumentException e) {
+            matchCountLabel.setText("");
+        }
     }
     
     /**
      * Called when the user clicks the Search button.
      * <p>
-     * This method retrieves the values from the date pickers and text fields. It then validates
-     * the criteria so that only one type of search is allowed. In this implementation, if the user
-     * provides both a date range and tag search criteria, the tag criteria are cleared (date range
-     * takes precedence).
+     * If a query was typed in, it is parsed and used as is. Otherwise the date range and the
+     * tags are combined into one query: the photos must be in the date range and carry the
+     * tags, joined by the operator (AND if none is given). Either end of the date range may be
+     * left empty. If the input is not valid, an error is shown and the dialog stays open.
      * </p>
      *
      * @param event the ActionEvent triggered by clicking the Search button.
@@ -58,6 +128,7 @@ public class SearchDialogController {
     @FXML
     private void handleSearch(ActionEvent event) {
         // Retrieve values from UI controls.
+        String text = queryField.getText().trim();
         LocalDate start = startDatePicker.getValue();
         LocalDate end = endDatePicker.getValue();
         String tagType1 = tagTypeField1.getText().trim();
@@ -66,15 +137,14 @@ public class SearchDialogController {
         String tagValue2 = tagValueField2.getText().trim();
         String operator = operatorField.getText().trim(); 
         
-        // Validation: Allow either date range OR tag search but not both.
-        if (!tagType1.isEmpty() || !tagValue1.isEmpty()) {
-            // Option 1: Clear tag fields so that only the date range remains.
-            start = null;
-            end = null;
-            // Option 2: Alternatively, you could show an error alert and not close the dialog.
-            // For example:
-            // showError("Please enter either a date range or tag search criteria, not both.");
-            // return;
+        PhotoQuery query;
+        try {
+            query = text.isEmpty()
+                    ? combine(start, end, tagType1, tagValue1, tagType2, tagValue2, operator)
+                    : PhotoQuery.parse(text);
+        } catch (IllegalArgumentException e) {
+            showError(e.getMessage());
+            return;
         }
         
         // Create and set the criteria.
@@ -86,12 +156,63 @@ public class SearchDialogController {
         criteria.tagType2 = tagType2;
         criteria.tagValue2 = tagValue2;
         criteria.operator = operator;
+        criteria.query = query;
         
         // Close the dialog.
         Stage stage = (Stage) startDatePicker.getScene().getWindow();
         stage.close();
     }
     
+    /**
+     * Builds a query from the date and tag fields.
+     *
+     * @throws IllegalArgumentException if the fields are empty, a tag is incomplete or the operator is unknown
+     */
+    private static PhotoQuery combine(LocalDate start, LocalDate end, String tagType1, String tagValue1,
+            String tagType2, String tagValue2, String operator) {
+        List<PhotoQuery> parts = new ArrayList<>();
+        if (start != null || end != null) {
+            parts.add(PhotoQuery.taken(start, end));
+        }
+        PhotoQuery first = tag(tagType1, tagValue1);
+        PhotoQuery second = tag(tagType2, tagValue2);
+        if (first != null && second != null) {
+            if (operator.isEmpty() || operator.equalsIgnoreCase("AND")) {
+                parts.add(PhotoQuery.and(first, second));
+            } else if (operator.equalsIgnoreCase("OR")) {
+                parts.add(PhotoQuery.or(first, second));
+            } else {
+                throw new IllegalArgumentException("Invalid operator. Use either 'AND' or 'OR'.");
+            }
+        } else if (first != null || second != null) {
+            parts.add(first != null ? first : second);
+        }
+        if (parts.isEmpty()) {
+            throw new IllegalArgumentException("Please enter a query, a date range or a tag.");
+        }
+        return PhotoQuery.and(parts.toArray(new PhotoQuery[0]));
+    }
+    
+    // A query for one tag, or null if both fields are empty.
+    private static PhotoQuery tag(String tagType, String tagValue) {
+        if (tagType.isEmpty() && tagValue.isEmpty()) {
+            return null;
+        }
+        if (tagType.isEmpty() || tagValue.isEmpty()) {
+            throw new IllegalArgumentException("Please enter both the type and the value of each tag.");
+        }
+        return PhotoQuery.tag(tagType, tagValue);
+    }
+    
+    private void showError(String message) {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setTitle("Error");
+        alert.setHeaderText(null);
+        alert.setContentText(message);
+        alert.initOwner(startDatePicker.getScene().getWindow());
+        alert.showAndWait();
+    }
+    
     /**
      * Called when the user clicks the Cancel button.
      * <p>
@@ -0,0 +1,200 @@
+package view;
+
+import java.util.List;
+import java.util.function.Consumer;
+import javafx.scene.image.Image;
+import model.Photo;
+import model.PhotoService;
+
+/**
+ * Keeps the photos around the current slide decoded, so moving to the next or previous
+ * slide shows a ready image.
+ * <p>
+ * The prefetcher holds a ring buffer of 2 &times; radius + 1 slots: the current slide and the
+ * radius slides on either side of it. Images are decoded at the size of the slideshow pane,
+ * not at full resolution, so the memory used is bounded by the number of slots and the size of
+ * the window. When the user moves, the slide that falls out of the window is dropped and the
+ * slot is refilled on the side the user is moving towards; slides ahead are decoded before
+ * slides behind. When the pane is resized, the slides are decoded again at the new size.
+ * </p>
+ * <p>
+ * Positions are counted without wrapping around, so that moving past the end of the album
+ * keeps the slots of the slides around the current one apart; the photo at a position is
+ * the one at the position modulo the number of photos. All methods must be called on the
+ * JavaFX thread.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class SlidePrefetcher {
+
+    /** The number of slides kept decoded on each side of the current one, unless set with {@code photos.slideshow.prefetch}. */
+    public static final int DEFAULT_RADIUS = 2;
+
+    private final List<Photo> photos;
+    private final int radius;
+    private final Slot[] slots;
+    private final Consumer<Image> onCurrentReady;
+    private long current;
+    private double width;
+    private double height;
+
+    private static final class Slot {
+        long position = Long.MIN_VALUE;
+        Image image;
+        double width;
+        double height;
+        ImageLoader.Request request;
+    }
+
+    /**
+     * Creates a prefetcher for the given slides.
+     *
+     * @param photos the photos of the slideshow
+     * @param radius the number of slides to keep decoded on each side of the current one
+     * @param onCurrentReady called with the current slide's image whenever it has been decoded
+     *                       after it was made current, e.g. at a new size
+     */
+    public SlidePrefetcher(List<Photo> photos, int radius, Consumer<Image> onCurrentReady) {
+        this.photos = photos;
+        this.onCurrentReady = onCurrentReady;
+        // With few photos, a larger window would hold the same photo twice.
+        this.radius = Math.max(0, Math.min(radius, (photos.size() - 1) / 2));
+        this.slots = new Slot[2 * this.radius + 1];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Returns the photo at a position.
+     *
+     * @param position a position, which may lie before the first or after the last photo
+     * @return the photo
+     */
+    public Photo photoAt(long position) {
+        return photos.get((int) Math.floorMod(position, (long) photos.size()));
+    }
+
+    /**
+     * Sets the size the slides are shown at. Slides that were decoded at a noticeably
+     * different size are decoded again; until then, the old images are kept.
+     *
+     * @param newWidth the width of the slideshow pane, in pixels
+     * @param newHeight the height of the slideshow pane, in pixels
+     */
+    public void setViewport(double newWidth, double newHeight) {
+        if (newWidth <= 0 || newHeight <= 0 || (newWidth == width && newHeight == height)) {
+            return;
+        }
+        width = newWidth;
+        height = newHeight;
+        // Decodes still waiting or running are for the old size.
+        for (Slot slot : slots) {
+            if (slot.request != null && !slot.request.isDone()) {
+                slot.request.cancel();
+            }
+            slot.request = null;
+        }
+        fill(1);
+    }
+
+    /**
+     * Makes a position the current slide and refills the buffer around it. If the slide is not
+     * decoded yet, its image is passed to the callback given to the constructor once it is.
+     *
+     * @param position the new current position
+     * @return the slide's image if it is ready, otherwise null
+     */
+    public Image moveTo(long position) {
+        int direction = (position >= current) ? 1 : -1;
+        current = position;
+        fill(direction);
+        return slotFor(position).image;
+    }
+
+    /**
+     * Returns the image of a slide in the buffer, or null if it is not decoded yet.
+     *
+     * @param position the position of the slide
+     * @return the image, or null
+     */
+    public Image peek(long position) {
+        Slot slot = slotFor(position);
+        return (slot.position == position) ? slot.image : null;
+    }
+
+    /**
+     * Cancels every pending decode and drops the images.
+     */
+    public void close() {
+        for (Slot slot : slots) {
+            if (slot.request != null) {
+                slot.request.cancel();
+            }
+            slot.request = null;
+            slot.image = null;
+            slot.position = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Requests the slides around the current one that are missing or decoded at the wrong size,
+     * nearest first and the side of travel before the other.
+     */
+    private void fill(int direction) {
+        if (photos.isEmpty() || width <= 0 || height <= 0) {
+            return;
+        }
+        for (int distance = 0; distance <= radius; distance++) {
+            request(current + direction * distance, 2 * distance);
+            if (distance > 0) {
+                request(current - direction * distance, 2 * distance + 1);
+            }
+        }
+    }
+
+    private void request(long position, int priority) {
+        Slot slot = slotFor(position);
+        if (slot.position != position) {
+            // The slot held a slide that is now out of the window.
+            if (slot.request != null) {
+                slot.request.cancel();
+            }
+            slot.position = position;
+            slot.image = null;
+            slot.request = null;
+        }
+        if (slot.image != null && fits(slot)) {
+            return;
+        }
+        if (slot.request != null && !slot.request.isDone()) {
+            slot.request.setPriority(priority);
+            return;
+        }
+        double decodeWidth = width;
+        double decodeHeight = height;
+        String path = photoAt(position).getPath();
+        slot.request = ImageLoader.getInstance().submit(path,
+                () -> PhotoService.loadImage(path, decodeWidth, decodeHeight), priority, image -> {
+                    if (slot.position != position) {
+                        return;
+                    }
+                    slot.image = image;
+                    slot.width = decodeWidth;
+                    slot.height = decodeHeight;
+                    if (position == current) {
+                        onCurrentReady.accept(image);
+                    }
+                });
+    }
+
+    // Whether a slot's image was decoded at about the current size; small resizes are not worth a decode.
+    private boolean fits(Slot slot) {
+        return Math.abs(slot.width - width) <= width * 0.1 && Math.abs(slot.height - height) <= height * 0.1;
+    }
+
+    private Slot slotFor(long position) {
+        return slots[(int) Math.floorMod(position, (long) slots.length)];
+    }
+}
@@ -3,20 +3,29 @@ package view;
 import java.net.URL;
 import java.util.List;
 import java.util.ResourceBundle;
+import javafx.animation.PauseTransition;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.Spinner;
+import javafx.scene.control.SpinnerValueFactory;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.StackPane;
 import javafx.stage.Stage;
+import javafx.stage.Window;
+import javafx.util.Duration;
 import model.Photo;
 
 /**
- * Controller for the manual slideshow.
- * Displays one photo at a time and allows navigation through the list.
- * The ImageView is bound to the parent container so the image resizes automatically.
+ * Controller for the slideshow.
+ * Displays one photo at a time and allows navigation through the list, by hand or
+ * automatically at a set interval. The automatic show pauses while the window is hidden
+ * or minimized. The ImageView is bound to the parent container so the image resizes automatically.
  * 
  * @author Elvis Vasquez
  */
@@ -28,10 +37,30 @@ public class SlideshowController implements Initializable {
     @FXML
     private StackPane photoDisplayPane;
     
+    @FXML
+    private Button playButton;
+    
+    @FXML
+    private Spinner<Integer> intervalSpinner;
+    
+    @FXML
+    private CheckBox loopCheckBox;
+    
+    @FXML
+    private Label statusLabel;
+    
     // List of photos in the slideshow.
     private List<Photo> photos;
-    // Current index in the photo list.
-    private int currentIndex = 0;
+    // Current position in the photo list; counts on past the ends, see SlidePrefetcher.
+    private long position = 0;
+    // Keeps the slides around the current one decoded at the size of the pane.
+    private SlidePrefetcher prefetcher;
+    // Waits for the window to stop resizing before the slides are decoded at the new size.
+    private final PauseTransition resizeDelay = new PauseTransition(Duration.millis(150));
+    // Advances the automatic show; playing is what the user asked for, the timer may be paused.
+    private SlideshowTimer timer;
+    private boolean playing;
+    private Window watchedWindow;
     
     private Scene previousScene;
     private String previousTitle;
@@ -55,25 +84,48 @@ public class SlideshowController implements Initializable {
      */
     public void setPhotos(List<Photo> photos) {
         this.photos = photos;
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
         if (photos != null && !photos.isEmpty()) {
-            currentIndex = 0;
-            showPhoto(currentIndex);
+            int radius = Integer.getInteger("photos.slideshow.prefetch", SlidePrefetcher.DEFAULT_RADIUS);
+            prefetcher = new SlidePrefetcher(photos, radius, image -> {
+                photoView.setImage(image);
+                timer.slideShown();
+            });
+            updateViewport();
+            position = 0;
+            showPhoto(position);
         }
     }
     
     /**
-     * Displays the photo at the given index.
-     * Uses the helper method from PhotoViewController to generate a proper URL.
+     * Displays the photo at the given position.
+     * The image is normally decoded already; if not, the photo that was shown stays until it is ready.
      *
-     * @param index the index of the photo in the list to display
+     * @param position the position of the photo to display
      */
-    private void showPhoto(int index) {
+    private void showPhoto(long position) {
         if (photos == null || photos.isEmpty()) return;
-        Photo photo = photos.get(index);
-        // Get the image URL using the helper method.
-        String url = PhotoViewController.getImageURL(photo.getPath());
-        Image image = new Image(url, true);
-        photoView.setImage(image);
+        Image image = prefetcher.moveTo(position);
+        if (image != null) {
+            photoView.setImage(image);
+        }
+    }
+    
+    /**
+     * Tells the prefetcher the size the slides are shown at, in device pixels.
+     */
+    private void updateViewport() {
+        if (prefetcher == null) {
+            return;
+        }
+        double scale = 1;
+        if (photoDisplayPane.getScene() != null && photoDisplayPane.getScene().getWindow() != null) {
+            scale = photoDisplayPane.getScene().getWindow().getOutputScaleX();
+        }
+        prefetcher.setViewport(Math.ceil(photoDisplayPane.getWidth() * scale),
+                Math.ceil(photoDisplayPane.getHeight() * scale));
     }
     
     /**
@@ -84,8 +136,9 @@ public class SlideshowController implements Initializable {
     @FXML
     private void handlePrevious(ActionEvent event) {
         if (photos != null && !photos.isEmpty()) {
-            currentIndex = (currentIndex - 1 + photos.size()) % photos.size();
-            showPhoto(currentIndex);
+            position--;
+            showPhoto(position);
+            timer.restart();
         }
     }
     
@@ -97,8 +150,61 @@ public class SlideshowController implements Initializable {
     @FXML
     private void handleNext(ActionEvent event) {
         if (photos != null && !photos.isEmpty()) {
-            currentIndex = (currentIndex + 1) % photos.size();
-            showPhoto(currentIndex);
+            position++;
+            showPhoto(position);
+            timer.restart();
+        }
+    }
+    
+    /**
+     * Starts or stops the automatic slideshow.
+     *
+     * @param event the action event triggered by the play button
+     */
+    @FXML
+    private void handlePlay(ActionEvent event) {
+        if (photos == null || photos.isEmpty()) {
+            return;
+        }
+        playing = !playing;
+        playButton.setText(playing ? "Pause" : "Play");
+        if (playing) {
+            watchWindow();
+        }
+        updateTimer();
+    }
+    
+    /**
+     * Runs the timer while the user wants the show to play and the slideshow can be seen.
+     */
+    private void updateTimer() {
+        boolean visible = watchedWindow != null && watchedWindow.isShowing()
+                && watchedWindow.getScene() == photoDisplayPane.getScene()
+                && !(watchedWindow instanceof Stage && ((Stage) watchedWindow).isIconified());
+        if (playing && visible) {
+            if (!timer.isRunning()) {
+                timer.start();
+                statusLabel.setText("");
+            }
+        } else if (timer.isRunning()) {
+            timer.stop();
+            statusLabel.setText(timer.getMissedDeadlines() + " of " + timer.getSlidesShown() + " slides late");
+        }
+    }
+    
+    /**
+     * Pauses the show while the window is hidden, minimized or shows another scene.
+     */
+    private void watchWindow() {
+        Window window = (photoDisplayPane.getScene() == null) ? null : photoDisplayPane.getScene().getWindow();
+        if (window == null || window == watchedWindow) {
+            return;
+        }
+        watchedWindow = window;
+        window.showingProperty().addListener((obs, oldValue, newValue) -> updateTimer());
+        window.sceneProperty().addListener((obs, oldValue, newValue) -> updateTimer());
+        if (window instanceof Stage) {
+            ((Stage) window).iconifiedProperty().addListener((obs, oldValue, newValue) -> updateTimer());
         }
     }
     
@@ -109,6 +215,12 @@ public class SlideshowController implements Initializable {
      */
     @FXML
     private void handleExit(ActionEvent event) {
+        playing = false;
+        timer.stop();
+        resizeDelay.stop();
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
         Stage stage = (Stage) photoDisplayPane.getScene().getWindow();
         
         if (previousScene != null) {
@@ -133,5 +245,36 @@ public class SlideshowController implements Initializable {
         photoView.fitWidthProperty().bind(photoDisplayPane.widthProperty());
         photoView.fitHeightProperty().bind(photoDisplayPane.heightProperty());
         photoView.setPreserveRatio(true);
+        
+        // The automatic show; the interval is in seconds and can be changed while it runs.
+        int seconds = Math.max(1, Integer.getInteger("photos.slideshow.interval", 5));
+        intervalSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 3600, seconds));
+        intervalSpinner.setEditable(true);
+        timer = new SlideshowTimer(new SlideshowTimer.Slides() {
+            @Override
+            public boolean hasNext() {
+                return loopCheckBox.isSelected() || Math.floorMod(position + 1, (long) photos.size()) != 0;
+            }
+            
+            @Override
+            public boolean showNext() {
+                position++;
+                Image image = prefetcher.moveTo(position);
+                if (image != null) {
+                    photoView.setImage(image);
+                }
+                return image != null;
+            }
+        }, Duration.seconds(seconds));
+        intervalSpinner.valueProperty().addListener((obs, oldValue, newValue) -> {
+            if (newValue != null) {
+                timer.setInterval(Duration.seconds(newValue));
+            }
+        });
+        
+        // Decode the slides again when the window size settles.
+        resizeDelay.setOnFinished(e -> updateViewport());
+        photoDisplayPane.widthProperty().addListener((obs, oldValue, newValue) -> resizeDelay.playFromStart());
+        photoDisplayPane.heightProperty().addListener((obs, oldValue, newValue) -> resizeDelay.playFromStart());
     }
 }
@@ -0,0 +1,213 @@
+package view;
+
+import javafx.animation.PauseTransition;
+import javafx.util.Duration;
+
+/**
+ * Advances an automatic slideshow at a fixed interval and measures how well it keeps time.
+ * <p>
+ * Every slide has a deadline, one interval after the previous one; the timer is set for the
+ * deadline itself rather than for an interval after the last slide appeared, so small delays
+ * do not add up. The slides are decoded ahead by the {@link SlidePrefetcher}. A deadline is
+ * missed if the slide was not decoded in time or appeared noticeably late; the timer counts
+ * missed deadlines and how late the slides were. If the show falls more than an interval
+ * behind, it continues from the current time instead of rushing through the slides.
+ * </p>
+ * <p>
+ * All methods must be called on the JavaFX thread.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public final class SlideshowTimer {
+
+    /** A slide that appears later than this after its deadline counts as missed. */
+    public static final long LATE_NANOS = 50_000_000L;
+
+    /**
+     * The slideshow driven by the timer.
+     */
+    public interface Slides {
+        /**
+         * Returns whether there is a slide after the current one.
+         *
+         * @return false if the show should stop
+         */
+        boolean hasNext();
+
+        /**
+         * Moves to the next slide.
+         *
+         * @return true if its image was shown, false if it is still being decoded; in that case
+         *         {@link SlideshowTimer#slideShown()} must be called once it is shown
+         */
+        boolean showNext();
+    }
+
+    private final Slides slides;
+    private final PauseTransition tick = new PauseTransition();
+    private long intervalNanos;
+    private long deadline;
+    private long waitingSince;
+    private boolean running;
+
+    private long shown;
+    private long missed;
+    private long maxLateNanos;
+    private long totalLateNanos;
+
+    /**
+     * Creates a stopped timer.
+     *
+     * @param slides the slideshow to advance
+     * @param interval the time each slide is shown
+     */
+    public SlideshowTimer(Slides slides, Duration interval) {
+        this.slides = slides;
+        setInterval(interval);
+        tick.setOnFinished(e -> onDeadline());
+    }
+
+    /**
+     * Changes the time each slide is shown. Takes effect from the next slide.
+     *
+     * @param interval the new interval
+     */
+    public void setInterval(Duration interval) {
+        intervalNanos = (long) (interval.toMillis() * 1_000_000L);
+    }
+
+    /**
+     * Starts or resumes the show; the next slide is due one interval from now.
+     */
+    public void start() {
+        running = true;
+        deadline = System.nanoTime() + intervalNanos;
+        schedule();
+    }
+
+    /**
+     * Stops the show. The statistics are kept.
+     */
+    public void stop() {
+        running = false;
+        waitingSince = 0;
+        tick.stop();
+    }
+
+    /**
+     * Starts the wait for the next slide again, e.g. after the user moved by hand.
+     */
+    public void restart() {
+        if (running) {
+            stop();
+            start();
+        }
+    }
+
+    /**
+     * Returns whether the show is running.
+     *
+     * @return true if running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Reports that a slide that was not ready at its deadline is now shown.
+     */
+    public void slideShown() {
+        if (waitingSince != 0) {
+            recordLateness(System.nanoTime() - waitingSince);
+            waitingSince = 0;
+        }
+    }
+
+    private void schedule() {
+        long delay = Math.max(0, deadline - System.nanoTime());
+        tick.setDuration(Duration.millis(delay / 1_000_000.0));
+        tick.playFromStart();
+    }
+
+    private void onDeadline() {
+        if (!running) {
+            return;
+        }
+        if (!slides.hasNext()) {
+            stop();
+            return;
+        }
+        long due = deadline;
+        shown++;
+        if (waitingSince != 0) {
+            // The previous slide never arrived; it is counted as missed already.
+            waitingSince = 0;
+        }
+        if (slides.showNext()) {
+            long late = System.nanoTime() - due;
+            if (late > LATE_NANOS) {
+                missed++;
+            }
+            recordLateness(late);
+        } else {
+            missed++;
+            waitingSince = due;
+        }
+        deadline = due + intervalNanos;
+        long now = System.nanoTime();
+        if (deadline < now) {
+            deadline = now + intervalNanos;
+        }
+        schedule();
+    }
+
+    private void recordLateness(long lateNanos) {
+        if (lateNanos > 0) {
+            totalLateNanos += lateNanos;
+            maxLateNanos = Math.max(maxLateNanos, lateNanos);
+        }
+    }
+
+    /**
+     * Returns the number of slides the timer has moved to.
+     *
+     * @return the number of slides
+     */
+    public long getSlidesShown() {
+        return shown;
+    }
+
+    /**
+     * Returns the number of slides that were not shown on time.
+     *
+     * @return the number of missed deadlines
+     */
+    public long getMissedDeadlines() {
+        return missed;
+    }
+
+    /**
+     * Returns how late the latest slide was.
+     *
+     * @return the largest delay, in milliseconds
+     */
+    public double getMaxLateMillis() {
+        return maxLateNanos / 1_000_000.0;
+    }
+
+    /**
+     * Returns how late the slides were on average.
+     *
+     * @return the average delay, in milliseconds
+     */
+    public double getAverageLateMillis() {
+        return (shown == 0) ? 0 : totalLateNanos / 1_000_000.0 / shown;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Slideshow: %d slides, %d missed deadlines, %.1f ms late on average, %.1f ms at most",
+                shown, missed, getAverageLateMillis(), getMaxLateMillis());
+    }
+}
@@ -0,0 +1,173 @@
+package view;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javafx.geometry.Bounds;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Pane;
+import model.PhotoService;
+import util.RegionDecoder;
+
+/**
+ * Shows a zoomed-in photo as tiles decoded from the original, laid over a smaller image of it.
+ * <p>
+ * Only the tiles that intersect the visible part of the photo are decoded, each at the
+ * resolution it is shown at: when the photo is shown at half its size or less, every second
+ * pixel (or fourth, and so on) is skipped. A tile holds 512 &times; 512 decoded pixels. Tiles
+ * that scroll out of view are dropped and their pending decodes cancelled; decoded tiles stay
+ * in the {@link model.ImageCache}, so panning back shows them at once. Until a tile arrives,
+ * the smaller image underneath shows through.
+ * </p>
+ * <p>
+ * The layer's coordinates are those of the image underneath. All methods must be called on
+ * the JavaFX thread.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public final class TileLayer extends Pane {
+
+    /** The width and height of a tile, in decoded pixels. */
+    public static final int TILE_PIXELS = 512;
+
+    private String path;
+    private RegionDecoder decoder;
+    private int subsampling;
+    private final Map<Long, Tile> tiles = new HashMap<>();
+
+    private static final class Tile {
+        final ImageView view = new ImageView();
+        ImageLoader.Request request;
+    }
+
+    /**
+     * Creates an empty layer.
+     */
+    public TileLayer() {
+        setMouseTransparent(true);
+    }
+
+    /**
+     * Sets the photo the tiles are decoded from, dropping the tiles of the previous one.
+     *
+     * @param path the photo's path, for the image cache
+     * @param decoder the photo opened for decoding parts of it, or null for no tiles
+     */
+    public void setSource(String path, RegionDecoder decoder) {
+        clear();
+        this.path = path;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Shows the tiles covering the visible part of the photo.
+     *
+     * @param shownWidth the width the whole photo is shown at
+     * @param visible the visible part of the photo, in the layer's coordinates
+     * @param outputScale the number of device pixels per unit, e.g. 2 on a high-density screen
+     */
+    public void update(double shownWidth, Bounds visible, double outputScale) {
+        if (decoder == null || shownWidth <= 0 || visible.isEmpty()) {
+            clear();
+            return;
+        }
+        // Units per original pixel, and how many original pixels to skip per decoded one.
+        double scale = shownWidth / decoder.getWidth();
+        int step = 1;
+        while (step * 2 * scale * outputScale <= 1) {
+            step *= 2;
+        }
+        if (step != subsampling) {
+            clear();
+            subsampling = step;
+        }
+        int tileSource = TILE_PIXELS * step;
+        int columns = (decoder.getWidth() + tileSource - 1) / tileSource;
+        int rows = (decoder.getHeight() + tileSource - 1) / tileSource;
+        int firstColumn = clamp((int) Math.floor(visible.getMinX() / scale / tileSource), columns);
+        int lastColumn = clamp((int) Math.floor(visible.getMaxX() / scale / tileSource), columns);
+        int firstRow = clamp((int) Math.floor(visible.getMinY() / scale / tileSource), rows);
+        int lastRow = clamp((int) Math.floor(visible.getMaxY() / scale / tileSource), rows);
+
+        Iterator<Map.Entry<Long, Tile>> it = tiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Tile> entry = it.next();
+            int column = (int) (entry.getKey() >>> 32);
+            int row = (int) (long) entry.getKey();
+            if (column < firstColumn || column > lastColumn || row < firstRow || row > lastRow) {
+                drop(entry.getValue());
+                it.remove();
+            }
+        }
+
+        // The tiles in the middle of the view are decoded first.
+        int centerColumn = (firstColumn + lastColumn) / 2;
+        int centerRow = (firstRow + lastRow) / 2;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                Tile tile = tiles.get(((long) column << 32) | row);
+                if (tile == null) {
+                    int priority = ImageLoader.VISIBLE
+                            + Math.max(Math.abs(column - centerColumn), Math.abs(row - centerRow));
+                    tile = request(column, row, tileSource, priority);
+                    tiles.put(((long) column << 32) | row, tile);
+                    getChildren().add(tile.view);
+                }
+                // Whole units at both edges, so neighbouring tiles meet without a seam.
+                double left = Math.floor(column * tileSource * scale);
+                double top = Math.floor(row * tileSource * scale);
+                double right = Math.ceil(Math.min(decoder.getWidth(), (column + 1) * tileSource) * scale);
+                double bottom = Math.ceil(Math.min(decoder.getHeight(), (row + 1) * tileSource) * scale);
+                tile.view.relocate(left, top);
+                tile.view.setFitWidth(right - left);
+                tile.view.setFitHeight(bottom - top);
+            }
+        }
+    }
+
+    /**
+     * Drops every tile and cancels the pending decodes.
+     */
+    public void clear() {
+        for (Tile tile : tiles.values()) {
+            drop(tile);
+        }
+        tiles.clear();
+        getChildren().clear();
+        subsampling = 0;
+    }
+
+    private Tile request(int column, int row, int tileSource, int priority) {
+        Tile tile = new Tile();
+        RegionDecoder source = decoder;
+        String tilePath = path;
+        int step = subsampling;
+        tile.request = ImageLoader.getInstance().submit(path + " (tile " + column + "," + row + ")", () -> {
+            try {
+                return PhotoService.loadRegion(tilePath, source, column * tileSource, row * tileSource,
+                        tileSource, tileSource, step);
+            } catch (IOException e) {
+                // Closed while decoding, or the file cannot be read in parts; the image underneath stays.
+                return null;
+            }
+        }, priority, image -> {
+            if (image != null) {
+                tile.view.setImage(image);
+            }
+        });
+        return tile;
+    }
+
+    private void drop(Tile tile) {
+        if (tile.request != null) {
+            tile.request.cancel();
+        }
+        getChildren().remove(tile.view);
+    }
+
+    private static int clamp(int index, int count) {
+        return Math.max(0, Math.min(count - 1, index));
+    }
+}
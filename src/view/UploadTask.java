@@ -0,0 +1,147 @@
+package view;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javafx.concurrent.Task;
+import model.Photo;
+import model.PhotoService;
+import util.BlobStore;
+import util.MetadataScanner;
+import util.PhotoMetadata;
+
+/**
+ * Imports a batch of photo files in the background.
+ * <p>
+ * Each file is copied into the {@link BlobStore}, its capture date, size and orientation read from
+ * its headers and its thumbnail decoded into the {@link model.ImageCache} on a pool of worker threads,
+ * several files at a time, so the grid finds it there. The task reports its progress per file and can
+ * be cancelled; the files that were imported before that are available from {@link #getImported()}.
+ * The photos are not added to any album: the caller does that on the JavaFX thread, in one go.
+ * </p>
+ *
+ * @author Elvis Vasquez
+ */
+public class UploadTask extends Task<List<Photo>> {
+
+    /** The size of the thumbnails decoded during the upload. */
+    public static final double THUMBNAIL_SIZE = 150;
+
+    private final List<File> files;
+    private final List<String> failures = new ArrayList<>();
+    // The imported photo for each file, by position in the upload; set on the worker threads.
+    private volatile AtomicReferenceArray<Photo> imported = new AtomicReferenceArray<>(0);
+
+    /**
+     * Creates an upload of the given files.
+     *
+     * @param files the files to import
+     */
+    public UploadTask(List<File> files) {
+        this.files = new ArrayList<>(files);
+    }
+
+    @Override
+    protected List<Photo> call() throws Exception {
+        int total = files.size();
+        int threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, total)), r -> {
+            Thread t = new Thread(r, "upload-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        imported = new AtomicReferenceArray<>(total);
+        try {
+            ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<>(pool);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < total; i++) {
+                int index = i;
+                futures.add(completion.submit(() -> {
+                    if (!isCancelled()) {
+                        imported.set(index, importOne(files.get(index)));
+                    }
+                    return index;
+                }));
+            }
+            for (int done = 1; done <= total; done++) {
+                if (isCancelled()) {
+                    for (Future<Integer> future : futures) {
+                        future.cancel(false);
+                    }
+                    break;
+                }
+                Future<Integer> finished = completion.take();
+                try {
+                    finished.get();
+                } catch (ExecutionException e) {
+                    // importOne already recorded the failure.
+                }
+                updateProgress(done, total);
+                updateMessage("Uploaded " + done + " of " + total);
+            }
+        } finally {
+            pool.shutdown();
+            // Files being copied when the upload was cancelled are finished, so none is left half-written.
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        return getImported();
+    }
+
+    /**
+     * Returns the photos imported so far, in the order the files were chosen. After the task
+     * was cancelled, these are the files that made it into the blob store.
+     *
+     * @return the imported photos
+     */
+    public List<Photo> getImported() {
+        AtomicReferenceArray<Photo> current = imported;
+        List<Photo> photos = new ArrayList<>();
+        for (int i = 0; i < current.length(); i++) {
+            Photo photo = current.get(i);
+            if (photo != null) {
+                photos.add(photo);
+            }
+        }
+        return photos;
+    }
+
+    private Photo importOne(File file) {
+        try {
+            Path blob = BlobStore.getInstance().importFile(file.toPath());
+            // The file's modification time is only a fallback; copies of a photo all have a different one.
+            long modified = Files.getLastModifiedTime(file.toPath()).toMillis();
+            // Read before the photo exists, so it is complete before anyone can see it.
+            Photo photo = MetadataScanner.newPhoto(blob.toString(), modified, file.getName(), PhotoMetadata.read(file));
+            // Warms the image cache; the grid picks the thumbnail up from there.
+            PhotoService.loadThumbnail(photo.getPath(), THUMBNAIL_SIZE);
+            return photo;
+        } catch (Exception e) {
+            synchronized (failures) {
+                failures.add(file.getName() + ": " + e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns a description of every file that could not be uploaded.
+     *
+     * @return the failures, one per file
+     */
+    public List<String> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+}